@@ -0,0 +1,305 @@
+package com.codemint.example.yubi.filter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.codemint.example.yubi.data.RoleIndex;
+
+/**
+ * Declarative URL access rules compiled into a path trie.
+ * <p>
+ * The rules use a format similar to the urls section in shiro.ini, one rule per
+ * line:
+ * 
+ * <pre>
+ * # Comment
+ * /index.html = anon
+ * /login.jsp = login
+ * /power_users_only.html = roles[PowerUsers]
+ * /admin/** = roles[Admins, PowerUsers]
+ * /** = authc
+ * </pre>
+ * 
+ * A path is either exact or ends with "/**", which matches the path itself and
+ * everything below it. The most specific rule wins regardless of order, i.e. an
+ * exact match beats a wildcard and a longer wildcard beats a shorter one. Paths
+ * without any matching rule require authentication. The rule "anon" makes a
+ * page public, "login" marks the login page, "authc" requires authentication
+ * and "roles[...]" requires authentication and all the listed roles.
+ * <p>
+ * Every node in the trie holds its rules with a precomputed role mask, so a
+ * request is decided in a single walk over the URI without creating any
+ * objects.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public class AccessRules {
+  private static final String WILDCARD_SUFFIX = "/**";
+  private final Map<String, String> _ruleDefinitions;
+  private final Set<String> _roleNames = new TreeSet<>();
+  private final Node _root = new Node("");
+  private String _loginPage;
+
+  private AccessRules(Map<String, String> ruleDefinitions) {
+    _ruleDefinitions = ruleDefinitions;
+    for (String definition : ruleDefinitions.values()) {
+      _roleNames.addAll(Arrays.asList(parseRoles(definition)));
+    }
+  }
+
+  /**
+   * Parse rules.
+   * 
+   * @param is
+   *          The input stream with rules in UTF-8.
+   * @return uncompiled rules.
+   * @throws IOException
+   *           on read errors.
+   * @throws IllegalArgumentException
+   *           if a rule is not valid.
+   */
+  public static AccessRules parse(InputStream is) throws IOException {
+    Map<String, String> definitions = new LinkedHashMap<>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+    for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+      String trimmedLine = line.trim();
+      if (!trimmedLine.isEmpty() && !trimmedLine.startsWith("#")) {
+        int separator = trimmedLine.indexOf('=');
+        if (separator <= 0 || !trimmedLine.startsWith("/")) {
+          throw new IllegalArgumentException("Invalid access rule: " + line);
+        }
+        definitions.put(trimmedLine.substring(0, separator).trim(), trimmedLine.substring(separator + 1).trim());
+      }
+    }
+    return new AccessRules(definitions);
+  }
+
+  /**
+   * Create the default rules: everything but the login page requires
+   * authentication.
+   * 
+   * @return uncompiled rules.
+   */
+  public static AccessRules createDefault() {
+    Map<String, String> definitions = new LinkedHashMap<>();
+    definitions.put("/login.jsp", "login");
+    definitions.put("/**", "authc");
+    return new AccessRules(definitions);
+  }
+
+  /**
+   * Get all roles referenced by the rules, so that they can be included in the
+   * {@link RoleIndex}.
+   * 
+   * @return role names.
+   */
+  public String[] getRoleNames() {
+    return _roleNames.toArray(new String[_roleNames.size()]);
+  }
+
+  /**
+   * Compile the rules into the trie. This must be called once before
+   * {@link #match(String, int)}.
+   * 
+   * @param roleIndex
+   *          The role index used for user role masks.
+   * @return this.
+   */
+  public AccessRules compile(RoleIndex roleIndex) {
+    for (Map.Entry<String, String> entry : _ruleDefinitions.entrySet()) {
+      String path = entry.getKey();
+      AccessRule rule = createRule(entry.getValue(), roleIndex);
+      if (rule.getType() == AccessRule.Type.LOGIN && _loginPage == null) {
+        _loginPage = path;
+      }
+      if (path.endsWith(WILDCARD_SUFFIX)) {
+        getOrCreateNode(path.substring(0, path.length() - WILDCARD_SUFFIX.length()))._prefixRule = rule;
+      } else {
+        getOrCreateNode(path)._exactRule = rule;
+      }
+    }
+    if (_loginPage == null) {
+      throw new IllegalArgumentException("No login page defined");
+    }
+    return this;
+  }
+
+  /**
+   * Get the path of the login page.
+   * 
+   * @return login page.
+   */
+  public String getLoginPage() {
+    return _loginPage;
+  }
+
+  /**
+   * Find the most specific rule for a URI.
+   * 
+   * @param uri
+   *          The request URI.
+   * @param start
+   *          The index where the path starts, i.e. the length of the context
+   *          path.
+   * @return rule, never null.
+   */
+  public AccessRule match(String uri, int start) {
+    int end = uri.indexOf(';', start);
+    if (end < 0) {
+      end = uri.length();
+    }
+    int pos = start < end && uri.charAt(start) == '/' ? start + 1 : start;
+    Node node = _root;
+    AccessRule candidate = _root._prefixRule != null ? _root._prefixRule : AccessRule.AUTHENTICATED;
+    while (pos < end) {
+      int segmentEnd = uri.indexOf('/', pos);
+      if (segmentEnd < 0 || segmentEnd > end) {
+        segmentEnd = end;
+      }
+      node = node.findChild(uri, pos, segmentEnd);
+      if (node == null) {
+        return candidate;
+      }
+      if (node._prefixRule != null) {
+        candidate = node._prefixRule;
+      }
+      pos = segmentEnd + 1;
+    }
+    return node._exactRule != null ? node._exactRule : candidate;
+  }
+
+  private Node getOrCreateNode(String path) {
+    Node node = _root;
+    for (String segment : path.split("/")) {
+      if (!segment.isEmpty()) {
+        node = node.getOrCreateChild(segment);
+      }
+    }
+    return node;
+  }
+
+  private static AccessRule createRule(String definition, RoleIndex roleIndex) {
+    if (definition.equals("anon")) {
+      return AccessRule.PUBLIC;
+    } else if (definition.equals("login")) {
+      return AccessRule.LOGIN;
+    } else if (definition.equals("authc")) {
+      return AccessRule.AUTHENTICATED;
+    }
+    String[] roles = parseRoles(definition);
+    if (roles.length == 0) {
+      throw new IllegalArgumentException("Invalid access rule: " + definition);
+    }
+    long mask = 0L;
+    for (String role : roles) {
+      long bit = roleIndex.getBit(role);
+      if (bit == 0L) {
+        throw new IllegalArgumentException("Role " + role + " missing in role index");
+      }
+      mask |= bit;
+    }
+    return new AccessRule(AccessRule.Type.AUTHENTICATED, mask);
+  }
+
+  private static String[] parseRoles(String definition) {
+    if (definition.startsWith("roles[") && definition.endsWith("]")) {
+      String[] roles = definition.substring(6, definition.length() - 1).split(",");
+      for (int i = 0; i < roles.length; i++) {
+        roles[i] = roles[i].trim();
+      }
+      return roles;
+    }
+    return new String[0];
+  }
+
+  /**
+   * Access rule with precomputed mask for required roles.
+   */
+  public static final class AccessRule {
+    public static enum Type {
+      PUBLIC, LOGIN, AUTHENTICATED
+    }
+
+    static final AccessRule PUBLIC = new AccessRule(Type.PUBLIC, 0L);
+    static final AccessRule LOGIN = new AccessRule(Type.LOGIN, 0L);
+    static final AccessRule AUTHENTICATED = new AccessRule(Type.AUTHENTICATED, 0L);
+    private final Type _type;
+    private final long _requiredRoleMask;
+
+    AccessRule(Type type, long requiredRoleMask) {
+      _type = type;
+      _requiredRoleMask = requiredRoleMask;
+    }
+
+    public Type getType() {
+      return _type;
+    }
+
+    public boolean isPublic() {
+      return _type == Type.PUBLIC;
+    }
+
+    public boolean isLoginPage() {
+      return _type == Type.LOGIN;
+    }
+
+    /**
+     * Check if an authenticated user with given roles is granted access.
+     * 
+     * @param userRoleMask
+     *          The user's role mask.
+     * @return true if all required roles are present.
+     */
+    public boolean isGranted(long userRoleMask) {
+      return (userRoleMask & _requiredRoleMask) == _requiredRoleMask;
+    }
+  }
+
+  private static final class Node {
+    private static final Node[] NO_CHILDREN = new Node[0];
+    private final String _segment;
+    private final int _segmentHash;
+    private Node[] _children = NO_CHILDREN;
+    private AccessRule _exactRule;
+    private AccessRule _prefixRule;
+
+    Node(String segment) {
+      _segment = segment;
+      _segmentHash = segment.hashCode();
+    }
+
+    Node getOrCreateChild(String segment) {
+      for (Node child : _children) {
+        if (child._segment.equals(segment)) {
+          return child;
+        }
+      }
+      Node child = new Node(segment);
+      _children = Arrays.copyOf(_children, _children.length + 1);
+      _children[_children.length - 1] = child;
+      return child;
+    }
+
+    Node findChild(String uri, int start, int end) {
+      int length = end - start;
+      int hash = 0;
+      for (int i = start; i < end; i++) {
+        hash = 31 * hash + uri.charAt(i);
+      }
+      for (Node child : _children) {
+        if (child._segmentHash == hash && child._segment.length() == length
+            && uri.regionMatches(start, child._segment, 0, length)) {
+          return child;
+        }
+      }
+      return null;
+    }
+  }
+}
@@ -1,14 +1,23 @@
 package com.codemint.example.yubi.filter;
 
 import java.io.IOException;
-import java.util.Map;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
@@ -16,35 +25,210 @@ import javax.servlet.http.HttpSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codemint.example.yubi.auth.DeviceToken;
+import com.codemint.example.yubi.auth.LoginResult;
+import com.codemint.example.yubi.auth.LoginResult.Outcome;
+import com.codemint.example.yubi.auth.SessionPrincipal;
+import com.codemint.example.yubi.auth.SessionToken;
+import com.codemint.example.yubi.auth.TwoFactorVerifier;
+import com.codemint.example.yubi.data.AccountStore;
+import com.codemint.example.yubi.data.RoleIndex;
 import com.codemint.example.yubi.data.UserAccount;
-import com.codemint.example.yubi.util.PasswordEncoder;
-import com.codemint.example.yubi.util.YubicoClientFactory;
-import com.yubico.client.v2.VerificationResponse;
-import com.yubico.client.v2.YubicoClient;
-import com.yubico.client.v2.exceptions.YubicoValidationFailure;
-import com.yubico.client.v2.exceptions.YubicoVerificationException;
+import com.codemint.example.yubi.filter.AccessRules.AccessRule;
+import com.codemint.example.yubi.metrics.LoginMetrics;
+import com.codemint.example.yubi.tenant.Tenant;
+import com.codemint.example.yubi.tenant.TenantRegistry;
+import com.codemint.example.yubi.trace.LoginTracer;
+import com.codemint.example.yubi.trace.LoginTracers;
+import com.codemint.example.yubi.trace.TracePhase;
+import com.codemint.example.yubi.util.AdaptiveConcurrencyLimit;
+import com.codemint.example.yubi.util.BlockingExecutors;
+import com.codemint.example.yubi.util.HmacSigner;
+import com.codemint.example.yubi.web.SessionRegistry;
 
 /**
  * Simple filter that redirects to login page if user has not authenticated
  * before accessing a protected page.
+ * <p>
+ * By default the user is stored in the HTTP session as a compact
+ * {@link SessionPrincipal}, which is cheap to replicate. If the init
+ * parameter "sessionMode" is set to "cookie" the filter issues a signed cookie
+ * with user id, roles and expiry time instead, so that any node with the same
+ * keys (read from session-keys.properties) can verify the user without a
+ * shared or replicated session. The init parameter "sessionMaxAgeSeconds"
+ * controls how long such a cookie is valid.
+ * <p>
+ * Public pages, the login page and pages that require specific roles are
+ * defined in {@link AccessRules} read from the resource named by the init
+ * parameter "accessRules" (default /WEB-INF/access-rules.txt). Without rules
+ * all pages but /login.jsp require authentication.
+ * <p>
+ * The required init parameter "roles" lists the roles, separated by commas.
+ * The roles of a user are kept as a {@link RoleIndex} mask in the list order,
+ * both in sessions and in cookies, so new roles must be appended to keep them
+ * valid on all nodes. Roles that are not listed are left out with a warning,
+ * and the access rules may only require listed roles.
+ * <p>
+ * Accounts are read from the file named by the init parameter "accountFile"
+ * (default etc/user_accounts.txt). They are loaded in the background, normally
+ * from the {@link com.codemint.example.yubi.web.AccountLoaderListener}, and
+ * logins that arrive before they are ready get 503 with Retry-After.
+ * <p>
+ * On Java 21 the login form is verified on a virtual thread (see
+ * {@link BlockingExecutors}) while the request is suspended with
+ * {@link AsyncContext}, so container threads are not held while waiting for
+ * the validation service. The result is handled when the request is
+ * dispatched back through the filter, which must therefore be mapped for the
+ * ASYNC dispatcher. The init parameter "offloadVerification" turns this on or
+ * off regardless of Java version.
+ * <p>
+ * If the init parameter "trustedDeviceMaxAgeSeconds" is set, users can ask to
+ * trust the device when they log in with both factors. The filter then issues
+ * a signed {@link DeviceToken} cookie with that lifetime, and later logins from
+ * the same browser can leave the OTP field empty and need only the password.
+ * The token is bound to the tenant and to a random device id in a second
+ * HttpOnly cookie, so it is useless in another browser without that cookie.
+ * The token uses the keys in session-keys.properties. Raise the generation of
+ * an account to revoke all its tokens.
+ * <p>
+ * Login attempts are admitted through an {@link AdaptiveConcurrencyLimit}, so
+ * that a flood of logins cannot take every container thread from users who
+ * are already logged in; their requests never touch the limit. Attempts over
+ * the limit get 503 with Retry-After at once. The limit moves between the
+ * init parameters "minConcurrentLogins" and "maxConcurrentLogins" with the
+ * latency of the logins that reached the validation service. Failed logins
+ * are answered two seconds late to slow down password guessing, but only
+ * after the permit has been released, so the delay never counts against the
+ * limit. Asynchronous logins wait on a timer rather than on a thread.
+ * <p>
+ * With the init parameter "tenantConfig" the filter serves several tenants,
+ * defined in that file and resolved by host name or path prefix, see
+ * {@link TenantRegistry}. Each tenant has its own accounts, validation client,
+ * rate limits, metrics and login limit. The access rules are shared and are
+ * matched after the tenant path prefix. Sessions and session cookies are bound
+ * to the tenant, so a login for one tenant is not accepted by another.
+ * Requests that match no tenant get 404.
+ * <p>
+ * The account version is compared with the loaded account on each request,
+ * and the session is invalidated or the session cookie rejected if the account
+ * has changed or been removed, so a new password, key or role set applies at
+ * once. Sessions are also registered with the {@link SessionRegistry} if it is
+ * configured, which invalidates them as soon as the account file is reloaded.
  * 
  * @author Erik Wramner, CodeMint
  */
 public class AuthenticationFilter implements Filter {
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+  private static final String NOT_READY_RETRY_AFTER_SECONDS = "5";
+  private static final String SHED_RETRY_AFTER_SECONDS = "1";
+  private static final int DEFAULT_MIN_CONCURRENT_LOGINS = 4;
+  private static final int DEFAULT_MAX_CONCURRENT_LOGINS = 64;
+  private static final long FAILED_LOGIN_DELAY_MILLIS = 2000L;
+  private static final String SESSION_COOKIE_NAME = "YUBI_SESSION";
+  private static final String DEVICE_COOKIE_NAME = "YUBI_DEVICE";
+  private static final String DEVICE_ID_COOKIE_NAME = "YUBI_DEVICE_ID";
+  private static final int DEFAULT_SESSION_MAX_AGE_SECONDS = 1800;
+  private static final String DEFAULT_ACCESS_RULES = "/WEB-INF/access-rules.txt";
+  private static final String DEFAULT_ACCOUNT_FILE = "etc/user_accounts.txt";
+  private static final String USER_SESSION_KEY = "user";
+  private static final String TENANT_ATTRIBUTE = "com.codemint.example.yubi.filter.tenant";
+  private static final String LOGIN_RESULT_ATTRIBUTE = "com.codemint.example.yubi.filter.loginResult";
   private final Logger _logger = LoggerFactory.getLogger(getClass());
-  private YubicoClient _yubicoClient;
-  private Map<String, UserAccount> _accountMap;
+  private final LoginTracer _tracer = LoginTracers.getTracer();
+  private volatile TwoFactorVerifier _verifier;
+  private volatile HmacSigner _sessionSigner;
+  private volatile RoleIndex _roleIndex;
+  private volatile int _sessionMaxAgeSeconds;
+  private volatile AccessRules _accessRules;
+  private volatile boolean _offloadVerification;
+  private volatile HmacSigner _deviceSigner;
+  private volatile int _trustedDeviceMaxAgeSeconds;
+  private volatile AdaptiveConcurrencyLimit _loginLimit;
+  private volatile TenantRegistry _tenants;
+  private volatile ScheduledExecutorService _delayTimer;
 
   @Override
   public synchronized void init(FilterConfig config) throws ServletException {
     _logger.info("Initializing...");
-    _accountMap = UserAccount.createAccountMap("etc/user_accounts.txt");
-    _yubicoClient = YubicoClientFactory.getYubicoClient();
+    String tenantConfig = config.getInitParameter("tenantConfig");
+    if (tenantConfig != null) {
+      _tenants = TenantRegistry.load(tenantConfig);
+    } else {
+      String accountFile = config.getInitParameter("accountFile");
+      _verifier = TwoFactorVerifier.createDefault(accountFile != null ? accountFile : DEFAULT_ACCOUNT_FILE);
+    }
+    String roles = config.getInitParameter("roles");
+    if (roles == null) {
+      throw new ServletException("Init parameter roles with the role list is required");
+    }
+    try {
+      _roleIndex = RoleIndex.parse(roles);
+    } catch (IllegalArgumentException e) {
+      throw new ServletException("Invalid role list " + roles, e);
+    }
+    AccessRules accessRules = loadAccessRules(config);
+    List<String> unknownRoles = _roleIndex.getUnknownRoles(Arrays.asList(accessRules.getRoleNames()));
+    if (!unknownRoles.isEmpty()) {
+      throw new ServletException("Roles " + unknownRoles + " in the access rules are not in the role list");
+    }
+    _accessRules = accessRules.compile(_roleIndex);
+    _loginLimit = new AdaptiveConcurrencyLimit(getIntParameter(config, "minConcurrentLogins",
+        DEFAULT_MIN_CONCURRENT_LOGINS), getIntParameter(config, "maxConcurrentLogins", DEFAULT_MAX_CONCURRENT_LOGINS));
+    String offload = config.getInitParameter("offloadVerification");
+    _offloadVerification = offload != null ? Boolean.parseBoolean(offload) : BlockingExecutors.isVirtual();
+    if (_offloadVerification) {
+      _logger.info("Verifying logins asynchronously");
+      _delayTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable task) {
+          return BlockingExecutors.newThread("yubi-login-delay", task);
+        }
+      });
+    }
+    if ("cookie".equals(config.getInitParameter("sessionMode"))) {
+      String maxAge = config.getInitParameter("sessionMaxAgeSeconds");
+      _sessionMaxAgeSeconds = maxAge != null ? Integer.parseInt(maxAge) : DEFAULT_SESSION_MAX_AGE_SECONDS;
+      _sessionSigner = HmacSigner.fromClasspath("/session-keys.properties");
+      _logger.info("Using signed session cookies");
+    }
+    String trustedDeviceMaxAge = config.getInitParameter("trustedDeviceMaxAgeSeconds");
+    if (trustedDeviceMaxAge != null) {
+      _trustedDeviceMaxAgeSeconds = Integer.parseInt(trustedDeviceMaxAge);
+      _deviceSigner = HmacSigner.fromClasspath("/session-keys.properties");
+      _logger.info("Trusting devices for {} seconds", _trustedDeviceMaxAgeSeconds);
+    }
     _logger.info("Initialized filter");
   }
 
+  private static int getIntParameter(FilterConfig config, String name, int defaultValue) {
+    String value = config.getInitParameter(name);
+    return value != null ? Integer.parseInt(value) : defaultValue;
+  }
+
+  private AccessRules loadAccessRules(FilterConfig config) throws ServletException {
+    String resource = config.getInitParameter("accessRules");
+    if (resource == null) {
+      resource = DEFAULT_ACCESS_RULES;
+    }
+    try (InputStream is = config.getServletContext().getResourceAsStream(resource)) {
+      if (is == null) {
+        _logger.info("No access rules in {}, using defaults", resource);
+        return AccessRules.createDefault();
+      }
+      return AccessRules.parse(is);
+    } catch (IOException | IllegalArgumentException e) {
+      throw new ServletException("Failed to read access rules from " + resource, e);
+    }
+  }
+
   @Override
   public void destroy() {
+    if (_tenants != null) {
+      _tenants.close();
+    }
+    if (_delayTimer != null) {
+      _delayTimer.shutdownNow();
+    }
     _logger.info("Destroyed filter");
   }
 
@@ -53,26 +237,86 @@ public class AuthenticationFilter implements Filter {
       ServletException {
     if (req instanceof HttpServletRequest) {
       HttpServletRequest httpReq = (HttpServletRequest) req;
+      if (_tenants != null) {
+        Tenant tenant = _tenants.resolve(httpReq.getServerName(), httpReq.getRequestURI().substring(
+            httpReq.getContextPath().length()));
+        if (tenant == null) {
+          ((HttpServletResponse) resp).sendError(HttpServletResponse.SC_NOT_FOUND);
+          return;
+        }
+        req.setAttribute(TENANT_ATTRIBUTE, tenant);
+      }
+      String tenantPrefix = getTenantPrefix(httpReq);
+      AccessRule rule = _accessRules.match(httpReq.getRequestURI(), httpReq.getContextPath().length()
+          + tenantPrefix.length());
 
-      if (!(isPublicPage(httpReq) || isUserAuthorized(httpReq))) {
+      if (!(isPublicPage(rule) || isUserAuthorized(httpReq, rule))) {
         if (isUserAuthenticated(httpReq)) {
           ((HttpServletResponse) resp).sendError(HttpServletResponse.SC_FORBIDDEN);
           return;
-        } else if (isLoginPage(httpReq)) {
+        } else if (isLoginPage(rule)) {
           if (isFormSubmission(httpReq)) {
-            UserAccount account = loginUser(req.getParameter("email"), req.getParameter("password"),
-                req.getParameter("otp"));
-            if (account != null) {
-              httpReq.getSession(true).setAttribute("user", account);
-              ((HttpServletResponse) resp).sendRedirect("/index.jsp");
+            LoginResult result = (LoginResult) req.getAttribute(LOGIN_RESULT_ATTRIBUTE);
+            if (result == null) {
+              AdaptiveConcurrencyLimit loginLimit = getLoginLimit(httpReq);
+              if (!loginLimit.tryAcquire()) {
+                _logger.debug("Shedding login, {} in progress", loginLimit.getInFlight());
+                Tenant tenant = getTenant(httpReq);
+                (tenant != null ? tenant.getMetrics() : LoginMetrics.getInstance()).recordShed();
+                ((HttpServletResponse) resp).setHeader("Retry-After", SHED_RETRY_AFTER_SECONDS);
+                ((HttpServletResponse) resp).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+              }
+              if (_offloadVerification && req.isAsyncSupported()) {
+                verifyAsync(httpReq);
+                return;
+              }
+              result = verify(httpReq);
+              if (isDelayed(result)) {
+                slowDownBruteForceAttacksWithSleep();
+              }
+            }
+            if (result.isSuccess()) {
+              UserAccount account = result.getAccount();
+              LoginTracer.Span span = _tracer.start(TracePhase.SESSION_SETUP, account.getEmail(), null);
+              try {
+                List<String> unknownRoles = _roleIndex.getUnknownRoles(account.getRoles());
+                if (!unknownRoles.isEmpty()) {
+                  _logger.warn("Roles {} of {} are not in the role list and are left out", unknownRoles, account
+                      .getEmail());
+                }
+                if (_sessionSigner != null) {
+                  issueSessionCookie(httpReq, (HttpServletResponse) resp, account);
+                } else {
+                  HttpSession session = httpReq.getSession(true);
+                  session.setAttribute(USER_SESSION_KEY, SessionPrincipal.forAccount(getTenantId(httpReq), account,
+                      _roleIndex));
+                  SessionRegistry registry = SessionRegistry.get(session.getServletContext());
+                  if (registry != null) {
+                    registry.register(session, getTenantId(httpReq), account.getEmail());
+                  }
+                }
+                if (isTrustDeviceRequested(httpReq)) {
+                  issueDeviceCookie(httpReq, (HttpServletResponse) resp, account);
+                }
+              } finally {
+                span.end();
+              }
+              ((HttpServletResponse) resp).sendRedirect(tenantPrefix + "/index.jsp");
+              return;
+            } else if (result.getOutcome() == Outcome.RATE_LIMITED) {
+              ((HttpServletResponse) resp).sendError(SC_TOO_MANY_REQUESTS);
+              return;
+            } else if (result.getOutcome() == Outcome.NOT_READY) {
+              ((HttpServletResponse) resp).setHeader("Retry-After", NOT_READY_RETRY_AFTER_SECONDS);
+              ((HttpServletResponse) resp).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
               return;
             } else {
-              slowDownBruteForceAttacksWithSleep();
               req.setAttribute("message", "Login failed, please try again!");
             }
           }
         } else {
-          ((HttpServletResponse) resp).sendRedirect("/login.jsp");
+          ((HttpServletResponse) resp).sendRedirect(tenantPrefix + _accessRules.getLoginPage());
           return;
         }
       }
@@ -80,77 +324,331 @@ public class AuthenticationFilter implements Filter {
     chain.doFilter(req, resp);
   }
 
-  private UserAccount loginUser(String email, String password, String otp) {
-    if (email != null && password != null && otp != null) {
-      UserAccount account = getAccountMap().get(email);
-
-      if (account != null
-          && account.getHashedPassword().equals(
-              PasswordEncoder.encodePasswordForUser(email, account.getSalt(), password))
-          && YubicoClient.isValidOTPFormat(otp)) {
-        try {
-          _logger.info("Verifying Yubikey for {}...", account.getEmail());
-          VerificationResponse response = getYubicoClient().verify(otp);
-          if (response.isOk()) {
-            if (response.getPublicId().equals(account.getPublicYubiId())) {
-              _logger.info("User {} with public id {} authenticated", account.getEmail(), response.getPublicId());
-              return account;
-            } else {
-              _logger.warn("Login attempt for {} with wrong Yubikey {}!", account.getEmail(), response.getPublicId());
+  /**
+   * Verify the login form and release the admission permit taken by the
+   * caller. The caller delays failed logins, see {@link #isDelayed}.
+   * 
+   * @param req
+   *          The servlet request.
+   * @return result.
+   */
+  private LoginResult verify(HttpServletRequest req) {
+    TwoFactorVerifier verifier = getVerifier(req);
+    long startTime = System.nanoTime();
+    long latency = -1L;
+    try {
+      String otp = req.getParameter("otp");
+      DeviceToken deviceToken = otp == null || otp.isEmpty() ? getDeviceToken(req) : null;
+      LoginResult result;
+      if (deviceToken != null) {
+        result = verifier.verifyTrustedDevice(req.getParameter("email"), req.getParameter("password"), deviceToken,
+            req.getRemoteAddr());
+      } else {
+        result = verifier.verify(req.getParameter("email"), req.getParameter("password"), otp, req.getRemoteAddr());
+        if (isValidationServiceCalled(result.getOutcome())) {
+          latency = System.nanoTime() - startTime;
+        }
+      }
+      return result;
+    } finally {
+      getLoginLimit(req).release(latency);
+    }
+  }
+
+  /**
+   * Check if the answer to a login should be delayed to slow down password
+   * guessing. Rate limited logins and logins before the accounts are loaded
+   * are answered at once.
+   * 
+   * @param result
+   *          The result.
+   * @return true to delay.
+   */
+  private static boolean isDelayed(LoginResult result) {
+    return !result.isSuccess() && result.getOutcome() != Outcome.RATE_LIMITED
+        && result.getOutcome() != Outcome.NOT_READY;
+  }
+
+  private static Tenant getTenant(HttpServletRequest req) {
+    return (Tenant) req.getAttribute(TENANT_ATTRIBUTE);
+  }
+
+  private static String getTenantId(HttpServletRequest req) {
+    Tenant tenant = getTenant(req);
+    return tenant != null ? tenant.getId() : null;
+  }
+
+  /**
+   * Get the path prefix of the tenant if the request used it.
+   * 
+   * @param req
+   *          The servlet request.
+   * @return prefix or empty string.
+   */
+  private static String getTenantPrefix(HttpServletRequest req) {
+    Tenant tenant = getTenant(req);
+    String prefix = tenant != null ? tenant.getPathPrefix() : null;
+    return prefix != null && req.getRequestURI().startsWith(prefix, req.getContextPath().length()) ? prefix : "";
+  }
+
+  private TwoFactorVerifier getVerifier(HttpServletRequest req) {
+    Tenant tenant = getTenant(req);
+    return tenant != null ? tenant.getVerifier() : _verifier;
+  }
+
+  private AdaptiveConcurrencyLimit getLoginLimit(HttpServletRequest req) {
+    Tenant tenant = getTenant(req);
+    return tenant != null ? tenant.getLoginLimit() : _loginLimit;
+  }
+
+  private static boolean isSameTenant(String tenantId, HttpServletRequest req) {
+    String requestTenantId = getTenantId(req);
+    return tenantId == null ? requestTenantId == null : tenantId.equals(requestTenantId);
+  }
+
+  /**
+   * Check if a login reached the validation service. Only such logins adjust
+   * the admission limit, as the fast failures would otherwise pull the
+   * expected latency far below that of a real login.
+   * 
+   * @param outcome
+   *          The outcome.
+   * @return true if the validation service was called.
+   */
+  private static boolean isValidationServiceCalled(Outcome outcome) {
+    return outcome == Outcome.SUCCESS || outcome == Outcome.NOT_OK || outcome == Outcome.WRONG_KEY
+        || outcome == Outcome.UNREACHABLE;
+  }
+
+  /**
+   * Suspend the request and verify the login form on a blocking executor
+   * thread, then dispatch the request with the result back to the filter,
+   * after the delay on the timer if the login failed. If the executor refuses
+   * the task the permit is released and the request is completed with 503.
+   * 
+   * @param req
+   *          The servlet request.
+   */
+  private void verifyAsync(final HttpServletRequest req) {
+    final AsyncContext asyncContext;
+    try {
+      asyncContext = req.startAsync();
+    } catch (IllegalStateException e) {
+      getLoginLimit(req).release(-1L);
+      throw e;
+    }
+    try {
+      BlockingExecutors.getExecutor().execute(new Runnable() {
+        @Override
+        public void run() {
+          LoginResult result;
+          try {
+            result = verify(req);
+          } catch (RuntimeException e) {
+            _logger.error("Failed to verify login", e);
+            completeWithError(asyncContext, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return;
+          }
+          req.setAttribute(LOGIN_RESULT_ATTRIBUTE, result);
+          if (isDelayed(result)) {
+            try {
+              _delayTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                  asyncContext.dispatch();
+                }
+              }, FAILED_LOGIN_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+              return;
+            } catch (RejectedExecutionException e) {
+              _logger.debug("Login delay timer stopped, answering at once");
             }
-          } else {
-            _logger.info("Failed to verify Yubikey for {}, response not OK", account.getEmail());
           }
-        } catch (YubicoValidationFailure e) {
-          _logger.error("Validation failure for Yubikey", e);
-        } catch (YubicoVerificationException e) {
-          _logger.error("Failed to verify Yubikey - servers unreachable?", e);
+          asyncContext.dispatch();
         }
-      }
+      });
+    } catch (RejectedExecutionException e) {
+      _logger.warn("Failed to offload login verification", e);
+      getLoginLimit(req).release(-1L);
+      ((HttpServletResponse) asyncContext.getResponse()).setHeader("Retry-After", SHED_RETRY_AFTER_SECONDS);
+      completeWithError(asyncContext, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
     }
-    return null;
+  }
+
+  private void completeWithError(AsyncContext asyncContext, int status) {
+    try {
+      ((HttpServletResponse) asyncContext.getResponse()).sendError(status);
+    } catch (IOException e) {
+      _logger.debug("Failed to send error", e);
+    }
+    asyncContext.complete();
   }
 
   /**
    * Check if the requested page is public.
    * 
-   * @param req
-   *          The request.
+   * @param rule
+   *          The access rule for the page.
    * @return true if public.
    */
-  private boolean isPublicPage(HttpServletRequest req) {
-    // No public pages
-    return false;
+  private boolean isPublicPage(AccessRule rule) {
+    return rule.isPublic();
   }
 
   /**
-   * Simple implementation, all authenticated users are authorized for all
-   * pages.
+   * Check if the user is authenticated and has all roles required by the rule.
    * 
    * @param req
    *          The servlet request.
-   * @return true if logged on.
+   * @param rule
+   *          The access rule for the page.
+   * @return true if authorized.
    */
-  private boolean isUserAuthorized(HttpServletRequest req) {
-    return isUserAuthenticated(req);
+  private boolean isUserAuthorized(HttpServletRequest req, AccessRule rule) {
+    if (_sessionSigner != null) {
+      SessionToken token = getSessionToken(req);
+      return token != null && rule.isGranted(token.getRoleMask());
+    }
+    SessionPrincipal principal = getSessionPrincipal(req);
+    return principal != null && rule.isGranted(principal.getRoleMask());
   }
 
   private boolean isUserAuthenticated(HttpServletRequest req) {
+    if (_sessionSigner != null) {
+      return getSessionToken(req) != null;
+    }
+    return getSessionPrincipal(req) != null;
+  }
+
+  /**
+   * Get the user in the session if logged in for the tenant of the request.
+   * The session is invalidated if the account has been changed or removed
+   * since the login. Until the accounts are loaded the session is trusted as
+   * is.
+   * 
+   * @param req
+   *          The servlet request.
+   * @return principal or null if none.
+   */
+  private SessionPrincipal getSessionPrincipal(HttpServletRequest req) {
     HttpSession session = req.getSession(false);
-    return session != null && session.getAttribute("user") != null;
+    if (session == null) {
+      return null;
+    }
+    SessionPrincipal principal = (SessionPrincipal) session.getAttribute(USER_SESSION_KEY);
+    if (principal == null || !isSameTenant(principal.getTenantId(), req)) {
+      return null;
+    }
+    AccountStore accountStore = getVerifier(req).getAccountStore();
+    if (accountStore != null && !principal.isCurrent(accountStore.getAccount(principal.getUserId()))) {
+      _logger.info("Account {} has changed, invalidating session", principal.getUserId());
+      SessionRegistry.invalidate(session);
+      return null;
+    }
+    return principal;
+  }
+
+  /**
+   * Get the signed session cookie if valid for the tenant of the request and
+   * issued for the current version of the account. Until the accounts are
+   * loaded the version is not checked, as for sessions.
+   * 
+   * @param req
+   *          The servlet request.
+   * @return token or null if none.
+   */
+  private SessionToken getSessionToken(HttpServletRequest req) {
+    SessionToken token = SessionToken.verify(_sessionSigner, getCookieValue(req, SESSION_COOKIE_NAME), System
+        .currentTimeMillis());
+    if (token == null || !isSameTenant(token.getTenantId(), req)) {
+      return null;
+    }
+    AccountStore accountStore = getVerifier(req).getAccountStore();
+    if (accountStore != null && !token.isCurrent(accountStore.getAccount(token.getUserId()))) {
+      _logger.debug("Rejecting session cookie for changed or removed account {}", token.getUserId());
+      return null;
+    }
+    return token;
+  }
+
+  private void issueSessionCookie(HttpServletRequest req, HttpServletResponse resp, UserAccount account) {
+    long expiresAtSeconds = System.currentTimeMillis() / 1000L + _sessionMaxAgeSeconds;
+    SessionToken token = new SessionToken(getTenantId(req), account.getEmail(), _roleIndex.getMask(account.getRoles()),
+        account.getVersion(), expiresAtSeconds);
+    Cookie cookie = new Cookie(SESSION_COOKIE_NAME, token.sign(_sessionSigner));
+    cookie.setPath(getCookiePath(req));
+    cookie.setMaxAge(_sessionMaxAgeSeconds);
+    cookie.setHttpOnly(true);
+    cookie.setSecure(req.isSecure());
+    resp.addCookie(cookie);
+  }
+
+  private DeviceToken getDeviceToken(HttpServletRequest req) {
+    if (_deviceSigner == null) {
+      return null;
+    }
+    String signedToken = getCookieValue(req, DEVICE_COOKIE_NAME);
+    return signedToken != null ? DeviceToken.verify(_deviceSigner, signedToken, getTenantId(req), getCookieValue(req,
+        DEVICE_ID_COOKIE_NAME), System.currentTimeMillis()) : null;
+  }
+
+  private static String getCookieValue(HttpServletRequest req, String name) {
+    Cookie[] cookies = req.getCookies();
+    if (cookies != null) {
+      for (Cookie cookie : cookies) {
+        if (name.equals(cookie.getName())) {
+          return cookie.getValue();
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Check if the user asked to trust the device. A token is only issued after
+   * a login with a one time password, not extended by a trusted device login.
+   * 
+   * @param req
+   *          The servlet request.
+   * @return true to issue a device token.
+   */
+  private boolean isTrustDeviceRequested(HttpServletRequest req) {
+    String otp = req.getParameter("otp");
+    return _deviceSigner != null && req.getParameter("trustDevice") != null && otp != null && !otp.isEmpty();
+  }
+
+  /**
+   * Issue a device token, reusing the device id of the browser so that tokens
+   * for several users on the same device stay valid.
+   */
+  private void issueDeviceCookie(HttpServletRequest req, HttpServletResponse resp, UserAccount account) {
+    String deviceId = getCookieValue(req, DEVICE_ID_COOKIE_NAME);
+    if (deviceId == null || deviceId.isEmpty()) {
+      deviceId = DeviceToken.newDeviceId();
+    }
+    long expiresAtSeconds = System.currentTimeMillis() / 1000L + _trustedDeviceMaxAgeSeconds;
+    DeviceToken token = new DeviceToken(getTenantId(req), account.getEmail(), account.getGeneration(), DeviceToken
+        .getDeviceHash(deviceId), expiresAtSeconds);
+    addDeviceCookie(req, resp, DEVICE_ID_COOKIE_NAME, deviceId);
+    addDeviceCookie(req, resp, DEVICE_COOKIE_NAME, token.sign(_deviceSigner));
   }
 
-  private synchronized YubicoClient getYubicoClient() {
-    return _yubicoClient;
+  private void addDeviceCookie(HttpServletRequest req, HttpServletResponse resp, String name, String value) {
+    Cookie cookie = new Cookie(name, value);
+    cookie.setPath(getCookiePath(req));
+    cookie.setMaxAge(_trustedDeviceMaxAgeSeconds);
+    cookie.setHttpOnly(true);
+    cookie.setSecure(req.isSecure());
+    resp.addCookie(cookie);
   }
 
-  private synchronized Map<String, UserAccount> getAccountMap() {
-    return _accountMap;
+  private static String getCookiePath(HttpServletRequest req) {
+    String tenantPrefix = getTenantPrefix(req);
+    return tenantPrefix.isEmpty() ? "/" : tenantPrefix;
   }
 
   private void slowDownBruteForceAttacksWithSleep() {
     try {
-      Thread.sleep(2000L);
+      Thread.sleep(FAILED_LOGIN_DELAY_MILLIS);
     } catch (InterruptedException e) {
     }
   }
@@ -159,7 +657,7 @@ public class AuthenticationFilter implements Filter {
     return "POST".equals(httpReq.getMethod());
   }
 
-  private boolean isLoginPage(HttpServletRequest httpReq) {
-    return httpReq.getRequestURI().startsWith("/login.jsp");
+  private boolean isLoginPage(AccessRule rule) {
+    return rule.isLoginPage();
   }
 }
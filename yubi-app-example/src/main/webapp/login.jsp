@@ -19,6 +19,9 @@
 				<td><label for="otp">OTP:</label></td>
 				<td><input name="otp" type="password" value=""></td>
 			</tr>
+			<tr>
+				<td colspan="2"><input name="trustDevice" type="checkbox"> Trust this device</td>
+			</tr>
 			<tr>
 				<td colspan="2"><input type="submit" value="Login"></td>
 			</tr>
@@ -0,0 +1,76 @@
+package com.codemint.example.yubi.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Generates account files for the benchmarks. The password hashes are fixed
+ * strings, as hashing millions of passwords would dominate the setup.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+final class AccountData {
+  static final String PASSWORD = "secret";
+  static final String HASH = "2330BD72A53028E866C2EC92F3D3A06A837972A9F7222AD6A4289DCDCF804F58";
+  static final String OTHER_HASH = "0A4BD6E4F3C4B3EEA4A8C2F14D1D5C4ED73A3F9F47B1B6D0AC4A1A7E7B0D5A12";
+  static final String[] ROLES = { "Users", "PowerUsers", "Admins", "Auditors" };
+
+  private AccountData() {
+  }
+
+  static String getUserId(int i) {
+    return "user" + i + "@example.com";
+  }
+
+  static String getPublicId(int i) {
+    return String.format("cccc%08d", i);
+  }
+
+  /**
+   * Write a temporary account file that is deleted on exit.
+   * 
+   * @param count
+   *          The number of accounts.
+   * @param hash
+   *          The password hash to use for all accounts.
+   * @return file.
+   * @throws IOException
+   *           on write errors.
+   */
+  static File writeAccountFile(int count, String hash) throws IOException {
+    return writeAccountFile(count, hash, 0);
+  }
+
+  /**
+   * Write a temporary account file where every n:th account has another
+   * password hash.
+   * 
+   * @param count
+   *          The number of accounts.
+   * @param hash
+   *          The password hash to use for most accounts.
+   * @param changeInterval
+   *          The interval between accounts with {@link #OTHER_HASH}, 0 for none.
+   * @return file.
+   * @throws IOException
+   *           on write errors.
+   */
+  static File writeAccountFile(int count, String hash, int changeInterval) throws IOException {
+    File file = File.createTempFile("accounts", ".txt");
+    file.deleteOnExit();
+    try (BufferedWriter writer = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+      for (int i = 0; i < count; i++) {
+        String accountHash = changeInterval > 0 && i % changeInterval == 0 ? OTHER_HASH : hash;
+        writer.append(getUserId(i)).append(';').append(accountHash).append(';').append(getPublicId(i)).append(';');
+        writer.append(String.valueOf(i)).append(';').append(ROLES[i % ROLES.length]).append('|');
+        if (i % 10 == 0) {
+          writer.append(ROLES[(i + 1) % ROLES.length]).append('|');
+        }
+        writer.append(";\n");
+      }
+    }
+    return file;
+  }
+}
@@ -0,0 +1,55 @@
+package com.codemint.example.yubi.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codemint.example.yubi.data.UserAccount;
+
+/**
+ * Benchmark for parsing account files of different sizes. Each invocation
+ * reads a complete file, so it runs in single shot mode. The largest file
+ * needs a big heap, hence the fork arguments.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms8g", "-Xmx8g" })
+public class AccountFileBenchmark {
+  @Param({ "10000", "1000000", "10000000" })
+  public int lines;
+  private File _file;
+
+  @Setup
+  public void setUp() throws IOException {
+    _file = AccountData.writeAccountFile(lines, AccountData.HASH);
+  }
+
+  @TearDown
+  public void tearDown() {
+    _file.delete();
+  }
+
+  @Benchmark
+  public Set<UserAccount> readAccounts() throws IOException {
+    return UserAccount.readAccounts(_file);
+  }
+}
@@ -0,0 +1,56 @@
+package com.codemint.example.yubi.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.codemint.example.yubi.data.AccountStore;
+import com.codemint.example.yubi.data.UserAccount;
+
+/**
+ * Benchmark for looking up accounts by id, for existing and unknown users.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AccountLookupBenchmark {
+  @Param({ "10000" })
+  public int accounts;
+  private AccountStore _accountStore;
+  private String[] _userIds;
+  private int _next;
+
+  @Setup
+  public void setUp() throws IOException {
+    File file = AccountData.writeAccountFile(accounts, AccountData.HASH);
+    _accountStore = AccountStore.load(file.getPath());
+    file.delete();
+    _userIds = new String[1024];
+    for (int i = 0; i < _userIds.length; i++) {
+      // New strings, as ids from a request are never the interned keys
+      _userIds[i] = new String(AccountData.getUserId(i * 7 % accounts));
+    }
+  }
+
+  @Benchmark
+  public UserAccount lookupExisting() {
+    _next = (_next + 1) & (_userIds.length - 1);
+    return _accountStore.getAccount(_userIds[_next]);
+  }
+
+  @Benchmark
+  public UserAccount lookupUnknown() {
+    return _accountStore.getAccount("nobody@example.com");
+  }
+}
@@ -0,0 +1,65 @@
+package com.codemint.example.yubi.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codemint.example.yubi.data.AccountStore;
+import com.codemint.example.yubi.data.AccountSync;
+
+/**
+ * Benchmark for bringing the accounts up to date with a regenerated account
+ * file where a few accounts have changed, comparing a full reload with a
+ * differential sync against the current store.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class AccountSyncBenchmark {
+  @Param({ "100000", "1000000" })
+  public int lines;
+  private File _file;
+  private AccountStore _accountStore;
+
+  @Setup
+  public void setUp() throws IOException {
+    File oldFile = AccountData.writeAccountFile(lines, AccountData.HASH);
+    _accountStore = AccountStore.load(oldFile.getPath());
+    oldFile.delete();
+    // Same users, but one in a hundred has a new password
+    _file = AccountData.writeAccountFile(lines, AccountData.HASH, 100);
+  }
+
+  @TearDown
+  public void tearDown() {
+    _file.delete();
+  }
+
+  @Benchmark
+  public AccountStore reload() {
+    return AccountStore.load(_file.getPath());
+  }
+
+  @Benchmark
+  public AccountStore sync() throws IOException {
+    return _accountStore.apply(AccountSync.diff(_accountStore, _file));
+  }
+}
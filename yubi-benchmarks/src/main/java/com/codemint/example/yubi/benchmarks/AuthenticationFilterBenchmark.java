@@ -0,0 +1,105 @@
+package com.codemint.example.yubi.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.codemint.example.yubi.auth.SessionPrincipal;
+import com.codemint.example.yubi.auth.SessionToken;
+import com.codemint.example.yubi.benchmarks.ServletStubs.StubFilterConfig;
+import com.codemint.example.yubi.benchmarks.ServletStubs.StubRequest;
+import com.codemint.example.yubi.benchmarks.ServletStubs.StubSession;
+import com.codemint.example.yubi.data.AccountStore;
+import com.codemint.example.yubi.data.RoleIndex;
+import com.codemint.example.yubi.data.UserAccount;
+import com.codemint.example.yubi.filter.AuthenticationFilter;
+import com.codemint.example.yubi.util.HmacSigner;
+
+/**
+ * Benchmark for {@link AuthenticationFilter#doFilter} on requests from users
+ * that are already logged in, with the user in the HTTP session or in a
+ * signed cookie. The response is a proxy that fails if used, so only the
+ * authorized path is measured.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AuthenticationFilterBenchmark {
+  // Must match the private constants in AuthenticationFilter
+  private static final String SESSION_COOKIE_NAME = "YUBI_SESSION";
+  private static final String USER_SESSION_KEY = "user";
+  private static final String ROLE_LIST = "Users,PowerUsers,Admins,Auditors";
+  @Param({ "session", "cookie" })
+  public String sessionMode;
+  private final AuthenticationFilter _filter = new AuthenticationFilter();
+  private final HttpServletResponse _response = ServletStubs.unsupported(HttpServletResponse.class);
+  private final CountingFilterChain _chain = new CountingFilterChain();
+  private StubRequest _request;
+
+  @Setup
+  public void setUp() throws IOException, ServletException {
+    File file = AccountData.writeAccountFile(100, AccountData.HASH);
+    String userId = AccountData.getUserId(0);
+    StubFilterConfig config = new StubFilterConfig();
+    config.setInitParameter("accountFile", file.getPath());
+    config.setInitParameter("sessionMode", sessionMode);
+    config.setInitParameter("roles", ROLE_LIST);
+    _filter.init(config);
+    AccountStore accountStore = AccountStore.load(file.getPath());
+    UserAccount account = accountStore.getAccount(userId);
+    long roleMask = RoleIndex.parse(ROLE_LIST).getMask(account.getRoles());
+
+    if ("cookie".equals(sessionMode)) {
+      long expiresAtSeconds = System.currentTimeMillis() / 1000L + TimeUnit.DAYS.toSeconds(1L);
+      String token = new SessionToken(null, userId, roleMask, account.getVersion(), expiresAtSeconds).sign(HmacSigner
+          .fromClasspath("/session-keys.properties"));
+      _request = new StubRequest("/index.jsp", "GET", new Cookie[] { new Cookie(SESSION_COOKIE_NAME, token) }, null);
+    } else {
+      StubSession session = new StubSession();
+      session.setAttribute(USER_SESSION_KEY, new SessionPrincipal(null, userId, roleMask, account.getVersion()));
+      _request = new StubRequest("/index.jsp", "GET", null, session);
+    }
+    file.delete();
+  }
+
+  @TearDown
+  public void tearDown() {
+    _filter.destroy();
+    if (_chain._count == 0L) {
+      throw new IllegalStateException("The filter never passed the request on");
+    }
+  }
+
+  @Benchmark
+  public void doFilter() throws IOException, ServletException {
+    _filter.doFilter(_request, _response, _chain);
+  }
+
+  private static final class CountingFilterChain implements FilterChain {
+    private long _count;
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response) {
+      _count++;
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package com.codemint.example.yubi.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import com.yubico.client.v2.YubicoClient;
+
+/**
+ * Benchmark for the one time password format check.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class OtpFormatBenchmark {
+  private String _validOtp = "ccccccdudunkjdgkhdbcrevuvenfhnruvcfudhtfrtbi";
+  private String _invalidOtp = "this is not a one time password at all!!!!!";
+
+  @Benchmark
+  public boolean validFormat() {
+    return YubicoClient.isValidOTPFormat(_validOtp);
+  }
+
+  @Benchmark
+  public boolean invalidFormat() {
+    return YubicoClient.isValidOTPFormat(_invalidOtp);
+  }
+}
@@ -0,0 +1,41 @@
+package com.codemint.example.yubi.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import com.codemint.example.yubi.util.PasswordEncoder;
+
+/**
+ * Benchmarks for password hashing and verification.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PasswordEncoderBenchmark {
+  private static final String USER_ID = "erik.wramner@codemint.com";
+  private static final int SALT = -1150687556;
+  private final String _hashedPassword = PasswordEncoder.encodePasswordForUser(USER_ID, SALT, "secret");
+
+  @Benchmark
+  public String encode() {
+    return PasswordEncoder.encodePasswordForUser(USER_ID, SALT, "secret");
+  }
+
+  @Benchmark
+  public boolean verify() {
+    return _hashedPassword.equals(PasswordEncoder.encodePasswordForUser(USER_ID, SALT, "secret"));
+  }
+
+  @Benchmark
+  public boolean verifyWrongPassword() {
+    return _hashedPassword.equals(PasswordEncoder.encodePasswordForUser(USER_ID, SALT, "wrong"));
+  }
+}
@@ -0,0 +1,68 @@
+package com.codemint.example.yubi.benchmarks;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.codemint.example.yubi.data.RoleIndex;
+import com.codemint.example.yubi.data.UserAccount;
+import com.codemint.example.yubi.jaas.SimplePrincipal;
+
+/**
+ * Benchmarks for building roles and principals after a successful login, the
+ * way the JAAS modules, the JASPIC module and the session cookies do it.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PrincipalBenchmark {
+  private UserAccount _account;
+  private RoleIndex _roleIndex;
+  private long _roleMask;
+
+  @Setup
+  public void setUp() {
+    _account = new UserAccount(AccountData.getUserId(1), AccountData.HASH, AccountData.getPublicId(1), 1);
+    _account.addRole("Users");
+    _account.addRole("PowerUsers");
+    _roleIndex = new RoleIndex(Arrays.asList(AccountData.ROLES));
+    _roleMask = _roleIndex.getMask(_account.getRoles());
+  }
+
+  @Benchmark
+  public List<Principal> jaasPrincipals() {
+    List<Principal> principals = new ArrayList<>();
+    principals.add(new SimplePrincipal(_account.getEmail()));
+    for (String roleName : _account.getRoles()) {
+      principals.add(new SimplePrincipal(roleName));
+    }
+    return principals;
+  }
+
+  @Benchmark
+  public String[] roleArray() {
+    return _account.getRoles().toArray(new String[0]);
+  }
+
+  @Benchmark
+  public long roleMask() {
+    return _roleIndex.getMask(_account.getRoles());
+  }
+
+  @Benchmark
+  public String[] roleNamesFromMask() {
+    return _roleIndex.getRoleNames(_roleMask);
+  }
+}
@@ -0,0 +1,253 @@
+package com.codemint.example.yubi.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Minimal servlet API implementations for benchmarking filters without a
+ * container. The methods used on the hot path are implemented in plain
+ * classes, everything else is a proxy that fails if called, so a benchmark
+ * cannot silently measure an unexpected code path.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+final class ServletStubs {
+
+  private ServletStubs() {
+  }
+
+  /**
+   * Create a proxy that throws {@link UnsupportedOperationException} for all
+   * methods except those in {@link Object}.
+   * 
+   * @param type
+   *          The interface.
+   * @return proxy.
+   */
+  static <T> T unsupported(Class<T> type) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getDeclaringClass() == Object.class) {
+          switch (method.getName()) {
+          case "hashCode":
+            return System.identityHashCode(proxy);
+          case "equals":
+            return proxy == args[0];
+          default:
+            return "Unsupported " + method.getDeclaringClass().getSimpleName();
+          }
+        }
+        throw new UnsupportedOperationException(method.toString());
+      }
+    }));
+  }
+
+  /**
+   * Filter configuration with init parameters and a servlet context without
+   * resources.
+   */
+  static final class StubFilterConfig implements FilterConfig {
+    private final Map<String, String> _initParameters = new HashMap<>();
+    private final ServletContext _servletContext = (ServletContext) Proxy.newProxyInstance(
+        ServletContext.class.getClassLoader(), new Class<?>[] { ServletContext.class }, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getResourceAsStream")) {
+              return null;
+            }
+            throw new UnsupportedOperationException(method.toString());
+          }
+        });
+
+    void setInitParameter(String name, String value) {
+      _initParameters.put(name, value);
+    }
+
+    @Override
+    public String getFilterName() {
+      return "benchmark";
+    }
+
+    @Override
+    public ServletContext getServletContext() {
+      return _servletContext;
+    }
+
+    @Override
+    public String getInitParameter(String name) {
+      return _initParameters.get(name);
+    }
+
+    @Override
+    public Enumeration<String> getInitParameterNames() {
+      return Collections.enumeration(_initParameters.keySet());
+    }
+  }
+
+  /**
+   * Request with fixed URI, method, cookies and session.
+   */
+  static final class StubRequest extends HttpServletRequestWrapper {
+    private final String _requestUri;
+    private final String _method;
+    private final Cookie[] _cookies;
+    private final HttpSession _session;
+
+    StubRequest(String requestUri, String method, Cookie[] cookies, HttpSession session) {
+      super(unsupported(HttpServletRequest.class));
+      _requestUri = requestUri;
+      _method = method;
+      _cookies = cookies;
+      _session = session;
+    }
+
+    @Override
+    public String getRequestURI() {
+      return _requestUri;
+    }
+
+    @Override
+    public String getContextPath() {
+      return "";
+    }
+
+    @Override
+    public String getMethod() {
+      return _method;
+    }
+
+    @Override
+    public Cookie[] getCookies() {
+      return _cookies;
+    }
+
+    @Override
+    public HttpSession getSession() {
+      return getSession(true);
+    }
+
+    @Override
+    public HttpSession getSession(boolean create) {
+      if (_session == null && create) {
+        throw new UnsupportedOperationException("No session");
+      }
+      return _session;
+    }
+
+    @Override
+    public String getRemoteAddr() {
+      return "127.0.0.1";
+    }
+
+    @Override
+    public boolean isSecure() {
+      return false;
+    }
+  }
+
+  /**
+   * Session with attributes in a map.
+   */
+  @SuppressWarnings("deprecation")
+  static final class StubSession implements HttpSession {
+    private final Map<String, Object> _attributes = new HashMap<>();
+    private final long _creationTime = System.currentTimeMillis();
+
+    @Override
+    public long getCreationTime() {
+      return _creationTime;
+    }
+
+    @Override
+    public String getId() {
+      return "benchmark";
+    }
+
+    @Override
+    public long getLastAccessedTime() {
+      return _creationTime;
+    }
+
+    @Override
+    public ServletContext getServletContext() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setMaxInactiveInterval(int interval) {
+    }
+
+    @Override
+    public int getMaxInactiveInterval() {
+      return 0;
+    }
+
+    @Override
+    public javax.servlet.http.HttpSessionContext getSessionContext() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+      return _attributes.get(name);
+    }
+
+    @Override
+    public Object getValue(String name) {
+      return getAttribute(name);
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNames() {
+      return Collections.enumeration(_attributes.keySet());
+    }
+
+    @Override
+    public String[] getValueNames() {
+      return _attributes.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+      _attributes.put(name, value);
+    }
+
+    @Override
+    public void putValue(String name, Object value) {
+      setAttribute(name, value);
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+      _attributes.remove(name);
+    }
+
+    @Override
+    public void removeValue(String name) {
+      removeAttribute(name);
+    }
+
+    @Override
+    public void invalidate() {
+      _attributes.clear();
+    }
+
+    @Override
+    public boolean isNew() {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package com.codemint.example.yubi.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.codemint.example.yubi.auth.SessionPrincipal;
+import com.codemint.example.yubi.data.RoleIndex;
+import com.codemint.example.yubi.data.UserAccount;
+
+/**
+ * Benchmark for writing and reading the session principal with Java
+ * serialization, the way containers persist and replicate sessions. The
+ * serialized size is printed at setup.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SessionPrincipalBenchmark {
+  private SessionPrincipal _principal;
+  private byte[] _serialized;
+
+  @Setup
+  public void setUp() throws IOException {
+    UserAccount account = new UserAccount(AccountData.getUserId(1), AccountData.HASH, AccountData.getPublicId(1), 1);
+    account.addRole("Users");
+    account.addRole("PowerUsers");
+    _principal = SessionPrincipal.forAccount(null, account, new RoleIndex(Arrays.asList(AccountData.ROLES)));
+    _serialized = serialize();
+    System.out.println("Serialized session principal: " + _serialized.length + " bytes");
+  }
+
+  @Benchmark
+  public byte[] serialize() throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+    try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+      oos.writeObject(_principal);
+    }
+    return bos.toByteArray();
+  }
+
+  @Benchmark
+  public Object deserialize() throws IOException, ClassNotFoundException {
+    try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(_serialized))) {
+      return ois.readObject();
+    }
+  }
+}
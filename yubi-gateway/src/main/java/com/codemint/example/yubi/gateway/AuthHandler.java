@@ -0,0 +1,79 @@
+package com.codemint.example.yubi.gateway;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codemint.example.yubi.auth.SessionToken;
+import com.codemint.example.yubi.auth.TwoFactorVerifier;
+import com.codemint.example.yubi.data.AccountStore;
+import com.codemint.example.yubi.data.RoleIndex;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Answers the subrequest the reverse proxy sends for each request to a
+ * protected backend (auth_request in nginx, forwardAuth in Traefik). The
+ * session cookie is verified in memory: 200 with the user in X-Auth-User and
+ * the roles in X-Auth-Roles means the proxy should pass the request on, 401
+ * that the user must log in and 403 that the user lacks the role given with
+ * the query parameter "role". The cookie must have been issued for the
+ * current version of the account, so a user who has been removed or whose
+ * password or roles have changed must log in again.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+class AuthHandler implements HttpHandler {
+  private static final Logger _logger = LoggerFactory.getLogger(AuthHandler.class);
+  private static final String NOT_READY_RETRY_AFTER_SECONDS = "5";
+  private final TwoFactorVerifier _verifier;
+  private final SessionCookies _cookies;
+
+  AuthHandler(TwoFactorVerifier verifier, SessionCookies cookies) {
+    _verifier = verifier;
+    _cookies = cookies;
+  }
+
+  @Override
+  public void handle(HttpExchange exchange) throws IOException {
+    SessionToken token = _cookies.read(exchange, System.currentTimeMillis());
+    if (token == null) {
+      Exchanges.sendStatus(exchange, 401);
+      return;
+    }
+    RoleIndex roleIndex = _cookies.getRoleIndex();
+    AccountStore accountStore = _verifier.getAccountStore();
+    if (accountStore == null) {
+      exchange.getResponseHeaders().set("Retry-After", NOT_READY_RETRY_AFTER_SECONDS);
+      Exchanges.sendStatus(exchange, 503);
+      return;
+    }
+    if (!token.isCurrent(accountStore.getAccount(token.getUserId()))) {
+      _logger.debug("Rejecting session for changed or removed account {}", token.getUserId());
+      Exchanges.sendStatus(exchange, 401);
+      return;
+    }
+    String role = Exchanges.getQuery(exchange).get("role");
+    if (role != null && (token.getRoleMask() & roleIndex.getBit(role)) == 0L) {
+      Exchanges.sendStatus(exchange, 403);
+      return;
+    }
+    Headers headers = exchange.getResponseHeaders();
+    headers.set("X-Auth-User", token.getUserId());
+    headers.set("X-Auth-Roles", join(roleIndex.getRoleNames(token.getRoleMask())));
+    Exchanges.sendStatus(exchange, 200);
+  }
+
+  private static String join(String[] roles) {
+    StringBuilder sb = new StringBuilder();
+    for (String role : roles) {
+      if (sb.length() > 0) {
+        sb.append(',');
+      }
+      sb.append(role);
+    }
+    return sb.toString();
+  }
+}
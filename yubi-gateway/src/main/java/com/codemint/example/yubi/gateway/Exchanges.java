@@ -0,0 +1,220 @@
+package com.codemint.example.yubi.gateway;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Helpers for requests and responses on the JDK HTTP server.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+final class Exchanges {
+  private static final int MAX_FORM_BYTES = 8192;
+
+  private Exchanges() {
+  }
+
+  /**
+   * Get the value of a cookie.
+   *
+   * @param exchange
+   *          The exchange.
+   * @param name
+   *          The cookie name.
+   * @return value or null if not found.
+   */
+  static String getCookie(HttpExchange exchange, String name) {
+    List<String> headers = exchange.getRequestHeaders().get("Cookie");
+    if (headers != null) {
+      for (String header : headers) {
+        for (String cookie : header.split(";")) {
+          int separator = cookie.indexOf('=');
+          if (separator > 0 && cookie.substring(0, separator).trim().equals(name)) {
+            return cookie.substring(separator + 1).trim();
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Get the address of the client. Behind a proxy that is the last address in
+   * X-Forwarded-For, which the proxy adds itself; earlier addresses can be
+   * forged by the client.
+   *
+   * @param exchange
+   *          The exchange.
+   * @return address.
+   */
+  static String getRemoteAddress(HttpExchange exchange) {
+    String forwardedFor = exchange.getRequestHeaders().getFirst("X-Forwarded-For");
+    if (forwardedFor != null) {
+      String address = forwardedFor.substring(forwardedFor.lastIndexOf(',') + 1).trim();
+      if (!address.isEmpty()) {
+        return address;
+      }
+    }
+    return exchange.getRemoteAddress().getAddress().getHostAddress();
+  }
+
+  /**
+   * Check if the client used HTTPS to reach the proxy.
+   *
+   * @param exchange
+   *          The exchange.
+   * @return true if secure.
+   */
+  static boolean isSecure(HttpExchange exchange) {
+    return "https".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("X-Forwarded-Proto"));
+  }
+
+  /**
+   * Parse the query string of the request.
+   *
+   * @param exchange
+   *          The exchange.
+   * @return parameters.
+   */
+  static Map<String, String> getQuery(HttpExchange exchange) {
+    return parseParameters(exchange.getRequestURI().getRawQuery());
+  }
+
+  /**
+   * Read and parse a URL encoded form.
+   *
+   * @param exchange
+   *          The exchange.
+   * @return parameters or null if the form is too large.
+   * @throws IOException
+   *           on read errors.
+   */
+  static Map<String, String> readForm(HttpExchange exchange) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    try (InputStream is = exchange.getRequestBody()) {
+      int count;
+      while ((count = is.read(buffer)) != -1) {
+        bos.write(buffer, 0, count);
+        if (bos.size() > MAX_FORM_BYTES) {
+          return null;
+        }
+      }
+    }
+    return parseParameters(new String(bos.toByteArray(), StandardCharsets.US_ASCII));
+  }
+
+  private static Map<String, String> parseParameters(String encoded) {
+    Map<String, String> params = new HashMap<>();
+    if (encoded != null) {
+      for (String pair : encoded.split("&")) {
+        int separator = pair.indexOf('=');
+        if (separator > 0) {
+          try {
+            params.put(pair.substring(0, separator), URLDecoder.decode(pair.substring(separator + 1), "UTF-8"));
+          } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            // Ignore malformed parameters
+          }
+        }
+      }
+    }
+    return params;
+  }
+
+  /**
+   * Send a response without body.
+   *
+   * @param exchange
+   *          The exchange.
+   * @param status
+   *          The HTTP status.
+   * @throws IOException
+   *           on write errors.
+   */
+  static void sendStatus(HttpExchange exchange, int status) throws IOException {
+    exchange.sendResponseHeaders(status, -1L);
+    exchange.close();
+  }
+
+  /**
+   * Send a redirect.
+   *
+   * @param exchange
+   *          The exchange.
+   * @param location
+   *          The new location.
+   * @throws IOException
+   *           on write errors.
+   */
+  static void sendRedirect(HttpExchange exchange, String location) throws IOException {
+    exchange.getResponseHeaders().set("Location", location);
+    sendStatus(exchange, 302);
+  }
+
+  /**
+   * Send an HTML page.
+   *
+   * @param exchange
+   *          The exchange.
+   * @param status
+   *          The HTTP status.
+   * @param html
+   *          The page.
+   * @throws IOException
+   *           on write errors.
+   */
+  static void sendHtml(HttpExchange exchange, int status, String html) throws IOException {
+    byte[] body = html.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+    exchange.getResponseHeaders().set("Cache-Control", "no-store");
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream os = exchange.getResponseBody()) {
+      os.write(body);
+    }
+    exchange.close();
+  }
+
+  /**
+   * Escape text for HTML content and attribute values.
+   *
+   * @param text
+   *          The text.
+   * @return escaped text.
+   */
+  static String escapeHtml(String text) {
+    StringBuilder sb = new StringBuilder(text.length() + 16);
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      switch (c) {
+      case '<':
+        sb.append("&lt;");
+        break;
+      case '>':
+        sb.append("&gt;");
+        break;
+      case '&':
+        sb.append("&amp;");
+        break;
+      case '"':
+        sb.append("&quot;");
+        break;
+      case '\'':
+        sb.append("&#39;");
+        break;
+      default:
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,159 @@
+package com.codemint.example.yubi.gateway;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codemint.example.yubi.auth.TwoFactorVerifier;
+import com.codemint.example.yubi.data.RoleIndex;
+import com.codemint.example.yubi.util.AdaptiveConcurrencyLimit;
+import com.codemint.example.yubi.util.HmacSigner;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Standalone login service for the forward authentication pattern. A reverse
+ * proxy in front of the applications sends a subrequest to the auth path for
+ * every request and passes the request on only if the answer is 200, so the
+ * applications need no login code of their own. The gateway serves the login
+ * form with password and OTP itself and keeps the user in a signed session
+ * cookie, which the auth path verifies in memory.
+ * <p>
+ * With the default base path /yubi the paths are /yubi/auth, /yubi/login and
+ * /yubi/logout. For nginx:
+ *
+ * <pre>
+ * location /yubi/ { proxy_pass http://127.0.0.1:9091; }
+ * location = /yubi/auth {
+ *   internal;
+ *   proxy_pass http://127.0.0.1:9091;
+ *   proxy_pass_request_body off;
+ *   proxy_set_header Content-Length "";
+ * }
+ * location / {
+ *   auth_request /yubi/auth;
+ *   auth_request_set $user $upstream_http_x_auth_user;
+ *   proxy_set_header X-Auth-User $user;
+ *   error_page 401 = @login;
+ *   proxy_pass http://backend;
+ * }
+ * location @login { return 302 /yubi/login?rd=$request_uri; }
+ * </pre>
+ *
+ * The proxy must set X-Forwarded-For and X-Forwarded-Proto on the login
+ * requests, as the client address is used for rate limits and the protocol
+ * for the Secure cookie flag. Therefore the gateway listens on the loopback
+ * interface by default and must only be reachable through the proxy.
+ * <p>
+ * Accounts, Yubico settings and session keys are the same as for the other
+ * examples. The session keys are read from the file given with
+ * --session-keys, or from session-keys.properties on the class path. The
+ * roles in the session cookie are given with --roles, separated by commas;
+ * the bits follow the list order, so new roles must be appended and every
+ * gateway node must have the same list.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+public class Gateway {
+  private static final Logger _logger = LoggerFactory.getLogger(Gateway.class);
+  private static final Map<String, String> DEFAULT_OPTIONS = new LinkedHashMap<>();
+  private final HttpServer _server;
+  private final ExecutorService _executor;
+
+  static {
+    DEFAULT_OPTIONS.put("bind", "127.0.0.1");
+    DEFAULT_OPTIONS.put("port", "9091");
+    DEFAULT_OPTIONS.put("base-path", "/yubi");
+    DEFAULT_OPTIONS.put("account-file", "etc/user_accounts.txt");
+    DEFAULT_OPTIONS.put("roles", "Users,PowerUsers");
+    DEFAULT_OPTIONS.put("session-keys", "");
+    DEFAULT_OPTIONS.put("session-max-age", "1800");
+    DEFAULT_OPTIONS.put("cookie-domain", "");
+    DEFAULT_OPTIONS.put("auth-threads", "16");
+    DEFAULT_OPTIONS.put("min-concurrent-logins", "4");
+    DEFAULT_OPTIONS.put("max-concurrent-logins", "64");
+  }
+
+  Gateway(Map<String, String> options) throws IOException {
+    TwoFactorVerifier verifier = TwoFactorVerifier.createDefault(options.get("account-file"));
+    String domain = options.get("cookie-domain");
+    SessionCookies cookies = new SessionCookies(RoleIndex.parse(options.get("roles")), loadSigner(options.get(
+        "session-keys")), Integer.parseInt(options.get("session-max-age")), domain.isEmpty() ? null : domain);
+    AdaptiveConcurrencyLimit loginLimit = new AdaptiveConcurrencyLimit(Integer.parseInt(options.get(
+        "min-concurrent-logins")), Integer.parseInt(options.get("max-concurrent-logins")));
+    String basePath = options.get("base-path");
+    LoginHandler loginHandler = new LoginHandler(verifier, cookies, loginLimit, basePath + "/login", basePath
+        + "/logout");
+    _server = HttpServer.create(new InetSocketAddress(options.get("bind"), Integer.parseInt(options.get("port"))),
+        1024);
+    _server.createContext(basePath + "/auth", new AuthHandler(verifier, cookies));
+    _server.createContext(basePath + "/login", loginHandler);
+    _server.createContext(basePath + "/logout", loginHandler);
+    // Logins are limited, so the remaining threads are always free for the
+    // session checks from the proxy
+    _executor = Executors.newFixedThreadPool(loginLimit.getMaxLimit() + Integer.parseInt(options.get(
+        "auth-threads")));
+    _server.setExecutor(_executor);
+  }
+
+  public static void main(String[] args) throws IOException {
+    Map<String, String> options = parseOptions(args);
+    if (options == null) {
+      System.out.println("Usage: java -jar gateway.jar [--option value]...");
+      System.out.println("Options and defaults:");
+      for (Map.Entry<String, String> entry : DEFAULT_OPTIONS.entrySet()) {
+        System.out.printf("  --%-22s %s%n", entry.getKey(), entry.getValue());
+      }
+      System.exit(1);
+    }
+    final Gateway gateway = new Gateway(options);
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      @Override
+      public void run() {
+        gateway.stop();
+      }
+    }, "yubi-gateway-shutdown"));
+    gateway.start();
+  }
+
+  public void start() {
+    _server.start();
+    _logger.info("Gateway listening on {}", _server.getAddress());
+  }
+
+  public void stop() {
+    _server.stop(1);
+    _executor.shutdownNow();
+  }
+
+  private static HmacSigner loadSigner(String path) throws IOException {
+    if (path.isEmpty()) {
+      return HmacSigner.fromClasspath("/session-keys.properties");
+    }
+    Properties properties = new Properties();
+    try (InputStream is = new FileInputStream(path)) {
+      properties.load(is);
+    }
+    return new HmacSigner(properties);
+  }
+
+  private static Map<String, String> parseOptions(String[] args) {
+    Map<String, String> options = new LinkedHashMap<>(DEFAULT_OPTIONS);
+    for (int i = 0; i < args.length; i += 2) {
+      String name = args[i].startsWith("--") ? args[i].substring(2) : null;
+      if (name == null || !options.containsKey(name) || i + 1 >= args.length) {
+        return null;
+      }
+      options.put(name, args[i + 1]);
+    }
+    return options;
+  }
+}
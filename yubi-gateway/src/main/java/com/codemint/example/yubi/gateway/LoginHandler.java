@@ -0,0 +1,169 @@
+package com.codemint.example.yubi.gateway;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codemint.example.yubi.auth.LoginResult;
+import com.codemint.example.yubi.auth.LoginResult.Outcome;
+import com.codemint.example.yubi.auth.TwoFactorVerifier;
+import com.codemint.example.yubi.metrics.LoginMetrics;
+import com.codemint.example.yubi.util.AdaptiveConcurrencyLimit;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Serves the login form, verifies password and OTP and issues the session
+ * cookie, then redirects to the page the user asked for (the parameter "rd",
+ * which must be a path on the same site). The logout path removes the cookie.
+ * <p>
+ * Logins are admitted through an {@link AdaptiveConcurrencyLimit} as in the
+ * application filter, so they can never take all threads from the session
+ * checks; attempts over the limit get 503 with Retry-After.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+class LoginHandler implements HttpHandler {
+  private static final Logger _logger = LoggerFactory.getLogger(LoginHandler.class);
+  private static final String NOT_READY_RETRY_AFTER_SECONDS = "5";
+  private static final String SHED_RETRY_AFTER_SECONDS = "1";
+  private static final String DEFAULT_REDIRECT = "/";
+  private final TwoFactorVerifier _verifier;
+  private final SessionCookies _cookies;
+  private final AdaptiveConcurrencyLimit _loginLimit;
+  private final String _loginPath;
+  private final String _logoutPath;
+  private final String _template;
+
+  /**
+   * Constructor.
+   *
+   * @param verifier
+   *          The verifier.
+   * @param cookies
+   *          The session cookies.
+   * @param loginLimit
+   *          The limit on logins in progress.
+   * @param loginPath
+   *          The path of the login form as seen by the browser.
+   * @param logoutPath
+   *          The path for logout as seen by the browser.
+   * @throws IOException
+   *           if the form template can't be read.
+   */
+  LoginHandler(TwoFactorVerifier verifier, SessionCookies cookies, AdaptiveConcurrencyLimit loginLimit,
+      String loginPath, String logoutPath) throws IOException {
+    _verifier = verifier;
+    _cookies = cookies;
+    _loginLimit = loginLimit;
+    _loginPath = loginPath;
+    _logoutPath = logoutPath;
+    _template = readTemplate("/login.html");
+  }
+
+  @Override
+  public void handle(HttpExchange exchange) throws IOException {
+    String method = exchange.getRequestMethod();
+    if (exchange.getRequestURI().getPath().equals(_logoutPath)) {
+      exchange.getResponseHeaders().add("Set-Cookie", _cookies.clear(Exchanges.isSecure(exchange)));
+      Exchanges.sendRedirect(exchange, _loginPath);
+    } else if ("GET".equals(method)) {
+      sendForm(exchange, 200, getRedirect(Exchanges.getQuery(exchange)), "");
+    } else if ("POST".equals(method)) {
+      login(exchange);
+    } else {
+      Exchanges.sendStatus(exchange, 405);
+    }
+  }
+
+  private void login(HttpExchange exchange) throws IOException {
+    Map<String, String> form = Exchanges.readForm(exchange);
+    if (form == null) {
+      Exchanges.sendStatus(exchange, 413);
+      return;
+    }
+    if (!_loginLimit.tryAcquire()) {
+      _logger.debug("Shedding login, {} in progress", _loginLimit.getInFlight());
+      LoginMetrics.getInstance().recordShed();
+      exchange.getResponseHeaders().set("Retry-After", SHED_RETRY_AFTER_SECONDS);
+      Exchanges.sendStatus(exchange, 503);
+      return;
+    }
+    long startTime = System.nanoTime();
+    long latency = -1L;
+    LoginResult result;
+    try {
+      result = _verifier.verify(form.get("email"), form.get("password"), form.get("otp"),
+          Exchanges.getRemoteAddress(exchange));
+      if (isValidationServiceCalled(result.getOutcome())) {
+        latency = System.nanoTime() - startTime;
+      }
+    } finally {
+      _loginLimit.release(latency);
+    }
+    String redirect = getRedirect(form);
+    if (result.isSuccess()) {
+      exchange.getResponseHeaders().add("Set-Cookie", _cookies.create(result.getAccount(), Exchanges.isSecure(
+          exchange)));
+      Exchanges.sendRedirect(exchange, redirect);
+    } else if (result.getOutcome() == Outcome.RATE_LIMITED) {
+      Exchanges.sendStatus(exchange, 429);
+    } else if (result.getOutcome() == Outcome.NOT_READY) {
+      sendNotReady(exchange);
+    } else {
+      sendForm(exchange, 401, redirect, "Login failed, please try again!");
+    }
+  }
+
+  private static boolean isValidationServiceCalled(Outcome outcome) {
+    return outcome == Outcome.SUCCESS || outcome == Outcome.NOT_OK || outcome == Outcome.WRONG_KEY
+        || outcome == Outcome.UNREACHABLE;
+  }
+
+  private static void sendNotReady(HttpExchange exchange) throws IOException {
+    exchange.getResponseHeaders().set("Retry-After", NOT_READY_RETRY_AFTER_SECONDS);
+    Exchanges.sendStatus(exchange, 503);
+  }
+
+  private void sendForm(HttpExchange exchange, int status, String redirect, String message) throws IOException {
+    Exchanges.sendHtml(exchange, status, _template.replace("${action}", Exchanges.escapeHtml(_loginPath))
+        .replace("${redirect}", Exchanges.escapeHtml(redirect)).replace("${message}", Exchanges.escapeHtml(message)));
+  }
+
+  /**
+   * Get the page to return to after login. Only paths on the same site are
+   * accepted, so the form cannot be used to send users to another site.
+   */
+  private static String getRedirect(Map<String, String> params) {
+    String redirect = params.get("rd");
+    if (redirect == null || !redirect.startsWith("/") || redirect.startsWith("//") || redirect.startsWith("/\\")) {
+      return DEFAULT_REDIRECT;
+    }
+    for (int i = 0; i < redirect.length(); i++) {
+      if (redirect.charAt(i) < ' ') {
+        return DEFAULT_REDIRECT;
+      }
+    }
+    return redirect;
+  }
+
+  private static String readTemplate(String resource) throws IOException {
+    try (InputStream is = LoginHandler.class.getResourceAsStream(resource)) {
+      if (is == null) {
+        throw new IOException("Failed to read " + resource);
+      }
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      int count;
+      while ((count = is.read(buffer)) != -1) {
+        bos.write(buffer, 0, count);
+      }
+      return new String(bos.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+}
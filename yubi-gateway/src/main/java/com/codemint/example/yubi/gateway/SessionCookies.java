@@ -0,0 +1,113 @@
+package com.codemint.example.yubi.gateway;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codemint.example.yubi.auth.SessionToken;
+import com.codemint.example.yubi.data.RoleIndex;
+import com.codemint.example.yubi.data.UserAccount;
+import com.codemint.example.yubi.util.HmacSigner;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Issues and reads the signed session cookie of the gateway. The cookie holds
+ * a {@link SessionToken} with the user id, the roles as a mask, the account
+ * version and the expiry time, so it is checked with one HMAC and no lookups
+ * but the account.
+ * <p>
+ * The role bits follow the configured role list, so all gateway nodes agree
+ * on them and new roles must be appended to the list. Roles that are not
+ * listed are left out of the cookie with a warning.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+final class SessionCookies {
+  static final String COOKIE_NAME = "YUBI_SESSION";
+  private static final Logger _logger = LoggerFactory.getLogger(SessionCookies.class);
+  private final RoleIndex _roleIndex;
+  private final HmacSigner _signer;
+  private final int _maxAgeSeconds;
+  private final String _domain;
+
+  /**
+   * Constructor.
+   *
+   * @param roleIndex
+   *          The index for the configured roles.
+   * @param signer
+   *          The signer for the cookies.
+   * @param maxAgeSeconds
+   *          The lifetime of a session.
+   * @param domain
+   *          The cookie domain or null for the host of the proxy.
+   */
+  SessionCookies(RoleIndex roleIndex, HmacSigner signer, int maxAgeSeconds, String domain) {
+    _roleIndex = roleIndex;
+    _signer = signer;
+    _maxAgeSeconds = maxAgeSeconds;
+    _domain = domain;
+  }
+
+  /**
+   * Get the session token from the cookie in a request.
+   *
+   * @param exchange
+   *          The exchange.
+   * @param nowMillis
+   *          The current time.
+   * @return token or null if missing, invalid or expired.
+   */
+  SessionToken read(HttpExchange exchange, long nowMillis) {
+    String value = Exchanges.getCookie(exchange, COOKIE_NAME);
+    return value != null ? SessionToken.verify(_signer, value, nowMillis) : null;
+  }
+
+  /**
+   * Create a Set-Cookie header value with a new session for an account.
+   *
+   * @param account
+   *          The account.
+   * @param secure
+   *          True to send the cookie over HTTPS only.
+   * @return header value.
+   */
+  String create(UserAccount account, boolean secure) {
+    List<String> unknownRoles = _roleIndex.getUnknownRoles(account.getRoles());
+    if (!unknownRoles.isEmpty()) {
+      _logger.warn("Roles {} of {} are not in the role list and are left out", unknownRoles, account.getEmail());
+    }
+    long expiresAtSeconds = System.currentTimeMillis() / 1000L + _maxAgeSeconds;
+    SessionToken token = new SessionToken(null, account.getEmail(), _roleIndex.getMask(account.getRoles()), account
+        .getVersion(), expiresAtSeconds);
+    return format(token.sign(_signer), _maxAgeSeconds, secure);
+  }
+
+  /**
+   * Create a Set-Cookie header value that removes the session.
+   *
+   * @param secure
+   *          True to send the cookie over HTTPS only.
+   * @return header value.
+   */
+  String clear(boolean secure) {
+    return format("", 0, secure);
+  }
+
+  RoleIndex getRoleIndex() {
+    return _roleIndex;
+  }
+
+  private String format(String value, int maxAgeSeconds, boolean secure) {
+    StringBuilder sb = new StringBuilder(COOKIE_NAME).append('=').append(value);
+    sb.append("; Path=/; Max-Age=").append(maxAgeSeconds).append("; HttpOnly; SameSite=Lax");
+    if (_domain != null) {
+      sb.append("; Domain=").append(_domain);
+    }
+    if (secure) {
+      sb.append("; Secure");
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,61 @@
+package com.codemint.example.yubi.jaas;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Factory for servers that expose the current request through the JACC
+ * PolicyContext, such as GlassFish, WebLogic and JBoss. No callback is needed,
+ * the request is looked up when the OTP is read.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public class JaccRequestCallbackAdapterFactory implements RequestCallbackAdapterFactory {
+  private static final String POLICY_CONTEXT_CLASS_NAME = "javax.security.jacc.PolicyContext";
+  private static final String REQUEST_KEY = "javax.servlet.http.HttpServletRequest";
+  private static final Logger _logger = LoggerFactory.getLogger(JaccRequestCallbackAdapterFactory.class);
+  private MethodHandle _getContext;
+
+  @Override
+  public String getName() {
+    return "JACC";
+  }
+
+  @Override
+  public boolean isAvailable() {
+    try {
+      Class<?> policyContextClass = Class.forName(POLICY_CONTEXT_CLASS_NAME);
+      _getContext = MethodHandles.publicLookup().findStatic(policyContextClass, "getContext",
+          MethodType.methodType(Object.class, String.class));
+      return true;
+    } catch (ClassNotFoundException e) {
+      return false;
+    } catch (ReflectiveOperationException | WrongMethodTypeException e) {
+      _logger.debug("Unsupported JACC policy context", e);
+      return false;
+    }
+  }
+
+  @Override
+  public RequestCallbackAdapter createAdapter(final String parameterName) {
+    return new RequestCallbackAdapter(null) {
+      @Override
+      public String getOtpParameterValue() {
+        try {
+          Object request = _getContext.invokeExact(REQUEST_KEY);
+          return request instanceof HttpServletRequest ? ((HttpServletRequest) request).getParameter(parameterName)
+              : null;
+        } catch (Throwable t) {
+          return null;
+        }
+      }
+    };
+  }
+}
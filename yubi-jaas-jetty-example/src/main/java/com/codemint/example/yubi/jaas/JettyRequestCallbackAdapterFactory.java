@@ -0,0 +1,91 @@
+package com.codemint.example.yubi.jaas;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
+import java.util.List;
+
+import javax.security.auth.callback.Callback;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Factory for Jetty, which provides request parameters through its own
+ * RequestParameterCallback. The class is accessed with method handles that
+ * are resolved once, as the login module cannot depend on Jetty classes.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public class JettyRequestCallbackAdapterFactory implements RequestCallbackAdapterFactory {
+  private static final String CALLBACK_CLASS_NAME = "org.eclipse.jetty.jaas.callback.RequestParameterCallback";
+  private static final Logger _logger = LoggerFactory.getLogger(JettyRequestCallbackAdapterFactory.class);
+  private MethodHandle _constructor;
+  private MethodHandle _setParameterName;
+  private MethodHandle _getParameterValues;
+
+  @Override
+  public String getName() {
+    return "Jetty";
+  }
+
+  @Override
+  public boolean isAvailable() {
+    try {
+      Class<?> callbackClass = Class.forName(CALLBACK_CLASS_NAME);
+      MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+      _constructor = lookup.findConstructor(callbackClass, MethodType.methodType(void.class)).asType(
+          MethodType.methodType(Callback.class));
+      _setParameterName = lookup.findVirtual(callbackClass, "setParameterName",
+          MethodType.methodType(void.class, String.class)).asType(
+          MethodType.methodType(void.class, Callback.class, String.class));
+      _getParameterValues = lookup.findVirtual(callbackClass, "getParameterValues", MethodType.methodType(List.class))
+          .asType(MethodType.methodType(List.class, Callback.class));
+      return true;
+    } catch (ClassNotFoundException e) {
+      return false;
+    } catch (ReflectiveOperationException | ClassCastException | WrongMethodTypeException e) {
+      _logger.debug("Unsupported Jetty request callback", e);
+      return false;
+    }
+  }
+
+  @Override
+  public RequestCallbackAdapter createAdapter(String parameterName) {
+    try {
+      Callback callback = (Callback) _constructor.invokeExact();
+      _setParameterName.invokeExact(callback, parameterName);
+      return new JettyRequestCallbackAdapter(callback);
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable t) {
+      throw new IllegalStateException("Failed to create Jetty request callback", t);
+    }
+  }
+
+  /**
+   * Jetty-specific adapter.
+   * 
+   * @author Erik Wramner
+   */
+  private class JettyRequestCallbackAdapter extends RequestCallbackAdapter {
+
+    JettyRequestCallbackAdapter(Callback callback) {
+      super(callback);
+    }
+
+    @Override
+    public String getOtpParameterValue() {
+      try {
+        List<?> values = (List<?>) _getParameterValues.invokeExact(_callback);
+        if (values != null && values.size() == 1) {
+          return (String) values.get(0);
+        }
+      } catch (Throwable t) {
+        // Ignore
+      }
+      return null;
+    }
+  }
+}
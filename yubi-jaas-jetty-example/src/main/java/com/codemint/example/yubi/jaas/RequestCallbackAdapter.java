@@ -0,0 +1,29 @@
+package com.codemint.example.yubi.jaas;
+
+import javax.security.auth.callback.Callback;
+
+/**
+ * Adapter with request callback and with method for extracting OTP parameter.
+ * Some containers make the request available without a callback, in that case
+ * the callback is null.
+ * 
+ * @author Erik Wramner
+ */
+public abstract class RequestCallbackAdapter {
+  protected final Callback _callback;
+
+  protected RequestCallbackAdapter(Callback callback) {
+    _callback = callback;
+  }
+
+  /**
+   * Get the callback to pass to the callback handler.
+   * 
+   * @return callback or null if not needed.
+   */
+  public Callback getCallback() {
+    return _callback;
+  }
+
+  public abstract String getOtpParameterValue();
+}
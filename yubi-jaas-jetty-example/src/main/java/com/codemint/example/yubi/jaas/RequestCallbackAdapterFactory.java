@@ -0,0 +1,39 @@
+package com.codemint.example.yubi.jaas;
+
+/**
+ * Service provider interface for container-specific
+ * {@link RequestCallbackAdapter} implementations. Additional factories can be
+ * registered in
+ * META-INF/services/com.codemint.example.yubi.jaas.RequestCallbackAdapterFactory
+ * and are tried before the built-in ones.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public interface RequestCallbackAdapterFactory {
+
+  /**
+   * Get the name of the container, for logging.
+   * 
+   * @return name.
+   */
+  String getName();
+
+  /**
+   * Check if the container is present and prepare everything needed to create
+   * adapters. This is called once, so it may be expensive, but it should not
+   * throw exceptions.
+   * 
+   * @return true if supported.
+   */
+  boolean isAvailable();
+
+  /**
+   * Create an adapter for a login attempt. Only called if
+   * {@link #isAvailable()} returned true.
+   * 
+   * @param parameterName
+   *          The name of the request parameter.
+   * @return adapter.
+   */
+  RequestCallbackAdapter createAdapter(String parameterName);
+}
@@ -0,0 +1,72 @@
+package com.codemint.example.yubi.jaas;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import javax.security.auth.login.LoginException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry that probes for a supported container once, when the class is
+ * loaded, and then creates {@link RequestCallbackAdapter} instances with the
+ * selected factory. Factories registered with {@link ServiceLoader} are tried
+ * first, followed by the built-in ones for Jetty, WebSphere and JACC-enabled
+ * servers such as GlassFish.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+final class RequestCallbackAdapters {
+  private static final Logger _logger = LoggerFactory.getLogger(RequestCallbackAdapters.class);
+  private static final RequestCallbackAdapterFactory FACTORY = findFactory();
+
+  private RequestCallbackAdapters() {
+  }
+
+  /**
+   * Create implementation-specific callback adapter for accessing request
+   * parameters.
+   * 
+   * @param parameterName
+   *          The name of the request parameter.
+   * @return request callback adapter.
+   * @throws LoginException
+   *           if no supported callback is found.
+   */
+  static RequestCallbackAdapter createAdapter(String parameterName) throws LoginException {
+    if (FACTORY == null) {
+      throw new LoginException("No supported request callback implementation found!");
+    }
+    return FACTORY.createAdapter(parameterName);
+  }
+
+  private static RequestCallbackAdapterFactory findFactory() {
+    List<RequestCallbackAdapterFactory> factories = new ArrayList<>();
+    try {
+      Iterator<RequestCallbackAdapterFactory> i = ServiceLoader.load(RequestCallbackAdapterFactory.class,
+          RequestCallbackAdapters.class.getClassLoader()).iterator();
+      while (i.hasNext()) {
+        factories.add(i.next());
+      }
+    } catch (ServiceConfigurationError e) {
+      _logger.warn("Failed to load request callback adapter factories", e);
+    }
+    factories.add(new JettyRequestCallbackAdapterFactory());
+    factories.add(new WebSphereRequestCallbackAdapterFactory());
+    factories.add(new JaccRequestCallbackAdapterFactory());
+
+    for (RequestCallbackAdapterFactory factory : factories) {
+      _logger.debug("Looking for {} request callback...", factory.getName());
+      if (factory.isAvailable()) {
+        _logger.info("Using {} request callback adapter", factory.getName());
+        return factory;
+      }
+    }
+    _logger.warn("No supported request callback implementation found!");
+    return null;
+  }
+}
@@ -0,0 +1,71 @@
+package com.codemint.example.yubi.jaas;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
+
+import javax.security.auth.callback.Callback;
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Factory for WebSphere, which provides the whole request through its
+ * WSServletRequestCallback.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public class WebSphereRequestCallbackAdapterFactory implements RequestCallbackAdapterFactory {
+  private static final String CALLBACK_CLASS_NAME = "com.ibm.wsspi.security.auth.callback.WSServletRequestCallback";
+  private static final Logger _logger = LoggerFactory.getLogger(WebSphereRequestCallbackAdapterFactory.class);
+  private MethodHandle _constructor;
+  private MethodHandle _getHttpServletRequest;
+
+  @Override
+  public String getName() {
+    return "WebSphere";
+  }
+
+  @Override
+  public boolean isAvailable() {
+    try {
+      Class<?> callbackClass = Class.forName(CALLBACK_CLASS_NAME);
+      MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+      _constructor = lookup.findConstructor(callbackClass, MethodType.methodType(void.class, String.class)).asType(
+          MethodType.methodType(Callback.class, String.class));
+      _getHttpServletRequest = lookup.findVirtual(callbackClass, "getHttpServletRequest",
+          MethodType.methodType(HttpServletRequest.class)).asType(
+          MethodType.methodType(HttpServletRequest.class, Callback.class));
+      return true;
+    } catch (ClassNotFoundException e) {
+      return false;
+    } catch (ReflectiveOperationException | ClassCastException | WrongMethodTypeException e) {
+      _logger.debug("Unsupported WebSphere request callback", e);
+      return false;
+    }
+  }
+
+  @Override
+  public RequestCallbackAdapter createAdapter(final String parameterName) {
+    try {
+      Callback callback = (Callback) _constructor.invokeExact("HttpServletRequest: ");
+      return new RequestCallbackAdapter(callback) {
+        @Override
+        public String getOtpParameterValue() {
+          try {
+            HttpServletRequest request = (HttpServletRequest) _getHttpServletRequest.invokeExact(_callback);
+            return request != null ? request.getParameter(parameterName) : null;
+          } catch (Throwable t) {
+            return null;
+          }
+        }
+      };
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable t) {
+      throw new IllegalStateException("Failed to create WebSphere request callback", t);
+    }
+  }
+}
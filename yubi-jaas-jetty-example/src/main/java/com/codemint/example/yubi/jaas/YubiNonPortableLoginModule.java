@@ -1,7 +1,6 @@
 package com.codemint.example.yubi.jaas;
 
 import java.io.IOException;
-import java.lang.reflect.Method;
 import java.security.Principal;
 import java.util.ArrayList;
 import java.util.List;
@@ -20,25 +19,29 @@ import javax.security.auth.spi.LoginModule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codemint.example.yubi.auth.LoginResult;
+import com.codemint.example.yubi.auth.LoginResult.Outcome;
+import com.codemint.example.yubi.auth.TwoFactorVerifier;
 import com.codemint.example.yubi.data.UserAccount;
-import com.codemint.example.yubi.util.PasswordEncoder;
-import com.codemint.example.yubi.util.YubicoClientFactory;
-import com.yubico.client.v2.VerificationResponse;
-import com.yubico.client.v2.YubicoClient;
-import com.yubico.client.v2.exceptions.YubicoValidationFailure;
-import com.yubico.client.v2.exceptions.YubicoVerificationException;
+import com.codemint.example.yubi.trace.LoginTracer;
+import com.codemint.example.yubi.trace.LoginTracers;
+import com.codemint.example.yubi.trace.TracePhase;
 
 /**
- * Jetty-specific login module using user id, password and one time password
- * with Yubico. This is intended as an example and is not ready for production.
+ * Container-specific login module using user id, password and one time password
+ * with Yubico. The one time password is read from the request through a
+ * container-specific callback, see {@link RequestCallbackAdapters}. This is
+ * intended as an example and is not ready for production.
  * 
  * @author Erik Wramner, CodeMint
  */
 public class YubiNonPortableLoginModule implements LoginModule {
 
   private static final Logger _logger = LoggerFactory.getLogger(YubiNonPortableLoginModule.class);
-  private static final Map<String, UserAccount> _accountMap = UserAccount.createAccountMap("etc/user_accounts.txt");
-  private final YubicoClient _yubicoClient = YubicoClientFactory.getYubicoClient();
+  private static final String OTP_PARAMETER_NAME = "j_otp";
+  private static final String ACCOUNT_FILE = "etc/user_accounts.txt";
+  private static volatile TwoFactorVerifier _verifier;
+  private final LoginTracer _tracer = LoginTracers.getTracer();
   private final List<SimplePrincipal> _principals = new ArrayList<>();
 
   private static enum State {
@@ -69,11 +72,13 @@ public class YubiNonPortableLoginModule implements LoginModule {
 
     NameCallback nameCallback = new NameCallback("User:");
     PasswordCallback passwordCallback = new PasswordCallback("Password:", false);
-    RequestCallbackAdapter requestCallbackAdapter = createRequestCallback();
+    RequestCallbackAdapter requestCallbackAdapter = RequestCallbackAdapters.createAdapter(OTP_PARAMETER_NAME);
+    Callback requestCallback = requestCallbackAdapter.getCallback();
 
     try {
       _logger.debug("Invoking callback handler...");
-      _callbackHandler.handle(new Callback[] { nameCallback, passwordCallback, requestCallbackAdapter.getCallback() });
+      _callbackHandler.handle(requestCallback != null ? new Callback[] { nameCallback, passwordCallback,
+          requestCallback } : new Callback[] { nameCallback, passwordCallback });
       _logger.debug("Callback handler returned");
     } catch (IOException e) {
       _logger.error("Callbackhandler failed", e);
@@ -90,31 +95,14 @@ public class YubiNonPortableLoginModule implements LoginModule {
     if (name != null && passwordArray != null && otp != null) {
       _logger.debug("Authenticating {}", name);
 
-      UserAccount userAccount = _accountMap.get(name);
-
-      if (userAccount.getHashedPassword().equals(
-          PasswordEncoder.encodePasswordForUser(name, userAccount.getSalt(), new String(passwordArray)))
-          && YubicoClient.isValidOTPFormat(otp)) {
-        try {
-          _logger.debug("Verifying Yubikey for {}...", name);
-          VerificationResponse response = _yubicoClient.verify(otp);
-          if (response.isOk()) {
-            if (response.getPublicId().equals(userAccount.getPublicYubiId())) {
-              loginSuccessful(userAccount);
-              return true;
-            } else {
-              _logger.warn("Login attempt for {} with wrong Yubikey {}!", name, response.getPublicId());
-            }
-          } else {
-            _logger.info("Failed to verify Yubikey for {}, response not OK", name);
-          }
-        } catch (YubicoValidationFailure e) {
-          _logger.error("Validation failure for Yubikey", e);
-        } catch (YubicoVerificationException e) {
-          _logger.error("Failed to verify Yubikey - servers unreachable?", e);
-        }
-      } else {
-        _logger.debug("Wrong password or bad format for OTP for {}", name);
+      LoginResult result = getVerifier().verify(name, new String(passwordArray), otp, null);
+      if (result.isSuccess()) {
+        loginSuccessful(result.getAccount());
+        return true;
+      } else if (result.getOutcome() == Outcome.RATE_LIMITED) {
+        throw new LoginException("Too many login attempts");
+      } else if (result.getOutcome() == Outcome.NOT_READY) {
+        throw new LoginException("Accounts not loaded yet");
       }
     }
 
@@ -136,6 +124,7 @@ public class YubiNonPortableLoginModule implements LoginModule {
     _logger.debug("Entering commit state {}", _state);
 
     if (_state == State.LOGIN_SUCCEEDED) {
+      LoginTracer.Span span = _tracer.start(TracePhase.SESSION_SETUP, _principals.get(0).getName(), null);
       try {
         for (Principal principal : _principals) {
           _subject.getPrincipals().add(principal);
@@ -145,6 +134,8 @@ public class YubiNonPortableLoginModule implements LoginModule {
       } catch (Exception e) {
         _logger.error("Commit failed", e);
         throw new LoginException("Commit failed!");
+      } finally {
+        span.end();
       }
       _state = State.COMMIT_SUCCEEDED;
       _logger.debug("Commit successful");
@@ -200,36 +191,6 @@ public class YubiNonPortableLoginModule implements LoginModule {
     _state = State.INITIALIZED;
   }
 
-  /**
-   * Create implementation-specific callback adapter for accessing request
-   * parameters. Most servers provide this, but all implementations are
-   * different.
-   * 
-   * @return request callback adapter.
-   * @throws LoginException
-   *           if no supported callback is found.
-   */
-  private RequestCallbackAdapter createRequestCallback() throws LoginException {
-    try {
-      _logger.debug("Looking for Jetty request callback...");
-      Class<?> requestCallbackClass = Class.forName("org.eclipse.jetty.jaas.callback.RequestParameterCallback");
-      Method setParameterNameMethod = requestCallbackClass.getDeclaredMethod("setParameterName", String.class);
-      Method getParameterValuesMethod = requestCallbackClass.getDeclaredMethod("getParameterValues");
-      Callback callback = Callback.class.cast(requestCallbackClass.newInstance());
-      setParameterNameMethod.invoke(callback, "j_otp");
-      JettyRequestCallbackAdapter adapter = new JettyRequestCallbackAdapter(callback, getParameterValuesMethod);
-      _logger.debug("Successfully created Jetty request callback adapter");
-      return adapter;
-    } catch (Exception e) {
-      // Move on to next implementation
-      _logger.debug("Failed to create request callback for Jetty", e);
-    }
-
-    // Add similar adapters for WebSphere, GlassFish, ...
-
-    throw new LoginException("No supported request callback implementation found!");
-  }
-
   private void loginSuccessful(UserAccount userAccount) {
     _logger.debug("User {} with public id {} authenticated", userAccount.getEmail(), userAccount.getPublicYubiId());
     _principals.add(new SimplePrincipal(userAccount.getEmail()));
@@ -241,48 +202,30 @@ public class YubiNonPortableLoginModule implements LoginModule {
   }
 
   /**
-   * Adapter with request callback and with method for extracting OTP parameter.
-   * 
-   * @author Erik Wramner
-   */
-  private static abstract class RequestCallbackAdapter {
-    protected final Callback _callback;
-
-    protected RequestCallbackAdapter(Callback callback) {
-      _callback = callback;
-    }
-
-    public Callback getCallback() {
-      return _callback;
-    }
-
-    public abstract String getOtpParameterValue();
-  }
-
-  /**
-   * Jetty-specific adapter.
+   * Get the shared verifier, created on first use rather than when the class
+   * is loaded. A missing or broken configuration then fails the login and is
+   * tried again on the next one, instead of making the class unusable.
    * 
-   * @author Erik Wramner
+   * @return verifier.
+   * @throws LoginException
+   *           if the verifier cannot be created.
    */
-  private static class JettyRequestCallbackAdapter extends RequestCallbackAdapter {
-    private final Method _getParameterValuesMethod;
-
-    protected JettyRequestCallbackAdapter(Callback callback, Method getParameterValuesMethod) {
-      super(callback);
-      _getParameterValuesMethod = getParameterValuesMethod;
-    }
-
-    @Override
-    public String getOtpParameterValue() {
-      try {
-        List<?> values = (List<?>) _getParameterValuesMethod.invoke(_callback);
-        if (values != null && values.size() == 1) {
-          return (String) values.get(0);
+  private static TwoFactorVerifier getVerifier() throws LoginException {
+    TwoFactorVerifier verifier = _verifier;
+    if (verifier == null) {
+      synchronized (YubiNonPortableLoginModule.class) {
+        verifier = _verifier;
+        if (verifier == null) {
+          try {
+            verifier = TwoFactorVerifier.createDefault(ACCOUNT_FILE);
+          } catch (RuntimeException e) {
+            _logger.error("Failed to create the two-factor verifier", e);
+            throw new LoginException("Two-factor verifier not available");
+          }
+          _verifier = verifier;
         }
-      } catch (Exception e) {
-        // Ignore
       }
-      return null;
     }
+    return verifier;
   }
 }
@@ -19,13 +19,13 @@ import javax.security.auth.spi.LoginModule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codemint.example.yubi.auth.LoginResult;
+import com.codemint.example.yubi.auth.LoginResult.Outcome;
+import com.codemint.example.yubi.auth.TwoFactorVerifier;
 import com.codemint.example.yubi.data.UserAccount;
-import com.codemint.example.yubi.util.PasswordEncoder;
-import com.codemint.example.yubi.util.YubicoClientFactory;
-import com.yubico.client.v2.VerificationResponse;
-import com.yubico.client.v2.YubicoClient;
-import com.yubico.client.v2.exceptions.YubicoValidationFailure;
-import com.yubico.client.v2.exceptions.YubicoVerificationException;
+import com.codemint.example.yubi.trace.LoginTracer;
+import com.codemint.example.yubi.trace.LoginTracers;
+import com.codemint.example.yubi.trace.TracePhase;
 
 /**
  * Login module using user id, password and one time password with Yubico. This
@@ -36,8 +36,9 @@ import com.yubico.client.v2.exceptions.YubicoVerificationException;
 public class YubiLoginModule implements LoginModule {
 
   private static final Logger _logger = LoggerFactory.getLogger(YubiLoginModule.class);
-  private static final Map<String, UserAccount> _accountMap = UserAccount.createAccountMap("etc/user_accounts.txt");
-  private final YubicoClient _yubicoClient = YubicoClientFactory.getYubicoClient();
+  private static final String ACCOUNT_FILE = "etc/user_accounts.txt";
+  private static volatile TwoFactorVerifier _verifier;
+  private final LoginTracer _tracer = LoginTracers.getTracer();
   private final List<SimplePrincipal> _principals = new ArrayList<>();
 
   private static enum State {
@@ -82,40 +83,20 @@ public class YubiLoginModule implements LoginModule {
     if (name != null && passwordArray != null) {
       _logger.debug("Authenticating {}", name);
 
-      UserAccount userAccount = _accountMap.get(name);
-      if (userAccount != null) {
-        String bothPasswords = String.valueOf(passwordArray);
-        int separatorPosition = bothPasswords.lastIndexOf('|');
-        if (separatorPosition > 1) {
-          String password = bothPasswords.substring(0, separatorPosition);
-          String otp = bothPasswords.substring(separatorPosition + 1);
-
-          _logger.debug("Password {} otp {}", password, otp);
-
-          if (userAccount.getHashedPassword().equals(
-              PasswordEncoder.encodePasswordForUser(name, userAccount.getSalt(), password))
-              && YubicoClient.isValidOTPFormat(otp)) {
-            try {
-              _logger.debug("Verifying Yubikey for {}...", name);
-              VerificationResponse response = _yubicoClient.verify(otp);
-              if (response.isOk()) {
-                if (response.getPublicId().equals(userAccount.getPublicYubiId())) {
-                  loginSuccessful(userAccount);
-                  return true;
-                } else {
-                  _logger.warn("Login attempt for {} with wrong Yubikey {}!", name, response.getPublicId());
-                }
-              } else {
-                _logger.info("Failed to verify Yubikey for {}, response not OK", name);
-              }
-            } catch (YubicoValidationFailure e) {
-              _logger.error("Validation failure for Yubikey", e);
-            } catch (YubicoVerificationException e) {
-              _logger.error("Failed to verify Yubikey - servers unreachable?", e);
-            }
-          } else {
-            _logger.debug("Wrong password or bad format for OTP for {}", name);
-          }
+      String bothPasswords = String.valueOf(passwordArray);
+      int separatorPosition = bothPasswords.lastIndexOf('|');
+      if (separatorPosition > 1) {
+        String password = bothPasswords.substring(0, separatorPosition);
+        String otp = bothPasswords.substring(separatorPosition + 1);
+
+        LoginResult result = getVerifier().verify(name, password, otp, null);
+        if (result.isSuccess()) {
+          loginSuccessful(result.getAccount());
+          return true;
+        } else if (result.getOutcome() == Outcome.RATE_LIMITED) {
+          throw new LoginException("Too many login attempts");
+        } else if (result.getOutcome() == Outcome.NOT_READY) {
+          throw new LoginException("Accounts not loaded yet");
         }
       }
     }
@@ -148,6 +129,7 @@ public class YubiLoginModule implements LoginModule {
     _logger.debug("Entering commit state {}", _state);
 
     if (_state == State.LOGIN_SUCCEEDED) {
+      LoginTracer.Span span = _tracer.start(TracePhase.SESSION_SETUP, _principals.get(0).getName(), null);
       try {
         for (Principal principal : _principals) {
           _subject.getPrincipals().add(principal);
@@ -157,6 +139,8 @@ public class YubiLoginModule implements LoginModule {
       } catch (Exception e) {
         _logger.error("Commit failed", e);
         throw new LoginException("Commit failed!");
+      } finally {
+        span.end();
       }
       _state = State.COMMIT_SUCCEEDED;
       _logger.debug("Commit successful");
@@ -211,4 +195,32 @@ public class YubiLoginModule implements LoginModule {
     _principals.clear();
     _state = State.INITIALIZED;
   }
+
+  /**
+   * Get the shared verifier, created on first use rather than when the class
+   * is loaded. A missing or broken configuration then fails the login and is
+   * tried again on the next one, instead of making the class unusable.
+   * 
+   * @return verifier.
+   * @throws LoginException
+   *           if the verifier cannot be created.
+   */
+  private static TwoFactorVerifier getVerifier() throws LoginException {
+    TwoFactorVerifier verifier = _verifier;
+    if (verifier == null) {
+      synchronized (YubiLoginModule.class) {
+        verifier = _verifier;
+        if (verifier == null) {
+          try {
+            verifier = TwoFactorVerifier.createDefault(ACCOUNT_FILE);
+          } catch (RuntimeException e) {
+            _logger.error("Failed to create the two-factor verifier", e);
+            throw new LoginException("Two-factor verifier not available");
+          }
+          _verifier = verifier;
+        }
+      }
+    }
+    return verifier;
+  }
 }
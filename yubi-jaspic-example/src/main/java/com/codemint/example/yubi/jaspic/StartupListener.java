@@ -1,5 +1,8 @@
 package com.codemint.example.yubi.jaspic;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import javax.security.auth.message.config.AuthConfigFactory;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
@@ -12,6 +15,9 @@ import javax.servlet.annotation.WebListener;
  * Copied and adapted from <a href=
  * "http://arjan-tijms.omnifaces.org/2012/11/implementing-container-authentication.html"
  * >Arjan Tims</a> blog.
+ * <p>
+ * The context parameters "roles", "sessionMode" and
+ * "trustedDeviceMaxAgeSeconds" are passed on to the SAM as options.
  * 
  * @author Erik Wramner, CodeMint
  */
@@ -20,8 +26,17 @@ public class StartupListener implements ServletContextListener {
 
   @Override
   public void contextInitialized(ServletContextEvent sce) {
+    Map<String, String> properties = new HashMap<>();
+    for (String option : new String[] { YubiAuthModule.ROLES_OPTION, YubiAuthModule.SESSION_MODE_OPTION,
+        YubiAuthModule.TRUSTED_DEVICE_MAX_AGE_OPTION }) {
+      String value = sce.getServletContext().getInitParameter(option);
+      if (value != null) {
+        properties.put(option, value);
+      }
+    }
     AuthConfigFactory factory = AuthConfigFactory.getFactory();
-    factory.registerConfigProvider(new YubiAuthConfigProvider(), "HttpServlet", null, "YubiAuthExample");
+    factory.registerConfigProvider(new YubiAuthConfigProvider(properties, null), "HttpServlet", null,
+        "YubiAuthExample");
   }
 
   @Override
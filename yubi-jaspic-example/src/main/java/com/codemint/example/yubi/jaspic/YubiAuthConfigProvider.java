@@ -1,6 +1,8 @@
 package com.codemint.example.yubi.jaspic;
 
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.security.auth.callback.CallbackHandler;
 import javax.security.auth.message.AuthException;
@@ -16,12 +18,16 @@ import javax.security.auth.message.config.ServerAuthConfig;
  * Copied and adapted from <a href=
  * "http://arjan-tijms.omnifaces.org/2012/11/implementing-container-authentication.html"
  * >Arjan Tims</a> blog.
+ * <p>
+ * The server auth configs (and the contexts they cache) are kept per layer and
+ * application context until {@link #refresh()} is called.
  * 
  * @author Erik Wramner, CodeMint
  */
 public class YubiAuthConfigProvider implements AuthConfigProvider {
   private static final String CALLBACK_HANDLER_PROPERTY_NAME = "authconfigprovider.client.callbackhandler";
   private Map<String, String> providerProperties;
+  private final ConcurrentMap<String, YubiServerAuthConfig> serverAuthConfigs = new ConcurrentHashMap<>();
 
   /**
    * Default constructor.
@@ -49,8 +55,14 @@ public class YubiAuthConfigProvider implements AuthConfigProvider {
   @Override
   public ServerAuthConfig getServerAuthConfig(String layer, String appContext, CallbackHandler handler)
       throws AuthException, SecurityException {
-    return new YubiServerAuthConfig(layer, appContext, handler == null ? createDefaultCallbackHandler() : handler,
-        providerProperties);
+    String key = layer + '|' + appContext;
+    YubiServerAuthConfig config = serverAuthConfigs.get(key);
+    if (config == null || (handler != null && handler != config.getHandler())) {
+      config = new YubiServerAuthConfig(layer, appContext, handler == null ? createDefaultCallbackHandler() : handler,
+          providerProperties);
+      serverAuthConfigs.put(key, config);
+    }
+    return config;
   }
 
   /**
@@ -82,7 +94,14 @@ public class YubiAuthConfigProvider implements AuthConfigProvider {
     return null;
   }
 
+  /**
+   * Refresh all configs and drop them, so that they are rebuilt on demand.
+   */
   @Override
   public void refresh() {
+    for (YubiServerAuthConfig config : serverAuthConfigs.values()) {
+      config.refresh();
+    }
+    serverAuthConfigs.clear();
   }
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 package com.codemint.example.yubi.jaspic;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 
 import javax.security.auth.Subject;
@@ -17,40 +18,109 @@ import javax.security.auth.message.config.ServerAuthContext;
 import javax.security.auth.message.module.ServerAuthModule;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codemint.example.yubi.auth.DeviceToken;
+import com.codemint.example.yubi.auth.LoginResult;
+import com.codemint.example.yubi.auth.LoginResult.Outcome;
+import com.codemint.example.yubi.auth.SessionPrincipal;
+import com.codemint.example.yubi.auth.SessionToken;
+import com.codemint.example.yubi.auth.TwoFactorVerifier;
+import com.codemint.example.yubi.data.AccountStore;
+import com.codemint.example.yubi.data.RoleIndex;
 import com.codemint.example.yubi.data.UserAccount;
-import com.codemint.example.yubi.util.PasswordEncoder;
-import com.codemint.example.yubi.util.YubicoClientFactory;
-import com.yubico.client.v2.VerificationResponse;
-import com.yubico.client.v2.YubicoClient;
+import com.codemint.example.yubi.trace.LoginTracer;
+import com.codemint.example.yubi.trace.LoginTracers;
+import com.codemint.example.yubi.trace.TracePhase;
+import com.codemint.example.yubi.util.HmacSigner;
+import com.codemint.example.yubi.web.SessionRegistry;
 
 /**
  * Server Authentication Module (SAM) with user id, password and one time
  * password with Yubico. This code is intended as a simple example and is not
  * ready for production.
+ * <p>
+ * The option {@link #ROLES_OPTION} lists the roles, separated by commas. The
+ * roles of a user are kept as a {@link RoleIndex} mask in the list order, so
+ * new roles must be appended to keep sessions and cookies valid on all nodes.
+ * Roles that are not listed are left out with a warning.
+ * <p>
+ * If the option {@link #SESSION_MODE_OPTION} is "cookie" the user is kept in a
+ * signed cookie (keys from session-keys.properties) rather than in the HTTP
+ * session, so any node can verify the user without session replication.
+ * <p>
+ * If the option {@link #TRUSTED_DEVICE_MAX_AGE_OPTION} is set, a user who logs
+ * in with both factors and checks "j_trust_device" gets a signed
+ * {@link DeviceToken} cookie with that lifetime in seconds, bound to a random
+ * device id in a second HttpOnly cookie. Later logins from the same browser
+ * may then leave the OTP empty.
+ * <p>
+ * One initialized instance is shared by all requests, so it must not keep
+ * request state in fields.
+ * <p>
+ * Until the accounts have been loaded in the background logins and sessions
+ * are answered with 503 and Retry-After.
+ * <p>
+ * In the HTTP session the user is kept as a compact {@link SessionPrincipal},
+ * which is cheap to replicate.
+ * <p>
+ * Sessions are dropped when the account of the user has changed or been
+ * removed, checked against the account version on each request and, if the
+ * {@link SessionRegistry} is configured, at once when the accounts reload.
+ * Session cookies carry the account version too and are rejected once it
+ * changes.
  * 
  * @author Erik Wramner, CodeMint
  */
 public class YubiAuthModule implements ServerAuthModule {
+  public static final String ROLES_OPTION = "roles";
+  public static final String SESSION_MODE_OPTION = "sessionMode";
+  public static final String TRUSTED_DEVICE_MAX_AGE_OPTION = "trustedDeviceMaxAgeSeconds";
   private static final String ORIGINAL_URI_SESSION_KEY = "com.codemint.example.yubi.jaspic.originalUri";
-  private static final String USER_ACCOUNT_SESSION_KEY = "com.codemint.example.yubi.jaspic.userAccount";
+  private static final String PRINCIPAL_SESSION_KEY = "com.codemint.example.yubi.jaspic.principal";
   private static final String LOGIN_FAILED_SESSION_KEY = "com.codemint.example.yubi.jaspic.loginFailed";
   private static final String LOGIN_PAGE = "/login.jsp";
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+  private static final String NOT_READY_RETRY_AFTER_SECONDS = "5";
+  private static final String SESSION_COOKIE_NAME = "YUBI_SESSION";
+  private static final String DEVICE_COOKIE_NAME = "YUBI_DEVICE";
+  private static final String DEVICE_ID_COOKIE_NAME = "YUBI_DEVICE_ID";
+  private static final int SESSION_MAX_AGE_SECONDS = 1800;
   private static final Logger _logger = LoggerFactory.getLogger(YubiAuthModule.class);
-  private static final Map<String, UserAccount> _accountMap = UserAccount.createAccountMap("etc/user_accounts.txt");
-  private final YubicoClient _yubicoClient = YubicoClientFactory.getYubicoClient();
+  private static final String ACCOUNT_FILE = "etc/user_accounts.txt";
+  private static volatile TwoFactorVerifier _verifier;
+  private final LoginTracer _tracer = LoginTracers.getTracer();
   private CallbackHandler handler;
+  private HmacSigner _sessionSigner;
+  private HmacSigner _deviceSigner;
+  private int _trustedDeviceMaxAgeSeconds;
+  private RoleIndex _roleIndex;
 
   @Override
   public void initialize(MessagePolicy requestPolicy, MessagePolicy responsePolicy, CallbackHandler handler,
       @SuppressWarnings("rawtypes") Map options) throws AuthException {
     _logger.debug("Enter initialize");
     this.handler = handler;
+    String roles = options != null ? (String) options.get(ROLES_OPTION) : null;
+    if (roles == null) {
+      throw new AuthException("Option " + ROLES_OPTION + " with the role list is required");
+    }
+    _roleIndex = RoleIndex.parse(roles);
+    if (options != null && "cookie".equals(options.get(SESSION_MODE_OPTION))) {
+      _logger.debug("Using signed session cookies");
+      _sessionSigner = HmacSigner.fromClasspath("/session-keys.properties");
+    }
+    if (options != null && options.get(TRUSTED_DEVICE_MAX_AGE_OPTION) != null) {
+      _logger.debug("Using trusted device tokens");
+      _trustedDeviceMaxAgeSeconds = Integer.parseInt((String) options.get(TRUSTED_DEVICE_MAX_AGE_OPTION));
+      _deviceSigner = HmacSigner.fromClasspath("/session-keys.properties");
+    }
   }
 
   @Override
@@ -67,11 +137,38 @@ public class YubiAuthModule implements ServerAuthModule {
     HttpServletResponse resp = (HttpServletResponse) messageInfo.getResponseMessage();
 
     try {
-      UserAccount account = (UserAccount) req.getSession().getAttribute(USER_ACCOUNT_SESSION_KEY);
-      if (account != null) {
-        _logger.debug("Returning success, user already logged in");
-        addPrincipalsToSubject(clientSubject, account);
-        return AuthStatus.SUCCESS;
+      if (_sessionSigner != null) {
+        SessionToken token = getSessionToken(req);
+        if (token != null) {
+          AccountStore accountStore = getVerifier().getAccountStore();
+          if (accountStore == null) {
+            return sendNotReady(resp);
+          }
+          if (token.isCurrent(accountStore.getAccount(token.getUserId()))) {
+            _logger.debug("Returning success, user has valid session cookie");
+            addPrincipalsToSubject(clientSubject, token.getUserId(), _roleIndex.getRoleNames(token.getRoleMask()));
+            return AuthStatus.SUCCESS;
+          }
+          _logger.debug("Account {} has changed, rejecting session cookie", token.getUserId());
+        }
+      } else {
+        HttpSession session = req.getSession(false);
+        SessionPrincipal principal = session != null ? (SessionPrincipal) session.getAttribute(PRINCIPAL_SESSION_KEY)
+            : null;
+        if (principal != null) {
+          AccountStore accountStore = getVerifier().getAccountStore();
+          if (accountStore == null) {
+            return sendNotReady(resp);
+          }
+          if (principal.isCurrent(accountStore.getAccount(principal.getUserId()))) {
+            _logger.debug("Returning success, user already logged in");
+            addPrincipalsToSubject(clientSubject, principal.getUserId(), _roleIndex.getRoleNames(principal
+                .getRoleMask()));
+            return AuthStatus.SUCCESS;
+          }
+          _logger.debug("Account {} has changed, invalidating session", principal.getUserId());
+          SessionRegistry.invalidate(session);
+        }
       }
 
       if (!req.getRequestURI().endsWith(LOGIN_PAGE)) {
@@ -88,39 +185,64 @@ public class YubiAuthModule implements ServerAuthModule {
       String password = req.getParameter("j_password");
       String otp = req.getParameter("j_otp");
 
-      if (userName == null || password == null || otp == null) {
+      DeviceToken deviceToken = otp == null || otp.isEmpty() ? getDeviceToken(req) : null;
+
+      if (userName == null || password == null || (otp == null && deviceToken == null)) {
         _logger.debug("Returning failure, missing request parameter(s)");
         forwardToFailedLoginPage(req, resp, null);
         return AuthStatus.SEND_CONTINUE;
       }
 
-      UserAccount userAccount = _accountMap.get(userName);
-      if (userAccount != null
-          && userAccount.getHashedPassword().equals(
-              PasswordEncoder.encodePasswordForUser(userName, userAccount.getSalt(), password))
-          && YubicoClient.isValidOTPFormat(otp)) {
-        _logger.debug("Verifying Yubikey for {}...", userName);
-        VerificationResponse response = _yubicoClient.verify(otp);
-        if (response.isOk()) {
-          if (response.getPublicId().equals(userAccount.getPublicYubiId())) {
-            addPrincipalsToSubject(clientSubject, userAccount);
-            req.getSession().setAttribute(USER_ACCOUNT_SESSION_KEY, userAccount);
-
-            String originalUri = (String) req.getSession().getAttribute(ORIGINAL_URI_SESSION_KEY);
-            if (originalUri != null) {
-              _logger.debug("Login successful for {}, redirecting to {}", userName, originalUri);
-              resp.sendRedirect(originalUri);
-              return AuthStatus.SEND_CONTINUE;
-            } else {
-              _logger.debug("Login successful for {}, returning success", userName);
-              return AuthStatus.SUCCESS;
-            }
+      LoginResult result;
+      if (deviceToken != null) {
+        result = getVerifier().verifyTrustedDevice(userName, password, deviceToken, req.getRemoteAddr());
+      } else {
+        result = getVerifier().verify(userName, password, otp, req.getRemoteAddr());
+      }
+      if (result.isSuccess()) {
+        UserAccount userAccount = result.getAccount();
+        HttpSession session;
+        LoginTracer.Span span = _tracer.start(TracePhase.SESSION_SETUP, userName, null);
+        try {
+          List<String> unknownRoles = _roleIndex.getUnknownRoles(userAccount.getRoles());
+          if (!unknownRoles.isEmpty()) {
+            _logger.warn("Roles {} of {} are not in the role list and are left out", unknownRoles, userName);
+          }
+          SessionPrincipal principal = SessionPrincipal.forAccount(null, userAccount, _roleIndex);
+          addPrincipalsToSubject(clientSubject, principal.getUserId(), _roleIndex.getRoleNames(principal
+              .getRoleMask()));
+          session = req.getSession();
+          if (_sessionSigner != null) {
+            issueSessionCookie(req, resp, userAccount);
           } else {
-            _logger.warn("Login attempt for {} with wrong Yubikey {}!", userName, response.getPublicId());
+            session.setAttribute(PRINCIPAL_SESSION_KEY, principal);
+            SessionRegistry registry = SessionRegistry.get(req.getServletContext());
+            if (registry != null) {
+              registry.register(session, null, userAccount.getEmail());
+            }
+          }
+          if (deviceToken == null && _deviceSigner != null && req.getParameter("j_trust_device") != null) {
+            issueDeviceCookie(req, resp, userAccount);
           }
+        } finally {
+          span.end();
+        }
+
+        String originalUri = (String) session.getAttribute(ORIGINAL_URI_SESSION_KEY);
+        if (originalUri != null) {
+          _logger.debug("Login successful for {}, redirecting to {}", userName, originalUri);
+          resp.sendRedirect(originalUri);
+          return AuthStatus.SEND_CONTINUE;
         } else {
-          _logger.info("Failed to verify Yubikey for {}, response not OK", userName);
+          _logger.debug("Login successful for {}, returning success", userName);
+          return AuthStatus.SUCCESS;
         }
+      } else if (result.getOutcome() == Outcome.RATE_LIMITED) {
+        _logger.debug("Returning failure, too many login attempts");
+        resp.sendError(SC_TOO_MANY_REQUESTS);
+        return AuthStatus.SEND_FAILURE;
+      } else if (result.getOutcome() == Outcome.NOT_READY) {
+        return sendNotReady(resp);
       }
 
       forwardToFailedLoginPage(req, resp, "authentication failed");
@@ -131,16 +253,92 @@ public class YubiAuthModule implements ServerAuthModule {
     }
   }
 
+  private AuthStatus sendNotReady(HttpServletResponse resp) throws IOException {
+    _logger.debug("Returning failure, accounts not loaded yet");
+    resp.setHeader("Retry-After", NOT_READY_RETRY_AFTER_SECONDS);
+    resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    return AuthStatus.SEND_FAILURE;
+  }
+
   private void redirectToLoginPage(HttpServletRequest req, HttpServletResponse resp) throws IOException {
     _logger.debug("Redirecting to login page");
     saveUriIfFirstCall(req);
     resp.sendRedirect(LOGIN_PAGE);
   }
 
-  private void addPrincipalsToSubject(Subject clientSubject, UserAccount account) throws IOException,
+  /**
+   * Hand caller and groups to the container. The callbacks are bound to the
+   * subject and must be created per request, but the groups array is shared.
+   */
+  private void addPrincipalsToSubject(Subject clientSubject, String callerName, String[] groups) throws IOException,
       UnsupportedCallbackException {
-    handler.handle(new Callback[] { new CallerPrincipalCallback(clientSubject, account.getEmail()),
-        new GroupPrincipalCallback(clientSubject, account.getRoles().toArray(new String[0])) });
+    handler.handle(new Callback[] { new CallerPrincipalCallback(clientSubject, callerName),
+        new GroupPrincipalCallback(clientSubject, groups) });
+  }
+
+  /**
+   * Get the signed session cookie if valid. The module serves no tenants, so
+   * tokens bound to a tenant by another application with the same keys are
+   * rejected.
+   */
+  private SessionToken getSessionToken(HttpServletRequest req) {
+    SessionToken token = SessionToken.verify(_sessionSigner, getCookieValue(req, SESSION_COOKIE_NAME), System
+        .currentTimeMillis());
+    return token != null && token.getTenantId() == null ? token : null;
+  }
+
+  private void issueSessionCookie(HttpServletRequest req, HttpServletResponse resp, UserAccount account) {
+    long expiresAtSeconds = System.currentTimeMillis() / 1000L + SESSION_MAX_AGE_SECONDS;
+    SessionToken token = new SessionToken(null, account.getEmail(), _roleIndex.getMask(account.getRoles()), account
+        .getVersion(), expiresAtSeconds);
+    Cookie cookie = new Cookie(SESSION_COOKIE_NAME, token.sign(_sessionSigner));
+    cookie.setPath("/");
+    cookie.setMaxAge(SESSION_MAX_AGE_SECONDS);
+    cookie.setHttpOnly(true);
+    cookie.setSecure(req.isSecure());
+    resp.addCookie(cookie);
+  }
+
+  private DeviceToken getDeviceToken(HttpServletRequest req) {
+    if (_deviceSigner == null) {
+      return null;
+    }
+    String signedToken = getCookieValue(req, DEVICE_COOKIE_NAME);
+    return signedToken != null ? DeviceToken.verify(_deviceSigner, signedToken, null, getCookieValue(req,
+        DEVICE_ID_COOKIE_NAME), System.currentTimeMillis()) : null;
+  }
+
+  private static String getCookieValue(HttpServletRequest req, String name) {
+    Cookie[] cookies = req.getCookies();
+    if (cookies != null) {
+      for (Cookie cookie : cookies) {
+        if (name.equals(cookie.getName())) {
+          return cookie.getValue();
+        }
+      }
+    }
+    return null;
+  }
+
+  private void issueDeviceCookie(HttpServletRequest req, HttpServletResponse resp, UserAccount account) {
+    String deviceId = getCookieValue(req, DEVICE_ID_COOKIE_NAME);
+    if (deviceId == null || deviceId.isEmpty()) {
+      deviceId = DeviceToken.newDeviceId();
+    }
+    long expiresAtSeconds = System.currentTimeMillis() / 1000L + _trustedDeviceMaxAgeSeconds;
+    DeviceToken token = new DeviceToken(null, account.getEmail(), account.getGeneration(), DeviceToken.getDeviceHash(
+        deviceId), expiresAtSeconds);
+    addDeviceCookie(req, resp, DEVICE_ID_COOKIE_NAME, deviceId);
+    addDeviceCookie(req, resp, DEVICE_COOKIE_NAME, token.sign(_deviceSigner));
+  }
+
+  private void addDeviceCookie(HttpServletRequest req, HttpServletResponse resp, String name, String value) {
+    Cookie cookie = new Cookie(name, value);
+    cookie.setPath("/");
+    cookie.setMaxAge(_trustedDeviceMaxAgeSeconds);
+    cookie.setHttpOnly(true);
+    cookie.setSecure(req.isSecure());
+    resp.addCookie(cookie);
   }
 
   private void forwardToFailedLoginPage(HttpServletRequest req, HttpServletResponse resp, String reason)
@@ -157,10 +355,11 @@ public class YubiAuthModule implements ServerAuthModule {
   }
 
   private void saveUriIfFirstCall(HttpServletRequest req) {
-    if (req.getSession().getAttribute(ORIGINAL_URI_SESSION_KEY) == null) {
+    HttpSession session = req.getSession();
+    if (session.getAttribute(ORIGINAL_URI_SESSION_KEY) == null) {
       String fullURI = getFullURI(req);
       _logger.debug("Saving uri {}", fullURI);
-      req.getSession().setAttribute(ORIGINAL_URI_SESSION_KEY, fullURI);
+      session.setAttribute(ORIGINAL_URI_SESSION_KEY, fullURI);
     }
   }
 
@@ -202,4 +401,26 @@ public class YubiAuthModule implements ServerAuthModule {
       return request.getRequestURI() + "?" + queryString;
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * Get the shared verifier, created on first use rather than when the class
+   * is loaded. A missing or broken configuration then fails the request with
+   * an AuthException and is tried again on the next one, instead of making
+   * the class unusable.
+   *
+   * @return verifier.
+   */
+  private static TwoFactorVerifier getVerifier() {
+    TwoFactorVerifier verifier = _verifier;
+    if (verifier == null) {
+      synchronized (YubiAuthModule.class) {
+        verifier = _verifier;
+        if (verifier == null) {
+          verifier = TwoFactorVerifier.createDefault(ACCOUNT_FILE);
+          _verifier = verifier;
+        }
+      }
+    }
+    return verifier;
+  }
+}
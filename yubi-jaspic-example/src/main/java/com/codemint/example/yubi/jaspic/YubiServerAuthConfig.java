@@ -1,6 +1,8 @@
 package com.codemint.example.yubi.jaspic;
 
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.security.auth.Subject;
 import javax.security.auth.callback.CallbackHandler;
@@ -18,6 +20,9 @@ import javax.security.auth.message.module.ServerAuthModule;
  * Copied and adapted from <a href=
  * "http://arjan-tijms.omnifaces.org/2012/11/implementing-container-authentication.html"
  * >Arjan Tims</a> blog.
+ * <p>
+ * Some containers ask for the context on every request, so one initialized
+ * context is kept per auth context id until {@link #refresh()} is called.
  * 
  * @author Erik Wramner, CodeMint
  */
@@ -26,6 +31,7 @@ public class YubiServerAuthConfig implements ServerAuthConfig {
   private final String appContext;
   private final CallbackHandler handler;
   private final Map<String, String> providerProperties;
+  private final ConcurrentMap<String, ServerAuthContext> authContexts = new ConcurrentHashMap<>();
 
   public YubiServerAuthConfig(String layer, String appContext, CallbackHandler handler,
       Map<String, String> providerProperties) {
@@ -38,7 +44,16 @@ public class YubiServerAuthConfig implements ServerAuthConfig {
   @Override
   public ServerAuthContext getAuthContext(String authContextID, Subject serviceSubject,
       @SuppressWarnings("rawtypes") Map properties) throws AuthException {
-    return new YubiServerAuthContext(handler);
+    String key = authContextID != null ? authContextID : "";
+    ServerAuthContext authContext = authContexts.get(key);
+    if (authContext == null) {
+      ServerAuthContext newAuthContext = new YubiServerAuthContext(handler, providerProperties);
+      authContext = authContexts.putIfAbsent(key, newAuthContext);
+      if (authContext == null) {
+        authContext = newAuthContext;
+      }
+    }
+    return authContext;
   }
 
   @Override
@@ -56,8 +71,12 @@ public class YubiServerAuthConfig implements ServerAuthConfig {
     return appContext;
   }
 
+  /**
+   * Drop all cached contexts, they will be recreated on demand.
+   */
   @Override
   public void refresh() {
+    authContexts.clear();
   }
 
   @Override
@@ -65,6 +84,10 @@ public class YubiServerAuthConfig implements ServerAuthConfig {
     return false;
   }
 
+  public CallbackHandler getHandler() {
+    return handler;
+  }
+
   public Map<String, String> getProviderProperties() {
     return providerProperties;
   }
@@ -1,6 +1,7 @@
 package com.codemint.example.yubi.jaspic;
 
 import java.util.Collections;
+import java.util.Map;
 
 import javax.security.auth.Subject;
 import javax.security.auth.callback.CallbackHandler;
@@ -31,9 +32,10 @@ import javax.security.auth.message.module.ServerAuthModule;
 public class YubiServerAuthContext implements ServerAuthContext {
   private final ServerAuthModule serverAuthModule;
 
-  public YubiServerAuthContext(CallbackHandler handler) throws AuthException {
+  public YubiServerAuthContext(CallbackHandler handler, Map<String, String> options) throws AuthException {
     serverAuthModule = new YubiAuthModule();
-    serverAuthModule.initialize(null, null, handler, Collections.<String, String> emptyMap());
+    serverAuthModule.initialize(null, null, handler,
+        options != null ? options : Collections.<String, String> emptyMap());
   }
 
   @Override
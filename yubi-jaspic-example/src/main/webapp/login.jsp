@@ -19,6 +19,9 @@
 				<td><label for="j_otp">OTP:</label></td>
 				<td><input name="j_otp" type="password"></td>
 			</tr>
+			<tr>
+				<td colspan="2"><input name="j_trust_device" type="checkbox"> Trust this device</td>
+			</tr>
 			<tr>
 				<td colspan="2"><input type="submit" value="Login"></td>
 			</tr>
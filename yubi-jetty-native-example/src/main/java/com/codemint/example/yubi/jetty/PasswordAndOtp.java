@@ -0,0 +1,38 @@
+package com.codemint.example.yubi.jetty;
+
+/**
+ * Credentials with both a regular password and a one time password, passed
+ * from {@link YubiFormAuthenticator} to {@link YubiLoginService}. They also
+ * carry the remote address for the rate limits and the audit log, as the
+ * login service is not given the request.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public final class PasswordAndOtp {
+  private final String _password;
+  private final String _otp;
+  private final String _remoteAddress;
+
+  public PasswordAndOtp(String password, String otp, String remoteAddress) {
+    _password = password;
+    _otp = otp;
+    _remoteAddress = remoteAddress;
+  }
+
+  public String getPassword() {
+    return _password;
+  }
+
+  public String getOtp() {
+    return _otp;
+  }
+
+  public String getRemoteAddress() {
+    return _remoteAddress;
+  }
+
+  @Override
+  public String toString() {
+    return "PasswordAndOtp[*, *]";
+  }
+}
@@ -0,0 +1,24 @@
+package com.codemint.example.yubi.jetty;
+
+import javax.servlet.ServletRequest;
+
+import org.eclipse.jetty.security.authentication.FormAuthenticator;
+import org.eclipse.jetty.server.UserIdentity;
+
+/**
+ * Form authenticator that reads the one time password from the login form
+ * along with user name and password and passes both passwords to the login
+ * service as {@link PasswordAndOtp} credentials. Pages are configured as
+ * usual with login-config in web.xml.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public class YubiFormAuthenticator extends FormAuthenticator {
+  public static final String OTP_PARAMETER = "j_otp";
+
+  @Override
+  public UserIdentity login(String username, Object password, ServletRequest request) {
+    return super.login(username, new PasswordAndOtp(password != null ? password.toString() : null,
+        request.getParameter(OTP_PARAMETER), request.getRemoteAddr()), request);
+  }
+}
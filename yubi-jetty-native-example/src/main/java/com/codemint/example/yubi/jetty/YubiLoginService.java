@@ -0,0 +1,167 @@
+package com.codemint.example.yubi.jetty;
+
+import java.security.Principal;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.security.auth.Subject;
+
+import org.eclipse.jetty.security.DefaultIdentityService;
+import org.eclipse.jetty.security.IdentityService;
+import org.eclipse.jetty.security.LoginService;
+import org.eclipse.jetty.server.UserIdentity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codemint.example.yubi.auth.LoginResult;
+import com.codemint.example.yubi.auth.TwoFactorVerifier;
+import com.codemint.example.yubi.data.AccountStore;
+import com.codemint.example.yubi.data.UserAccount;
+import com.codemint.example.yubi.jaas.SimplePrincipal;
+import com.codemint.example.yubi.trace.LoginTracer;
+import com.codemint.example.yubi.trace.LoginTracers;
+import com.codemint.example.yubi.trace.TracePhase;
+
+/**
+ * Native Jetty {@link LoginService} with user id, password and one time
+ * password with Yubico. Unlike the JAAS examples there is no login context,
+ * no configuration to parse and no login module per attempt; the shared
+ * {@link TwoFactorVerifier} is called directly. The {@link UserIdentity} for
+ * an account is created once and reused until the account changes; concurrent
+ * first logins agree on one identity. An identity is valid as long as the
+ * account it was created for is the current one.
+ * <p>
+ * Use it with {@link YubiFormAuthenticator}, which provides the one time
+ * password.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public class YubiLoginService implements LoginService {
+  private static final Logger _logger = LoggerFactory.getLogger(YubiLoginService.class);
+  private final ConcurrentMap<String, CachedIdentity> _identities = new ConcurrentHashMap<>();
+  private final TwoFactorVerifier _verifier;
+  private final LoginTracer _tracer = LoginTracers.getTracer();
+  private volatile IdentityService _identityService = new DefaultIdentityService();
+  private volatile String _name;
+
+  /**
+   * Default constructor with accounts from etc/user_accounts.txt.
+   */
+  public YubiLoginService() {
+    this(TwoFactorVerifier.createDefault("etc/user_accounts.txt"));
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param verifier
+   *          The verifier for user credentials.
+   */
+  public YubiLoginService(TwoFactorVerifier verifier) {
+    _verifier = verifier;
+  }
+
+  @Override
+  public String getName() {
+    return _name;
+  }
+
+  public void setName(String name) {
+    _name = name;
+  }
+
+  @Override
+  public UserIdentity login(String username, Object credentials) {
+    if (!(credentials instanceof PasswordAndOtp)) {
+      _logger.warn("Unsupported credentials for {}, use YubiFormAuthenticator", username);
+      return null;
+    }
+    PasswordAndOtp passwords = (PasswordAndOtp) credentials;
+    LoginResult result = _verifier.verify(username, passwords.getPassword(), passwords.getOtp(), passwords
+        .getRemoteAddress());
+    if (!result.isSuccess()) {
+      return null;
+    }
+    LoginTracer.Span span = _tracer.start(TracePhase.SESSION_SETUP, username, null);
+    try {
+      return getUserIdentity(result.getAccount());
+    } finally {
+      span.end();
+    }
+  }
+
+  /**
+   * Check that an authenticated user is still valid, i.e. that the account has
+   * not been changed or removed since the login. Called for every request.
+   */
+  @Override
+  public boolean validate(UserIdentity user) {
+    Principal principal = user.getUserPrincipal();
+    AccountStore accountStore = _verifier.getAccountStore();
+    return principal instanceof AccountPrincipal && accountStore != null
+        && ((AccountPrincipal) principal)._account == accountStore.getAccount(principal.getName());
+  }
+
+  @Override
+  public IdentityService getIdentityService() {
+    return _identityService;
+  }
+
+  @Override
+  public void setIdentityService(IdentityService identityService) {
+    _identityService = identityService;
+    _identities.clear();
+  }
+
+  @Override
+  public void logout(UserIdentity user) {
+  }
+
+  /**
+   * Get the identity for an account, creating it if there is none for this
+   * version of the account. The entry is only added or replaced if it is
+   * unchanged since it was read, so concurrent logins get the same identity.
+   */
+  private UserIdentity getUserIdentity(UserAccount account) {
+    String userId = account.getEmail();
+    CachedIdentity cached = _identities.get(userId);
+    while (cached == null || cached._account != account) {
+      Principal principal = new AccountPrincipal(account);
+      Subject subject = new Subject();
+      subject.getPrincipals().add(principal);
+      subject.setReadOnly();
+      String[] roles = account.getRoles().toArray(new String[0]);
+      CachedIdentity created = new CachedIdentity(account, _identityService.newUserIdentity(subject, principal,
+          roles));
+      if (cached == null ? _identities.putIfAbsent(userId, created) == null : _identities.replace(userId, cached,
+          created)) {
+        _logger.debug("Created identity for {}", userId);
+        return created._identity;
+      }
+      cached = _identities.get(userId);
+    }
+    return cached._identity;
+  }
+
+  /**
+   * Principal that remembers the account it was created for.
+   */
+  private static final class AccountPrincipal extends SimplePrincipal {
+    private final UserAccount _account;
+
+    AccountPrincipal(UserAccount account) {
+      super(account.getEmail());
+      _account = account;
+    }
+  }
+
+  private static final class CachedIdentity {
+    private final UserAccount _account;
+    private final UserIdentity _identity;
+
+    CachedIdentity(UserAccount account, UserIdentity identity) {
+      _account = account;
+      _identity = identity;
+    }
+  }
+}
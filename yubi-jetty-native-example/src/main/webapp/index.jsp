@@ -0,0 +1,9 @@
+<html>
+<head>
+<title>Yubikey example - Secret</title>
+</head>
+<body>
+	<h1>Secret page</h1>
+	<p>Secrets, secrets, soo many secrets
+</body>
+</html>
\ No newline at end of file
@@ -0,0 +1,46 @@
+package com.codemint.example.yubi.jfr;
+
+import com.codemint.example.yubi.trace.LoginTracer;
+import com.codemint.example.yubi.trace.LoginTracers;
+import com.codemint.example.yubi.trace.TracePhase;
+
+/**
+ * {@link LoginTracer} that emits a {@link LoginPhaseEvent} for each phase. It
+ * is registered as a service, so adding this jar to the class path is enough.
+ * When the event is disabled in the recording settings (or no recording is
+ * running) nothing is recorded and a shared no-op span is returned.
+ * <p>
+ * Start a recording with for example
+ * -XX:StartFlightRecording=settings=profile,filename=login.jfr and analyze it
+ * with {@link LoginPhaseAnalyzer}.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+public class JfrLoginTracer implements LoginTracer {
+
+  @Override
+  public Span start(TracePhase phase, String userId, String detail) {
+    LoginPhaseEvent event = new LoginPhaseEvent();
+    if (!event.isEnabled()) {
+      return LoginTracers.getNoopSpan();
+    }
+    event.phase = phase.name();
+    event.userId = userId;
+    event.detail = detail;
+    event.begin();
+    return new EventSpan(event);
+  }
+
+  private static final class EventSpan implements Span {
+    private final LoginPhaseEvent _event;
+
+    EventSpan(LoginPhaseEvent event) {
+      _event = event;
+    }
+
+    @Override
+    public void end() {
+      _event.commit();
+    }
+  }
+}
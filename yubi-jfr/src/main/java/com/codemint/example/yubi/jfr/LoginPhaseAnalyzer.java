@@ -0,0 +1,201 @@
+package com.codemint.example.yubi.jfr;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingFile;
+
+import com.codemint.example.yubi.trace.TracePhase;
+
+/**
+ * Command line tool that reads a Flight Recorder file and prints the time
+ * spent in each login phase. For the slowest logins (above the 99th
+ * percentile) it also prints how much of the time overlapped with GC pauses,
+ * and with monitor waits and socket reads in the same thread.
+ * <p>
+ * Usage: java -cp yubi-jfr.jar:yubi-shared.jar
+ * com.codemint.example.yubi.jfr.LoginPhaseAnalyzer recording.jfr
+ *
+ * @author Erik Wramner, CodeMint
+ */
+public class LoginPhaseAnalyzer {
+  private static final double NANOS_PER_MILLI = 1_000_000.0;
+  private static final String GC_PAUSE = "jdk.GCPhasePause";
+  private static final String MONITOR_ENTER = "jdk.JavaMonitorEnter";
+  private static final String SOCKET_READ = "jdk.SocketRead";
+  private final Map<TracePhase, LongList> _durations = new EnumMap<>(TracePhase.class);
+  private final List<Interval> _logins = new ArrayList<>();
+  private final List<Interval> _gcPauses = new ArrayList<>();
+  private final List<Interval> _monitorWaits = new ArrayList<>();
+  private final List<Interval> _socketReads = new ArrayList<>();
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1) {
+      System.err.println("Usage: LoginPhaseAnalyzer <recording.jfr>");
+      System.exit(1);
+    }
+    LoginPhaseAnalyzer analyzer = new LoginPhaseAnalyzer();
+    analyzer.read(Paths.get(args[0]));
+    analyzer.printPhases();
+    analyzer.printSlowLogins();
+  }
+
+  private void read(Path path) throws IOException {
+    try (RecordingFile recording = new RecordingFile(path)) {
+      while (recording.hasMoreEvents()) {
+        RecordedEvent event = recording.readEvent();
+        String name = event.getEventType().getName();
+        if (LoginPhaseEvent.NAME.equals(name)) {
+          TracePhase phase = TracePhase.valueOf(event.getString("phase"));
+          long duration = event.getDuration().toNanos();
+          LongList durations = _durations.get(phase);
+          if (durations == null) {
+            durations = new LongList();
+            _durations.put(phase, durations);
+          }
+          durations.add(duration);
+          if (phase == TracePhase.LOGIN) {
+            _logins.add(new Interval(event));
+          }
+        } else if (GC_PAUSE.equals(name)) {
+          _gcPauses.add(new Interval(event));
+        } else if (MONITOR_ENTER.equals(name)) {
+          _monitorWaits.add(new Interval(event));
+        } else if (SOCKET_READ.equals(name)) {
+          _socketReads.add(new Interval(event));
+        }
+      }
+    }
+  }
+
+  private void printPhases() {
+    if (_durations.isEmpty()) {
+      System.out.println("No login events found, is yubi-jfr on the class path and the recording enabled?");
+      return;
+    }
+    LongList logins = _durations.get(TracePhase.LOGIN);
+    long loginTotal = logins != null ? logins.sum() : 0L;
+    System.out.printf("%-18s %8s %12s %10s %10s %10s %10s %8s%n", "Phase", "Count", "Total ms", "Mean ms",
+        "P50 ms", "P99 ms", "Max ms", "% login");
+    for (Map.Entry<TracePhase, LongList> entry : _durations.entrySet()) {
+      LongList durations = entry.getValue();
+      long total = durations.sum();
+      System.out.printf("%-18s %8d %12.1f %10.3f %10.3f %10.3f %10.3f %8s%n", entry.getKey(), durations.size(),
+          total / NANOS_PER_MILLI, total / NANOS_PER_MILLI / durations.size(),
+          durations.percentile(50.0) / NANOS_PER_MILLI, durations.percentile(99.0) / NANOS_PER_MILLI,
+          durations.percentile(100.0) / NANOS_PER_MILLI,
+          loginTotal > 0L ? String.format("%.1f", 100.0 * total / loginTotal) : "-");
+    }
+  }
+
+  private void printSlowLogins() {
+    LongList logins = _durations.get(TracePhase.LOGIN);
+    if (logins == null) {
+      return;
+    }
+    long threshold = logins.percentile(99.0);
+    long loginTime = 0L;
+    long gcTime = 0L;
+    long monitorTime = 0L;
+    long socketTime = 0L;
+    int count = 0;
+    for (Interval login : _logins) {
+      if (login.getDuration() >= threshold) {
+        count++;
+        loginTime += login.getDuration();
+        gcTime += login.overlap(_gcPauses, false);
+        monitorTime += login.overlap(_monitorWaits, true);
+        socketTime += login.overlap(_socketReads, true);
+      }
+    }
+    System.out.println();
+    System.out.printf("Slowest %d logins (>= %.3f ms), %.1f ms in total:%n", count, threshold / NANOS_PER_MILLI,
+        loginTime / NANOS_PER_MILLI);
+    System.out.printf("  GC pauses      %10.1f ms%n", gcTime / NANOS_PER_MILLI);
+    System.out.printf("  Monitor waits  %10.1f ms%n", monitorTime / NANOS_PER_MILLI);
+    System.out.printf("  Socket reads   %10.1f ms%n", socketTime / NANOS_PER_MILLI);
+    if (_monitorWaits.isEmpty() && _socketReads.isEmpty()) {
+      System.out.println("  (no monitor or socket events recorded, lower their thresholds in the settings)");
+    }
+  }
+
+  /**
+   * Start and end time of an event and the thread that recorded it.
+   */
+  private static final class Interval {
+    private final long _start;
+    private final long _end;
+    private final long _threadId;
+
+    Interval(RecordedEvent event) {
+      _start = toNanos(event.getStartTime());
+      _end = toNanos(event.getEndTime());
+      RecordedThread thread = event.getThread();
+      _threadId = thread != null ? thread.getJavaThreadId() : -1L;
+    }
+
+    long getDuration() {
+      return _end - _start;
+    }
+
+    long overlap(List<Interval> others, boolean sameThread) {
+      long overlap = 0L;
+      for (Interval other : others) {
+        if (!sameThread || other._threadId == _threadId) {
+          overlap += Math.max(0L, Math.min(_end, other._end) - Math.max(_start, other._start));
+        }
+      }
+      return overlap;
+    }
+
+    private static long toNanos(Instant instant) {
+      return instant.getEpochSecond() * 1_000_000_000L + instant.getNano();
+    }
+  }
+
+  /**
+   * Growable array of primitive longs.
+   */
+  private static final class LongList {
+    private long[] _values = new long[256];
+    private int _size;
+
+    void add(long value) {
+      if (_size == _values.length) {
+        _values = Arrays.copyOf(_values, _size * 2);
+      }
+      _values[_size++] = value;
+    }
+
+    int size() {
+      return _size;
+    }
+
+    long sum() {
+      long sum = 0L;
+      for (int i = 0; i < _size; i++) {
+        sum += _values[i];
+      }
+      return sum;
+    }
+
+    void sort() {
+      Arrays.sort(_values, 0, _size);
+    }
+
+    long percentile(double percentile) {
+      sort();
+      int index = (int) Math.ceil(percentile / 100.0 * _size) - 1;
+      return _values[Math.max(0, Math.min(index, _size - 1))];
+    }
+  }
+}
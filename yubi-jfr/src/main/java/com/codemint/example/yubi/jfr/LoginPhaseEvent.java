@@ -0,0 +1,31 @@
+package com.codemint.example.yubi.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for one phase of a login.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+@Name(LoginPhaseEvent.NAME)
+@Label("Login Phase")
+@Description("A phase of a two-factor login")
+@Category({ "Yubikey", "Login" })
+@StackTrace(false)
+class LoginPhaseEvent extends jdk.jfr.Event {
+  static final String NAME = "com.codemint.yubi.LoginPhase";
+
+  @Label("Phase")
+  String phase;
+
+  @Label("User")
+  String userId;
+
+  @Label("Detail")
+  @Description("Remote address for logins, service endpoints for OTP validation")
+  String detail;
+}
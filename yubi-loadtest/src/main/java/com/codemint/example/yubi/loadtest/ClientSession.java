@@ -0,0 +1,137 @@
+package com.codemint.example.yubi.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A browser session: HTTP requests that share cookies. Redirects are not
+ * followed, the load test requests the pages it needs explicitly. Safe for
+ * use by several threads.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+final class ClientSession {
+  private static final int TIMEOUT_MILLIS = 30_000;
+  private final String _baseUrl;
+  private final ConcurrentMap<String, String> _cookies = new ConcurrentHashMap<>();
+
+  ClientSession(String baseUrl) {
+    _baseUrl = baseUrl;
+  }
+
+  Response get(String path) throws IOException {
+    return execute(path, null);
+  }
+
+  Response post(String path, String form) throws IOException {
+    return execute(path, form);
+  }
+
+  private Response execute(String path, String form) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(_baseUrl + path).openConnection();
+    connection.setInstanceFollowRedirects(false);
+    connection.setUseCaches(false);
+    connection.setConnectTimeout(TIMEOUT_MILLIS);
+    connection.setReadTimeout(TIMEOUT_MILLIS);
+    String cookieHeader = getCookieHeader();
+    if (cookieHeader != null) {
+      connection.setRequestProperty("Cookie", cookieHeader);
+    }
+    if (form != null) {
+      byte[] body = form.getBytes(StandardCharsets.UTF_8);
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(body.length);
+      connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+      try (OutputStream os = connection.getOutputStream()) {
+        os.write(body);
+      }
+    }
+    int status = connection.getResponseCode();
+    for (int i = 1; connection.getHeaderFieldKey(i) != null; i++) {
+      if ("Set-Cookie".equalsIgnoreCase(connection.getHeaderFieldKey(i))) {
+        storeCookie(connection.getHeaderField(i));
+      }
+    }
+    // Read the body to the end so that the connection can be reused
+    InputStream is = status >= HttpURLConnection.HTTP_BAD_REQUEST ? connection.getErrorStream() : connection
+        .getInputStream();
+    String body = "";
+    if (is != null) {
+      try {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n = is.read(buffer); n != -1; n = is.read(buffer)) {
+          bos.write(buffer, 0, n);
+        }
+        body = new String(bos.toByteArray(), StandardCharsets.UTF_8);
+      } finally {
+        is.close();
+      }
+    }
+    return new Response(status, body);
+  }
+
+  private String getCookieHeader() {
+    StringBuilder sb = null;
+    for (Map.Entry<String, String> entry : _cookies.entrySet()) {
+      if (sb == null) {
+        sb = new StringBuilder();
+      } else {
+        sb.append("; ");
+      }
+      sb.append(entry.getKey()).append('=').append(entry.getValue());
+    }
+    return sb != null ? sb.toString() : null;
+  }
+
+  private void storeCookie(String header) {
+    int end = header.indexOf(';');
+    String pair = end != -1 ? header.substring(0, end) : header;
+    int separator = pair.indexOf('=');
+    if (separator > 0) {
+      String name = pair.substring(0, separator).trim();
+      String value = pair.substring(separator + 1).trim();
+      if (value.isEmpty() || header.toLowerCase().contains("max-age=0")) {
+        _cookies.remove(name);
+      } else {
+        _cookies.put(name, value);
+      }
+    }
+  }
+
+  /**
+   * Status and body of a response.
+   */
+  static final class Response {
+    private final int _status;
+    private final String _body;
+
+    Response(int status, String body) {
+      _status = status;
+      _body = body;
+    }
+
+    int getStatus() {
+      return _status;
+    }
+
+    /**
+     * Check if this is a page for logged in users. All the examples serve
+     * their login form, with a password field, when the user is not logged in.
+     *
+     * @return true if the page was served and is not a login form.
+     */
+    boolean isAuthenticatedPage() {
+      return _status == HttpURLConnection.HTTP_OK && !_body.contains("type=\"password\"");
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package com.codemint.example.yubi.loadtest;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+/**
+ * The example modules with what the load test needs to know about them: how
+ * to start them, how to log in and which page requires a login.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+enum IntegrationModule {
+  APP_FILTER("yubi-app-example", "/login.jsp", "/index.jsp", false, "jetty:run") {
+    @Override
+    String createLoginForm(String userId, String password, String otp) {
+      return form("email", userId, "password", password, "otp", otp);
+    }
+  },
+  /**
+   * Container authentication with a plain realm, password only. This is the
+   * baseline without any two-factor code.
+   */
+  JEE("yubi-jee-example", "/j_security_check", "/index.jsp", true, "jetty:run") {
+    @Override
+    String createLoginForm(String userId, String password, String otp) {
+      return form("j_username", userId, "j_password", password);
+    }
+  },
+  JAAS_JETTY("yubi-jaas-jetty-example", "/j_security_check", "/index.jsp", true, "jetty:run") {
+    @Override
+    String createLoginForm(String userId, String password, String otp) {
+      return form("j_username", userId, "j_password", password, "j_otp", otp);
+    }
+  },
+  JAAS_PORTABLE("yubi-jaas-portable-example", "/j_security_check", "/index.jsp", true, "jetty:run") {
+    @Override
+    String createLoginForm(String userId, String password, String otp) {
+      // The login page joins password and OTP in the browser
+      return form("j_username", userId, "j_password", password + "|" + otp);
+    }
+  },
+  JASPIC("yubi-jaspic-example", "/login.jsp", "/secret.jsp", false, "package", "embedded-glassfish:run") {
+    @Override
+    String createLoginForm(String userId, String password, String otp) {
+      return form("j_username", userId, "j_password", password, "j_otp", otp);
+    }
+  },
+  SHIRO("yubi-shiro-example", "/login.jsp", "/secret.jsp", false, "jetty:run") {
+    @Override
+    String createLoginForm(String userId, String password, String otp) {
+      return form("username", userId, "password", password, "otp", otp);
+    }
+  },
+  JETTY_NATIVE("yubi-jetty-native-example", "/j_security_check", "/index.jsp", true, "jetty:run") {
+    @Override
+    String createLoginForm(String userId, String password, String otp) {
+      return form("j_username", userId, "j_password", password, "j_otp", otp);
+    }
+  };
+
+  private final String _directory;
+  private final String _loginPath;
+  private final String _protectedPage;
+  private final boolean _containerFormLogin;
+  private final String[] _goals;
+
+  private IntegrationModule(String directory, String loginPath, String protectedPage, boolean containerFormLogin,
+      String... goals) {
+    _directory = directory;
+    _loginPath = loginPath;
+    _protectedPage = protectedPage;
+    _containerFormLogin = containerFormLogin;
+    _goals = goals;
+  }
+
+  /**
+   * Create the URL-encoded body for the login form.
+   *
+   * @param userId
+   *          The user id.
+   * @param password
+   *          The password.
+   * @param otp
+   *          The one time password.
+   * @return form body.
+   */
+  abstract String createLoginForm(String userId, String password, String otp);
+
+  String getDirectory() {
+    return _directory;
+  }
+
+  String getLoginPath() {
+    return _loginPath;
+  }
+
+  String getProtectedPage() {
+    return _protectedPage;
+  }
+
+  /**
+   * Check if the module uses container form login, where the protected page
+   * must be requested before posting to j_security_check.
+   *
+   * @return true for container form login.
+   */
+  boolean isContainerFormLogin() {
+    return _containerFormLogin;
+  }
+
+  String[] getGoals() {
+    return _goals.clone();
+  }
+
+  /**
+   * Find a module by name, ignoring case and accepting dashes.
+   *
+   * @param name
+   *          The name, for example jaas-jetty.
+   * @return module.
+   * @throws IllegalArgumentException
+   *           if there is no such module.
+   */
+  static IntegrationModule parse(String name) {
+    return valueOf(name.trim().toUpperCase().replace('-', '_'));
+  }
+
+  private static String form(String... namesAndValues) {
+    try {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < namesAndValues.length; i += 2) {
+        if (sb.length() > 0) {
+          sb.append('&');
+        }
+        sb.append(namesAndValues[i]).append('=').append(URLEncoder.encode(namesAndValues[i + 1], "UTF-8"));
+      }
+      return sb.toString();
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException("UTF-8 not supported", e);
+    }
+  }
+}
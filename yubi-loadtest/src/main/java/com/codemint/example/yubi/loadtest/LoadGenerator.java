@@ -0,0 +1,187 @@
+package com.codemint.example.yubi.loadtest;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codemint.example.yubi.loadtest.LoadResult.Operation;
+
+/**
+ * Open-model load generator. Requests arrive as a Poisson process at a fixed
+ * mean rate no matter how fast the server responds, like users on the
+ * internet, so a slow server gets a growing queue rather than a lower load.
+ * Each request is a login or a page view in one of a fixed number of browser
+ * sessions; a page view in a session that has not logged in yet becomes a
+ * login.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+final class LoadGenerator {
+  private static final Logger _logger = LoggerFactory.getLogger(LoadGenerator.class);
+  private static final long DRAIN_TIMEOUT_SECONDS = 60L;
+  private final IntegrationModule _module;
+  private final String _baseUrl;
+  private final TestAccounts _accounts;
+  private final double _ratePerSecond;
+  private final double _loginFraction;
+  private final AtomicReferenceArray<ClientSession> _sessions;
+  private final Semaphore _inFlight;
+  private final AtomicBoolean _errorLogged = new AtomicBoolean();
+
+  /**
+   * Constructor.
+   *
+   * @param module
+   *          The module under test.
+   * @param baseUrl
+   *          The URL of the running module, without a trailing slash.
+   * @param accounts
+   *          The accounts known by the module.
+   * @param ratePerSecond
+   *          The mean number of requests per second.
+   * @param loginFraction
+   *          The fraction of the requests that are logins, 0-1.
+   * @param sessions
+   *          The number of browser sessions.
+   * @param maxInFlight
+   *          The maximum number of outstanding requests.
+   */
+  LoadGenerator(IntegrationModule module, String baseUrl, TestAccounts accounts, double ratePerSecond,
+      double loginFraction, int sessions, int maxInFlight) {
+    _module = module;
+    _baseUrl = baseUrl;
+    _accounts = accounts;
+    _ratePerSecond = ratePerSecond;
+    _loginFraction = loginFraction;
+    _sessions = new AtomicReferenceArray<>(sessions);
+    _inFlight = new Semaphore(maxInFlight);
+  }
+
+  /**
+   * Run the load. Requests scheduled during the warm-up are sent but not
+   * measured.
+   *
+   * @param warmupSeconds
+   *          The warm-up time.
+   * @param durationSeconds
+   *          The measurement time.
+   * @return result.
+   * @throws InterruptedException
+   *           if interrupted.
+   */
+  LoadResult run(long warmupSeconds, long durationSeconds) throws InterruptedException {
+    LoadResult result = new LoadResult(TimeUnit.SECONDS.toNanos(durationSeconds));
+    ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+      private final AtomicInteger _threadCount = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "yubi-load-" + _threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    Random random = new Random();
+    double meanIntervalNanos = TimeUnit.SECONDS.toNanos(1L) / _ratePerSecond;
+    long measureStart = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmupSeconds);
+    long end = measureStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+    try {
+      for (long scheduled = System.nanoTime();;) {
+        scheduled += (long) (-Math.log(1.0 - random.nextDouble()) * meanIntervalNanos);
+        if (scheduled >= end) {
+          break;
+        }
+        for (long now = System.nanoTime(); now < scheduled; now = System.nanoTime()) {
+          TimeUnit.NANOSECONDS.sleep(scheduled - now);
+        }
+        boolean measured = scheduled >= measureStart;
+        if (_inFlight.tryAcquire()) {
+          executor.execute(new Request(scheduled, random.nextDouble() < _loginFraction, measured ? result : null));
+        } else if (measured) {
+          result.recordRejected();
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+    if (!executor.awaitTermination(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+      _logger.warn("{} requests still running after {} seconds", executor.shutdownNow().size(),
+          DRAIN_TIMEOUT_SECONDS);
+    }
+    return result;
+  }
+
+  private boolean login(ClientSession session) throws IOException {
+    int account = ThreadLocalRandom.current().nextInt(_accounts.getCount());
+    if (_module.isContainerFormLogin()) {
+      // Container form login needs a saved request to return to
+      session.get(_module.getProtectedPage());
+    }
+    session.post(_module.getLoginPath(), _module.createLoginForm(_accounts.getUserId(account),
+        TestAccounts.PASSWORD, _accounts.createOtp(account, ThreadLocalRandom.current())));
+    return session.get(_module.getProtectedPage()).isAuthenticatedPage();
+  }
+
+  private void logFirstError(String message, Exception e) {
+    if (_errorLogged.compareAndSet(false, true)) {
+      _logger.warn("First failed request for {}: {}", _module, message, e);
+    }
+  }
+
+  /**
+   * A scheduled request.
+   */
+  private final class Request implements Runnable {
+    private final long _scheduledNanos;
+    private final boolean _login;
+    private final LoadResult _result;
+
+    Request(long scheduledNanos, boolean login, LoadResult result) {
+      _scheduledNanos = scheduledNanos;
+      _login = login;
+      _result = result;
+    }
+
+    @Override
+    public void run() {
+      int slot = ThreadLocalRandom.current().nextInt(_sessions.length());
+      ClientSession session = _sessions.get(slot);
+      Operation operation = _login || session == null ? Operation.LOGIN : Operation.PAGE;
+      boolean success = false;
+      try {
+        if (operation == Operation.LOGIN) {
+          session = new ClientSession(_baseUrl);
+          success = login(session);
+          if (success) {
+            _sessions.set(slot, session);
+          } else {
+            logFirstError("login failed", null);
+          }
+        } else {
+          success = session.get(_module.getProtectedPage()).isAuthenticatedPage();
+          if (!success) {
+            logFirstError("session no longer logged in", null);
+          }
+        }
+      } catch (IOException | RuntimeException e) {
+        logFirstError(e.toString(), e);
+      } finally {
+        _inFlight.release();
+      }
+      if (_result != null) {
+        _result.record(operation, success, System.nanoTime() - _scheduledNanos);
+      }
+    }
+  }
+}
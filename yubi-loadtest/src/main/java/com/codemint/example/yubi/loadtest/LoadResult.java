@@ -0,0 +1,84 @@
+package com.codemint.example.yubi.loadtest;
+
+import java.io.PrintStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.codemint.example.yubi.metrics.LatencyHistogram;
+
+/**
+ * Latencies and counts for one module during the measurement period. The
+ * latency of a request is measured from when it was scheduled to start, not
+ * from when it was sent, so time spent waiting for a free client thread is
+ * included.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+final class LoadResult {
+  private static final double NANOS_PER_MILLI = 1_000_000.0;
+  private final Map<Operation, LatencyHistogram> _latencies = new EnumMap<>(Operation.class);
+  private final Map<Operation, AtomicLong> _errors = new EnumMap<>(Operation.class);
+  private final AtomicLong _rejected = new AtomicLong();
+  private final long _durationNanos;
+
+  /**
+   * The kinds of requests.
+   */
+  enum Operation {
+    /** Login with the form, then fetch a protected page. */
+    LOGIN,
+    /** Fetch a protected page in a session that is logged in. */
+    PAGE
+  }
+
+  LoadResult(long durationNanos) {
+    _durationNanos = durationNanos;
+    for (Operation operation : Operation.values()) {
+      _latencies.put(operation, new LatencyHistogram());
+      _errors.put(operation, new AtomicLong());
+    }
+  }
+
+  void record(Operation operation, boolean success, long latencyNanos) {
+    _latencies.get(operation).record(latencyNanos);
+    if (!success) {
+      _errors.get(operation).incrementAndGet();
+    }
+  }
+
+  /**
+   * Count a request that was never sent because too many were in flight.
+   */
+  void recordRejected() {
+    _rejected.incrementAndGet();
+  }
+
+  /**
+   * Print a table with one row per module and operation.
+   *
+   * @param results
+   *          The results by module.
+   * @param out
+   *          The stream.
+   */
+  static void print(Map<IntegrationModule, LoadResult> results, PrintStream out) {
+    out.printf("%-14s %-6s %9s %9s %8s %9s %9s %9s %9s%n", "Module", "Op", "Requests", "Req/s", "Errors", "P50 ms",
+        "P99 ms", "P99.9 ms", "Max ms");
+    for (Map.Entry<IntegrationModule, LoadResult> entry : results.entrySet()) {
+      LoadResult result = entry.getValue();
+      double seconds = result._durationNanos / (NANOS_PER_MILLI * 1000.0);
+      for (Operation operation : Operation.values()) {
+        LatencyHistogram latencies = result._latencies.get(operation);
+        out.printf("%-14s %-6s %9d %9.1f %8d %9.2f %9.2f %9.2f %9.2f%n", entry.getKey(), operation,
+            latencies.getCount(), latencies.getCount() / seconds, result._errors.get(operation).get(),
+            latencies.getValueAtPercentile(50.0) / NANOS_PER_MILLI,
+            latencies.getValueAtPercentile(99.0) / NANOS_PER_MILLI,
+            latencies.getValueAtPercentile(99.9) / NANOS_PER_MILLI, latencies.getMax() / NANOS_PER_MILLI);
+      }
+      if (result._rejected.get() > 0L) {
+        out.printf("%-14s %d requests not sent, too many in flight%n", entry.getKey(), result._rejected.get());
+      }
+    }
+  }
+}
@@ -0,0 +1,235 @@
+package com.codemint.example.yubi.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Load test that compares the example modules on the same workload. Each
+ * module is started in turn in its embedded container (the Jetty or GlassFish
+ * Maven plugin) with a generated account file, pointed to a local
+ * {@link StubValidationServer} instead of the Yubico cloud, and driven by a
+ * {@link LoadGenerator}. The result is a table with throughput, errors and
+ * latency percentiles per module for logins and page views.
+ * <p>
+ * Run mvn install first so that the modules and yubi-shared are built, then
+ * run java -jar yubi-loadtest/target/loadtest.jar from the project directory.
+ * Each module runs in a temporary directory with a copy of its etc directory;
+ * the container output is kept there in container.log.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+public class LoadTest {
+  private static final Logger _logger = LoggerFactory.getLogger(LoadTest.class);
+  private static final String BASE_URL = "http://127.0.0.1:8080";
+  private static final long STARTUP_TIMEOUT_SECONDS = 600L;
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 60L;
+  private static final int VALIDATION_THREADS = 200;
+  private static final Map<String, String> DEFAULT_OPTIONS = new LinkedHashMap<>();
+  private final Map<String, String> _options;
+  private final TestAccounts _accounts;
+  private final File _workDirectory;
+  private String _validationKey;
+  private String _validationUrl;
+
+  static {
+    DEFAULT_OPTIONS.put("modules", "app-filter,jee,jaas-jetty,jaas-portable,jaspic,shiro,jetty-native");
+    DEFAULT_OPTIONS.put("rate", "50");
+    DEFAULT_OPTIONS.put("login-fraction", "0.2");
+    DEFAULT_OPTIONS.put("warmup", "30");
+    DEFAULT_OPTIONS.put("duration", "60");
+    DEFAULT_OPTIONS.put("accounts", "10000");
+    DEFAULT_OPTIONS.put("sessions", "1000");
+    DEFAULT_OPTIONS.put("max-in-flight", "1000");
+    DEFAULT_OPTIONS.put("validation-delay-ms", "0");
+    DEFAULT_OPTIONS.put("validation-port", "8090");
+    DEFAULT_OPTIONS.put("project-dir", ".");
+    DEFAULT_OPTIONS.put("mvn", System.getProperty("os.name").startsWith("Windows") ? "mvn.cmd" : "mvn");
+  }
+
+  LoadTest(Map<String, String> options) throws IOException {
+    _options = options;
+    _accounts = new TestAccounts(getInt("accounts"));
+    _workDirectory = Files.createTempDirectory("yubi-loadtest").toFile();
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    Map<String, String> options = parseOptions(args);
+    if (options == null) {
+      System.out.println("Usage: java -jar loadtest.jar [--option value]...");
+      System.out.println("Options and defaults:");
+      for (Map.Entry<String, String> entry : DEFAULT_OPTIONS.entrySet()) {
+        System.out.printf("  --%-20s %s%n", entry.getKey(), entry.getValue());
+      }
+      System.exit(1);
+    }
+    // Keep a connection per concurrent request and never resend a login
+    System.setProperty("http.maxConnections", options.get("max-in-flight"));
+    System.setProperty("sun.net.http.retryPost", "false");
+    new LoadTest(options).run();
+  }
+
+  private void run() throws IOException, InterruptedException {
+    List<IntegrationModule> modules = new ArrayList<>();
+    for (String name : _options.get("modules").split(",")) {
+      modules.add(IntegrationModule.parse(name));
+    }
+    _logger.info("Work directory {}", _workDirectory);
+    _validationKey = StubValidationServer.createKey();
+    StubValidationServer validationServer = new StubValidationServer(getInt("validation-port"), _validationKey,
+        getInt("validation-delay-ms"), VALIDATION_THREADS);
+    _validationUrl = validationServer.getUrl();
+    validationServer.start();
+    Map<IntegrationModule, LoadResult> results = new EnumMap<>(IntegrationModule.class);
+    try {
+      for (IntegrationModule module : modules) {
+        try {
+          results.put(module, runModule(module));
+        } catch (IOException | IllegalStateException e) {
+          _logger.error("Failed to test {}, skipping it", module, e);
+        }
+      }
+    } finally {
+      validationServer.stop();
+    }
+    System.out.println();
+    System.out.printf("Open model, %s requests/s, %s%% logins, %s s measured after %s s warm-up%n",
+        _options.get("rate"), Math.round(Double.parseDouble(_options.get("login-fraction")) * 100.0),
+        _options.get("duration"), _options.get("warmup"));
+    LoadResult.print(results, System.out);
+  }
+
+  private LoadResult runModule(IntegrationModule module) throws IOException, InterruptedException {
+    File moduleDirectory = new File(_options.get("project-dir"), module.getDirectory());
+    if (!new File(moduleDirectory, "pom.xml").isFile()) {
+      throw new IllegalStateException("No module in " + moduleDirectory.getAbsolutePath());
+    }
+    File workDirectory = prepareWorkDirectory(module, moduleDirectory);
+    List<String> command = new ArrayList<>();
+    command.add(_options.get("mvn"));
+    command.add("-B");
+    command.add("-f");
+    command.add(new File(moduleDirectory, "pom.xml").getAbsolutePath());
+    for (String goal : module.getGoals()) {
+      command.add(goal);
+    }
+    command.add("-DskipTests");
+    command.add("-Dyubico.client_id=1");
+    command.add("-Dyubico.secret_key=" + _validationKey);
+    command.add("-Dyubico.wsapi_urls=" + _validationUrl);
+    // All requests come from the same address
+    command.add("-Dyubi.rateLimit.addressPerMinute=" + Integer.MAX_VALUE / 2);
+    command.add("-Dyubi.rateLimit.addressBurst=" + Integer.MAX_VALUE / 2);
+    File log = new File(workDirectory, "container.log");
+    _logger.info("Starting {}, output in {}", module, log);
+    if (isListening()) {
+      throw new IllegalStateException("Something is already listening on " + BASE_URL);
+    }
+    Process process = new ProcessBuilder(command).directory(workDirectory).redirectErrorStream(true)
+        .redirectOutput(log).start();
+    try {
+      waitUntilListening(process);
+      _logger.info("Running load against {}", module);
+      return new LoadGenerator(module, BASE_URL, _accounts, Double.parseDouble(_options.get("rate")),
+          Double.parseDouble(_options.get("login-fraction")), getInt("sessions"), getInt("max-in-flight")).run(
+          getInt("warmup"), getInt("duration"));
+    } finally {
+      process.destroy();
+      process.waitFor();
+      waitUntilStopped();
+    }
+  }
+
+  private File prepareWorkDirectory(IntegrationModule module, File moduleDirectory) throws IOException {
+    File etcDirectory = new File(new File(_workDirectory, module.getDirectory()), "etc");
+    if (!etcDirectory.mkdirs()) {
+      throw new IOException("Failed to create " + etcDirectory);
+    }
+    File[] files = new File(moduleDirectory, "etc").listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.isFile()) {
+          Files.copy(file.toPath(), new File(etcDirectory, file.getName()).toPath(),
+              StandardCopyOption.REPLACE_EXISTING);
+        }
+      }
+    }
+    _accounts.writeAccountFile(new File(etcDirectory, "user_accounts.txt"));
+    _accounts.writeRealmFile(new File(etcDirectory, "jetty-realm.properties"));
+    return etcDirectory.getParentFile();
+  }
+
+  private void waitUntilListening(Process process) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(STARTUP_TIMEOUT_SECONDS);
+    while (!isListening()) {
+      if (!isRunning(process)) {
+        throw new IllegalStateException("The container stopped with exit code " + process.exitValue());
+      }
+      if (System.nanoTime() > deadline) {
+        throw new IllegalStateException("The container did not start within " + STARTUP_TIMEOUT_SECONDS + " s");
+      }
+      TimeUnit.SECONDS.sleep(1L);
+    }
+  }
+
+  private void waitUntilStopped() throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SHUTDOWN_TIMEOUT_SECONDS);
+    while (isListening()) {
+      if (System.nanoTime() > deadline) {
+        throw new IllegalStateException("The container is still listening on " + BASE_URL);
+      }
+      TimeUnit.SECONDS.sleep(1L);
+    }
+  }
+
+  private static boolean isListening() {
+    try {
+      HttpURLConnection connection = (HttpURLConnection) new URL(BASE_URL + "/").openConnection();
+      connection.setConnectTimeout(1000);
+      connection.setReadTimeout(5000);
+      connection.setInstanceFollowRedirects(false);
+      connection.getResponseCode();
+      connection.disconnect();
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static boolean isRunning(Process process) {
+    try {
+      process.exitValue();
+      return false;
+    } catch (IllegalThreadStateException e) {
+      return true;
+    }
+  }
+
+  private int getInt(String name) {
+    return Integer.parseInt(_options.get(name));
+  }
+
+  private static Map<String, String> parseOptions(String[] args) {
+    Map<String, String> options = new LinkedHashMap<>(DEFAULT_OPTIONS);
+    for (int i = 0; i < args.length; i += 2) {
+      String name = args[i].startsWith("--") ? args[i].substring(2) : null;
+      if (name == null || !options.containsKey(name) || i + 1 >= args.length) {
+        return null;
+      }
+      options.put(name, args[i + 1]);
+    }
+    return options;
+  }
+}
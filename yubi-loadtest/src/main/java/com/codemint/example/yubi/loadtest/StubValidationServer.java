@@ -0,0 +1,197 @@
+package com.codemint.example.yubi.loadtest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codemint.example.yubi.util.Base64Url;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the Yubico validation service (protocol 2.0). Every one
+ * time password with the required parameters is accepted; the response echoes
+ * the password and nonce and is signed with the shared key, so the real
+ * client library verifies it exactly as it would verify the Yubico cloud. An
+ * optional delay simulates the network round trip to the real service.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+public class StubValidationServer {
+  static final String PATH = "/wsapi/2.0/verify";
+  private static final Logger _logger = LoggerFactory.getLogger(StubValidationServer.class);
+  private static final String HMAC_ALGORITHM = "HmacSHA1";
+  private static final int KEY_LENGTH = 20;
+  private final HttpServer _server;
+  private final ExecutorService _executor;
+  private final byte[] _key;
+  private final long _delayMillis;
+  private final AtomicLong _requestCount = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param port
+   *          The port on the loopback interface, 0 for any free port.
+   * @param key
+   *          The shared key in Base64 as used by the Yubico client.
+   * @param delayMillis
+   *          The time to wait before each response.
+   * @param threads
+   *          The number of request threads.
+   * @throws IOException
+   *           if the port can't be bound.
+   */
+  public StubValidationServer(int port, String key, long delayMillis, int threads) throws IOException {
+    _key = Base64Url.decode(key.replace('+', '-').replace('/', '_').replace("=", ""));
+    if (_key == null || _key.length == 0) {
+      throw new IllegalArgumentException("Invalid key");
+    }
+    _delayMillis = delayMillis;
+    _server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+    _server.createContext(PATH, new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        handleVerify(exchange);
+      }
+    });
+    _executor = Executors.newFixedThreadPool(threads);
+    _server.setExecutor(_executor);
+  }
+
+  /**
+   * Create a random key in the Base64 format used by the Yubico client.
+   *
+   * @return key.
+   */
+  public static String createKey() {
+    byte[] key = new byte[KEY_LENGTH];
+    new SecureRandom().nextBytes(key);
+    return toStandardBase64(key);
+  }
+
+  public void start() {
+    _server.start();
+    _logger.info("Validation server listening on {}", getUrl());
+  }
+
+  public void stop() {
+    _server.stop(0);
+    _executor.shutdownNow();
+  }
+
+  /**
+   * Get the URL to use as wsapi_urls in the Yubico client.
+   *
+   * @return URL.
+   */
+  public String getUrl() {
+    return "http://127.0.0.1:" + _server.getAddress().getPort() + PATH;
+  }
+
+  public long getRequestCount() {
+    return _requestCount.get();
+  }
+
+  private void handleVerify(HttpExchange exchange) throws IOException {
+    _requestCount.incrementAndGet();
+    try {
+      if (_delayMillis > 0L) {
+        TimeUnit.MILLISECONDS.sleep(_delayMillis);
+      }
+      Map<String, String> request = parseQuery(exchange.getRequestURI().getRawQuery());
+      Map<String, String> response = new TreeMap<>();
+      SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z0'SSS");
+      timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+      response.put("t", timeFormat.format(new Date()));
+      String otp = request.get("otp");
+      String nonce = request.get("nonce");
+      if (otp == null || nonce == null || request.get("id") == null) {
+        response.put("status", "MISSING_PARAMETER");
+      } else {
+        response.put("otp", otp);
+        response.put("nonce", nonce);
+        response.put("sl", "100");
+        response.put("status", "OK");
+      }
+      byte[] body = formatResponse(response).getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(body);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      exchange.sendResponseHeaders(503, -1L);
+    } catch (GeneralSecurityException e) {
+      _logger.error("Failed to sign response", e);
+      exchange.sendResponseHeaders(500, -1L);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private String formatResponse(Map<String, String> response) throws GeneralSecurityException {
+    // The signature covers all fields in alphabetical order
+    StringBuilder signed = new StringBuilder();
+    for (Map.Entry<String, String> entry : response.entrySet()) {
+      if (signed.length() > 0) {
+        signed.append('&');
+      }
+      signed.append(entry.getKey()).append('=').append(entry.getValue());
+    }
+    Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+    mac.init(new SecretKeySpec(_key, HMAC_ALGORITHM));
+    String signature = toStandardBase64(mac.doFinal(signed.toString().getBytes(StandardCharsets.UTF_8)));
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("h=").append(signature).append("\r\n");
+    for (Map.Entry<String, String> entry : response.entrySet()) {
+      sb.append(entry.getKey()).append('=').append(entry.getValue()).append("\r\n");
+    }
+    return sb.toString();
+  }
+
+  private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+    Map<String, String> params = new HashMap<>();
+    if (query != null) {
+      for (String pair : query.split("&")) {
+        int separator = pair.indexOf('=');
+        if (separator > 0) {
+          params.put(pair.substring(0, separator), URLDecoder.decode(pair.substring(separator + 1), "UTF-8"));
+        }
+      }
+    }
+    return params;
+  }
+
+  private static String toStandardBase64(byte[] data) {
+    StringBuilder sb = new StringBuilder(Base64Url.encode(data).replace('-', '+').replace('_', '/'));
+    while (sb.length() % 4 != 0) {
+      sb.append('=');
+    }
+    return sb.toString();
+  }
+}
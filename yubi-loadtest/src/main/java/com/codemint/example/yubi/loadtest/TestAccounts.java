@@ -0,0 +1,103 @@
+package com.codemint.example.yubi.loadtest;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.codemint.example.yubi.data.UserAccount;
+import com.codemint.example.yubi.util.PasswordEncoder;
+
+/**
+ * Generated user accounts for the load test. All accounts have the same
+ * password and role, but their own user id, salt and Yubikey public id so that
+ * the per-user rate limits are not hit.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+final class TestAccounts {
+  static final String PASSWORD = "load-test";
+  private static final String ROLE = "Users";
+  private static final char[] MODHEX = "cbdefghijklnrtuv".toCharArray();
+  private static final int PUBLIC_ID_LENGTH = 12;
+  private static final int OTP_SUFFIX_LENGTH = 32;
+  private final int _count;
+
+  TestAccounts(int count) {
+    _count = count;
+  }
+
+  int getCount() {
+    return _count;
+  }
+
+  String getUserId(int i) {
+    return "user" + i + "@example.com";
+  }
+
+  String getPublicId(int i) {
+    char[] id = new char[PUBLIC_ID_LENGTH];
+    for (int pos = id.length - 1, value = i; pos >= 0; pos--, value >>>= 4) {
+      id[pos] = MODHEX[value & 0xf];
+    }
+    return new String(id);
+  }
+
+  /**
+   * Create a unique looking one time password for an account.
+   *
+   * @param i
+   *          The account index.
+   * @param random
+   *          The random generator.
+   * @return one time password.
+   */
+  String createOtp(int i, Random random) {
+    StringBuilder sb = new StringBuilder(PUBLIC_ID_LENGTH + OTP_SUFFIX_LENGTH).append(getPublicId(i));
+    for (int n = 0; n < OTP_SUFFIX_LENGTH; n++) {
+      sb.append(MODHEX[random.nextInt(MODHEX.length)]);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Write the accounts in the format used by the two-factor examples.
+   *
+   * @param file
+   *          The file.
+   * @throws IOException
+   *           on write errors.
+   */
+  void writeAccountFile(File file) throws IOException {
+    Set<UserAccount> accounts = new TreeSet<>();
+    for (int i = 0; i < _count; i++) {
+      String userId = getUserId(i);
+      UserAccount account = new UserAccount(userId, PasswordEncoder.encodePasswordForUser(userId, i, PASSWORD),
+          getPublicId(i), i);
+      account.addRole(ROLE);
+      accounts.add(account);
+    }
+    UserAccount.writeAccounts(accounts, file);
+  }
+
+  /**
+   * Write the accounts as a Jetty realm property file for the plain JEE
+   * example, which has no second factor.
+   *
+   * @param file
+   *          The file.
+   * @throws IOException
+   *           on write errors.
+   */
+  void writeRealmFile(File file) throws IOException {
+    try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+      for (int i = 0; i < _count; i++) {
+        writer.append(getUserId(i)).append(':').append(PASSWORD).append(',').append(ROLE);
+        writer.newLine();
+      }
+    }
+  }
+}
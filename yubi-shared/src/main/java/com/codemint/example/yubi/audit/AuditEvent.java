@@ -0,0 +1,27 @@
+package com.codemint.example.yubi.audit;
+
+import com.codemint.example.yubi.auth.LoginResult.Outcome;
+
+/**
+ * Preallocated slot in the {@link AuditLog} ring buffer. A producer fills in
+ * the fields and then publishes the slot by writing the sequence number, the
+ * consumer reads the sequence number before the fields.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+final class AuditEvent {
+  volatile long _sequence = -1L;
+  long _timeMillis;
+  long _durationNanos;
+  Outcome _outcome;
+  String _userId;
+  String _remoteAddress;
+  String _otp;
+
+  void clear() {
+    _outcome = null;
+    _userId = null;
+    _remoteAddress = null;
+    _otp = null;
+  }
+}
@@ -0,0 +1,379 @@
+package com.codemint.example.yubi.audit;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codemint.example.yubi.auth.LoginRateLimiter;
+import com.codemint.example.yubi.auth.LoginResult.Outcome;
+import com.codemint.example.yubi.util.BlockingExecutors;
+
+/**
+ * Asynchronous security audit log. Login events are put in a lock-free ring
+ * buffer with preallocated slots, so a request thread only claims a slot with
+ * a compare-and-set and copies a few references. A single writer thread
+ * drains the buffer in batches and appends one JSON object per line to
+ * files named audit-&lt;timestamp&gt;.jsonl, starting a new file when the
+ * current one grows too large. Written data is flushed when the buffer is
+ * empty and forced to disk at a fixed interval. An idle writer parks until the
+ * next forced write is due and is woken by the request thread that puts an
+ * event in the empty buffer, so it neither spins nor delays events.
+ * <p>
+ * If the buffer is full events are dropped rather than blocking the request
+ * thread. Dropped events are counted and reported by the writer thread.
+ * <p>
+ * The shared instance is configured with the optional resource
+ * audit.properties with the keys enabled, directory, capacity, max_file_bytes
+ * and fsync_interval_ms. By default it writes to the directory "logs".
+ *
+ * @author Erik Wramner, CodeMint
+ */
+public class AuditLog {
+  private static final Logger _logger = LoggerFactory.getLogger(AuditLog.class);
+  private static final int BATCH_SIZE = 256;
+  private static final long MIN_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1L);
+  private static final AuditLog INSTANCE = createFromProperties();
+  private final AuditEvent[] _events;
+  private final int _mask;
+  private final AtomicLong _claimed = new AtomicLong();
+  private final AtomicLong _consumed = new AtomicLong();
+  private final AtomicLong _dropped = new AtomicLong();
+  private final AtomicBoolean _writerParked = new AtomicBoolean();
+  private final File _directory;
+  private final long _maxFileBytes;
+  private final long _fsyncIntervalNanos;
+  private final StringBuilder _line = new StringBuilder(256);
+  private final SimpleDateFormat _timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+  private final SimpleDateFormat _fileNameFormat = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS");
+  private volatile boolean _running;
+  private volatile Thread _writerThread;
+  private FileOutputStream _fileStream;
+  private Writer _writer;
+  private long _fileBytes;
+  private long _reportedDropped;
+
+  /**
+   * Constructor. Call {@link #start()} to start writing.
+   *
+   * @param directory
+   *          The directory for the audit files.
+   * @param capacity
+   *          The number of events in the buffer, rounded up to a power of two.
+   * @param maxFileBytes
+   *          The approximate size when a new file is started.
+   * @param fsyncIntervalMillis
+   *          The maximum time before written events are forced to disk.
+   */
+  public AuditLog(File directory, int capacity, long maxFileBytes, long fsyncIntervalMillis) {
+    int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    _events = new AuditEvent[size];
+    for (int i = 0; i < size; i++) {
+      _events[i] = new AuditEvent();
+    }
+    _mask = size - 1;
+    _directory = directory;
+    _maxFileBytes = maxFileBytes;
+    _fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+    _timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    _fileNameFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+  }
+
+  /**
+   * Get the shared audit log.
+   *
+   * @return audit log, possibly disabled.
+   */
+  public static AuditLog getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Start the writer thread.
+   */
+  public synchronized void start() {
+    if (_writerThread == null) {
+      _running = true;
+      _writerThread = BlockingExecutors.newThread("yubi-audit-writer", new Runnable() {
+        @Override
+        public void run() {
+          writeEvents();
+        }
+      });
+      _writerThread.start();
+    }
+  }
+
+  /**
+   * Stop the writer thread after writing all pending events.
+   *
+   * @throws InterruptedException
+   *           if interrupted while waiting for the writer.
+   */
+  public synchronized void close() throws InterruptedException {
+    if (_writerThread != null) {
+      _running = false;
+      LockSupport.unpark(_writerThread);
+      _writerThread.join();
+      _writerThread = null;
+    }
+  }
+
+  /**
+   * Stop the shared audit log after writing all pending events, when the
+   * application that loaded this class stops.
+   */
+  public static void shutdown() {
+    try {
+      INSTANCE.close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Record a login event. This never blocks. Only the public id of the one
+   * time password is written.
+   *
+   * @param outcome
+   *          The outcome.
+   * @param userId
+   *          The user id or null.
+   * @param remoteAddress
+   *          The remote address or null.
+   * @param otp
+   *          The one time password or null.
+   * @param durationNanos
+   *          The time used for the login.
+   * @return true if recorded, false if the log is stopped or full.
+   */
+  public boolean log(Outcome outcome, String userId, String remoteAddress, String otp, long durationNanos) {
+    if (!_running) {
+      return false;
+    }
+    long sequence;
+    do {
+      sequence = _claimed.get();
+      if (sequence - _consumed.get() >= _events.length) {
+        _dropped.incrementAndGet();
+        return false;
+      }
+    } while (!_claimed.compareAndSet(sequence, sequence + 1));
+
+    AuditEvent event = _events[(int) sequence & _mask];
+    event._timeMillis = System.currentTimeMillis();
+    event._durationNanos = durationNanos;
+    event._outcome = outcome;
+    event._userId = userId;
+    event._remoteAddress = remoteAddress;
+    event._otp = otp;
+    event._sequence = sequence;
+    if (_writerParked.get() && _writerParked.compareAndSet(true, false)) {
+      LockSupport.unpark(_writerThread);
+    }
+    return true;
+  }
+
+  /**
+   * Get the number of events dropped because the buffer was full.
+   *
+   * @return dropped events.
+   */
+  public long getDroppedCount() {
+    return _dropped.get();
+  }
+
+  private void writeEvents() {
+    long lastSyncTime = System.nanoTime();
+    boolean unflushed = false;
+    boolean unsynced = false;
+    while (true) {
+      boolean running = _running;
+      int count = writeBatch();
+      if (count > 0) {
+        unflushed = true;
+        unsynced = true;
+      } else {
+        if (unflushed) {
+          flush();
+          unflushed = false;
+        }
+        if (!running) {
+          break;
+        }
+        reportDroppedEvents();
+        long untilSync = _fsyncIntervalNanos - (System.nanoTime() - lastSyncTime);
+        if (!unsynced || untilSync > 0L) {
+          waitForEvents(unsynced ? untilSync : Math.max(_fsyncIntervalNanos, MIN_IDLE_PARK_NANOS));
+        }
+      }
+      if (unsynced && System.nanoTime() - lastSyncTime >= _fsyncIntervalNanos) {
+        flush();
+        sync();
+        unflushed = false;
+        unsynced = false;
+        lastSyncTime = System.nanoTime();
+      }
+    }
+    sync();
+    closeFile();
+    reportDroppedEvents();
+  }
+
+  /**
+   * Park until an event is put in the buffer or the time is up. The flag is
+   * set before the buffer is checked again, so a producer that publishes at
+   * the same time is either seen here or sees the flag and unparks the writer.
+   */
+  private void waitForEvents(long nanos) {
+    _writerParked.set(true);
+    long sequence = _consumed.get();
+    if (_running && _events[(int) sequence & _mask]._sequence != sequence) {
+      LockSupport.parkNanos(this, nanos);
+    }
+    _writerParked.set(false);
+  }
+
+  private int writeBatch() {
+    long sequence = _consumed.get();
+    int count = 0;
+    while (count < BATCH_SIZE) {
+      AuditEvent event = _events[(int) sequence & _mask];
+      if (event._sequence != sequence) {
+        break;
+      }
+      write(event);
+      event.clear();
+      _consumed.set(++sequence);
+      count++;
+    }
+    return count;
+  }
+
+  private void write(AuditEvent event) {
+    StringBuilder sb = _line;
+    sb.setLength(0);
+    sb.append("{\"time\":\"").append(_timeFormat.format(new Date(event._timeMillis)));
+    sb.append("\",\"outcome\":\"").append(event._outcome.name()).append('"');
+    appendField(sb, "user", event._userId);
+    appendField(sb, "address", event._remoteAddress);
+    appendField(sb, "publicId", LoginRateLimiter.getPublicId(event._otp));
+    sb.append(",\"durationMicros\":").append(event._durationNanos / 1000L);
+    sb.append("}\n");
+    try {
+      if (_writer == null || _fileBytes >= _maxFileBytes) {
+        openNewFile();
+      }
+      _writer.append(sb);
+      _fileBytes += sb.length();
+    } catch (IOException e) {
+      _logger.error("Failed to write audit event", e);
+      closeFile();
+    }
+  }
+
+  private static void appendField(StringBuilder sb, String name, String value) {
+    if (value != null) {
+      sb.append(",\"").append(name).append("\":\"");
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        if (c == '"' || c == '\\') {
+          sb.append('\\').append(c);
+        } else if (c < 0x20) {
+          sb.append(String.format("\\u%04x", (int) c));
+        } else {
+          sb.append(c);
+        }
+      }
+      sb.append('"');
+    }
+  }
+
+  private void openNewFile() throws IOException {
+    closeFile();
+    if (!_directory.isDirectory() && !_directory.mkdirs()) {
+      throw new IOException("Failed to create directory " + _directory);
+    }
+    File file = new File(_directory, "audit-" + _fileNameFormat.format(new Date()) + ".jsonl");
+    _fileStream = new FileOutputStream(file, true);
+    _writer = new BufferedWriter(new OutputStreamWriter(_fileStream, StandardCharsets.UTF_8), 64 * 1024);
+    _fileBytes = file.length();
+    _logger.info("Writing audit events to {}", file);
+  }
+
+  private void flush() {
+    if (_writer != null) {
+      try {
+        _writer.flush();
+      } catch (IOException e) {
+        _logger.error("Failed to flush audit log", e);
+        closeFile();
+      }
+    }
+  }
+
+  private void sync() {
+    if (_writer != null) {
+      try {
+        _writer.flush();
+        _fileStream.getChannel().force(false);
+      } catch (IOException e) {
+        _logger.error("Failed to sync audit log", e);
+        closeFile();
+      }
+    }
+  }
+
+  private void closeFile() {
+    if (_writer != null) {
+      try {
+        _writer.close();
+      } catch (IOException e) {
+        _logger.error("Failed to close audit log", e);
+      }
+      _writer = null;
+      _fileStream = null;
+    }
+  }
+
+  private void reportDroppedEvents() {
+    long dropped = _dropped.get();
+    if (dropped != _reportedDropped) {
+      _logger.warn("Dropped {} audit events, buffer full", dropped - _reportedDropped);
+      _reportedDropped = dropped;
+    }
+  }
+
+  private static AuditLog createFromProperties() {
+    Properties props = new Properties();
+    try (InputStream is = AuditLog.class.getResourceAsStream("/audit.properties")) {
+      if (is != null) {
+        props.load(is);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to read audit.properties!", e);
+    }
+    AuditLog auditLog = new AuditLog(new File(props.getProperty("directory", "logs")), Integer.parseInt(props
+        .getProperty("capacity", "8192")), Long.parseLong(props.getProperty("max_file_bytes", "10485760")),
+        Long.parseLong(props.getProperty("fsync_interval_ms", "1000")));
+    if (Boolean.parseBoolean(props.getProperty("enabled", "true"))) {
+      auditLog.start();
+    }
+    return auditLog;
+  }
+}
@@ -0,0 +1,347 @@
+package com.codemint.example.yubi.audit;
+
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codemint.example.yubi.auth.LoginRateLimiter;
+import com.codemint.example.yubi.auth.LoginResult.Outcome;
+
+/**
+ * In-memory history of the last login attempts for each user and for each
+ * Yubikey public id, so that support staff can see at once why a user fails
+ * to log in or who has tried a given key, without searching the logs on every
+ * node. Each entry has the time, the remote address, the outcome, the latency
+ * and the key or user on the other side of the attempt.
+ * <p>
+ * Every user and key has a fixed-size ring of parallel arrays, so recording an
+ * attempt is a map lookup and a few array writes under a lock that is only
+ * contended by attempts for the same user. Rings are only created for users
+ * that have an account, so forged user ids can neither use up memory nor push
+ * out the history of real users; they are still shown in the history of the
+ * key, cut to a fixed length. The number of users and keys is bounded; when a
+ * map is full the rings that have been idle longest are dropped, so memory
+ * stays flat no matter how many accounts or forged keys are seen.
+ * <p>
+ * The shared instance is registered with JMX as
+ * "com.codemint.example.yubi:type=LoginHistory", where the operations
+ * getUserHistory and getKeyHistory return the entries newest first. Its depth
+ * and size are set with the system properties yubi.history.depth and
+ * yubi.history.maxEntries.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+public class LoginHistory implements LoginHistoryMXBean {
+  private static final String DOMAIN = "com.codemint.example.yubi";
+  private static final String DEPTH_PROPERTY = "yubi.history.depth";
+  private static final String MAX_ENTRIES_PROPERTY = "yubi.history.maxEntries";
+  private static final int DEFAULT_DEPTH = 16;
+  private static final int DEFAULT_MAX_ENTRIES = 100_000;
+  private static final int MAX_USER_ID_LENGTH = 256;
+  private static final Logger _logger = LoggerFactory.getLogger(LoginHistory.class);
+  private static final Outcome[] OUTCOMES = Outcome.values();
+  private static final LoginHistory INSTANCE = createRegisteredInstance();
+  private final RingMap _users;
+  private final RingMap _keys;
+  private final int _depth;
+  private final String _tenantId;
+  private boolean _sharedRegistered;
+
+  public LoginHistory() {
+    this(null);
+  }
+
+  /**
+   * Constructor for the history of a tenant, with the depth and size from the
+   * system properties.
+   *
+   * @param tenantId
+   *          The tenant id or null for none.
+   */
+  public LoginHistory(String tenantId) {
+    this(tenantId, Integer.getInteger(DEPTH_PROPERTY, DEFAULT_DEPTH), Integer.getInteger(MAX_ENTRIES_PROPERTY,
+        DEFAULT_MAX_ENTRIES));
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param tenantId
+   *          The tenant id or null for none.
+   * @param depth
+   *          The number of attempts to keep per user and key.
+   * @param maxEntries
+   *          The maximum number of users and of keys to track.
+   */
+  public LoginHistory(String tenantId, int depth, int maxEntries) {
+    if (depth <= 0 || maxEntries <= 0) {
+      throw new IllegalArgumentException("Depth and max entries must be positive");
+    }
+    _tenantId = tenantId;
+    _depth = depth;
+    _users = new RingMap(depth, maxEntries);
+    _keys = new RingMap(depth, maxEntries);
+  }
+
+  /**
+   * Get the shared instance registered with JMX.
+   *
+   * @return history.
+   */
+  public static LoginHistory getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Record a login attempt.
+   *
+   * @param outcome
+   *          The outcome.
+   * @param userId
+   *          The user id or null if missing.
+   * @param knownUser
+   *          True if the user has an account, in which case the attempt is
+   *          added to the history of the user.
+   * @param remoteAddress
+   *          The remote address or null if unknown.
+   * @param otp
+   *          The one time password or null if missing; only the public id is
+   *          kept.
+   * @param durationNanos
+   *          The time the attempt took.
+   */
+  public void record(Outcome outcome, String userId, boolean knownUser, String remoteAddress, String otp,
+      long durationNanos) {
+    long timeMillis = System.currentTimeMillis();
+    int latencyMicros = (int) Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMicros(durationNanos));
+    String publicId = LoginRateLimiter.getPublicId(otp);
+    if (userId != null && knownUser) {
+      _users.get(userId, timeMillis).add(timeMillis, latencyMicros, outcome, remoteAddress, publicId);
+    }
+    if (publicId != null) {
+      _keys.get(publicId, timeMillis).add(timeMillis, latencyMicros, outcome, remoteAddress, knownUser ? userId
+          : truncate(userId));
+    }
+  }
+
+  private static String truncate(String userId) {
+    return userId != null && userId.length() > MAX_USER_ID_LENGTH ? userId.substring(0, MAX_USER_ID_LENGTH)
+        + "..." : userId;
+  }
+
+  @Override
+  public String[] getUserHistory(String userId) {
+    Ring ring = _users.find(userId);
+    return ring != null ? ring.format("key") : new String[0];
+  }
+
+  @Override
+  public String[] getKeyHistory(String publicId) {
+    Ring ring = _keys.find(publicId);
+    return ring != null ? ring.format("user") : new String[0];
+  }
+
+  @Override
+  public int getUserCount() {
+    return _users.size();
+  }
+
+  @Override
+  public int getKeyCount() {
+    return _keys.size();
+  }
+
+  @Override
+  public int getDepth() {
+    return _depth;
+  }
+
+  /**
+   * Register with JMX.
+   *
+   * @param server
+   *          The MBean server.
+   * @throws JMException
+   *           if registration fails.
+   */
+  public void register(MBeanServer server) throws JMException {
+    server.registerMBean(this, getObjectName());
+  }
+
+  /**
+   * Unregister from JMX.
+   *
+   * @param server
+   *          The MBean server.
+   * @throws JMException
+   *           if not registered.
+   */
+  public void unregister(MBeanServer server) throws JMException {
+    server.unregisterMBean(getObjectName());
+  }
+
+  private ObjectName getObjectName() throws JMException {
+    return new ObjectName(DOMAIN + ":type=LoginHistory" + (_tenantId != null ? ",tenant=" + ObjectName.quote(
+        _tenantId) : ""));
+  }
+
+  /**
+   * Remove the shared instance from JMX, when the application that loaded
+   * this class stops. Nothing is done if another application had already
+   * registered the name.
+   */
+  public static synchronized void shutdown() {
+    if (INSTANCE._sharedRegistered) {
+      INSTANCE._sharedRegistered = false;
+      try {
+        INSTANCE.unregister(ManagementFactory.getPlatformMBeanServer());
+      } catch (JMException | SecurityException e) {
+        _logger.debug("Failed to unregister login history", e);
+      }
+    }
+  }
+
+  private static LoginHistory createRegisteredInstance() {
+    LoginHistory history = new LoginHistory();
+    try {
+      history.register(ManagementFactory.getPlatformMBeanServer());
+      history._sharedRegistered = true;
+    } catch (JMException | SecurityException e) {
+      _logger.warn("Failed to register login history with JMX, maybe registered by another application", e);
+    }
+    return history;
+  }
+
+  /**
+   * Bounded map of rings. When full, the rings that have been idle longest
+   * are dropped until it is three quarters full.
+   */
+  private static final class RingMap {
+    private final ConcurrentMap<String, Ring> _rings = new ConcurrentHashMap<>();
+    private final AtomicBoolean _evicting = new AtomicBoolean();
+    private final int _depth;
+    private final int _maxEntries;
+
+    RingMap(int depth, int maxEntries) {
+      _depth = depth;
+      _maxEntries = maxEntries;
+    }
+
+    Ring find(String key) {
+      return key != null ? _rings.get(key) : null;
+    }
+
+    Ring get(String key, long nowMillis) {
+      Ring ring = _rings.get(key);
+      if (ring == null) {
+        if (_rings.size() >= _maxEntries) {
+          evict();
+        }
+        Ring newRing = new Ring(_depth, nowMillis);
+        ring = _rings.putIfAbsent(key, newRing);
+        if (ring == null) {
+          ring = newRing;
+        }
+      }
+      return ring;
+    }
+
+    int size() {
+      return _rings.size();
+    }
+
+    private void evict() {
+      if (!_evicting.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        long[] lastTimes = new long[_rings.size()];
+        int count = 0;
+        for (Iterator<Ring> i = _rings.values().iterator(); i.hasNext() && count < lastTimes.length;) {
+          lastTimes[count++] = i.next()._lastTimeMillis;
+        }
+        final int lowWatermark = _maxEntries - _maxEntries / 4;
+        if (count <= lowWatermark) {
+          return;
+        }
+        Arrays.sort(lastTimes, 0, count);
+        long cutoff = lastTimes[count - lowWatermark - 1];
+        for (Iterator<Ring> i = _rings.values().iterator(); i.hasNext();) {
+          if (i.next()._lastTimeMillis <= cutoff) {
+            i.remove();
+          }
+        }
+      } finally {
+        _evicting.set(false);
+      }
+    }
+  }
+
+  /**
+   * Fixed-size ring of login attempts in parallel arrays. The strings are the
+   * ones passed by the caller, so nothing is copied; they are bounded by the
+   * account ids, the OTP length limit and the truncation of unknown user ids.
+   */
+  private static final class Ring {
+    private final long[] _timesMillis;
+    private final int[] _latenciesMicros;
+    private final byte[] _outcomes;
+    private final String[] _remoteAddresses;
+    private final String[] _counterparts;
+    private int _next;
+    private int _size;
+    private volatile long _lastTimeMillis;
+
+    Ring(int depth, long nowMillis) {
+      _timesMillis = new long[depth];
+      _latenciesMicros = new int[depth];
+      _outcomes = new byte[depth];
+      _remoteAddresses = new String[depth];
+      _counterparts = new String[depth];
+      _lastTimeMillis = nowMillis;
+    }
+
+    synchronized void add(long timeMillis, int latencyMicros, Outcome outcome, String remoteAddress,
+        String counterpart) {
+      int i = _next;
+      _timesMillis[i] = timeMillis;
+      _latenciesMicros[i] = latencyMicros;
+      _outcomes[i] = (byte) outcome.ordinal();
+      _remoteAddresses[i] = remoteAddress;
+      _counterparts[i] = counterpart;
+      _next = i + 1 == _timesMillis.length ? 0 : i + 1;
+      if (_size < _timesMillis.length) {
+        _size++;
+      }
+      _lastTimeMillis = timeMillis;
+    }
+
+    synchronized String[] format(String counterpartName) {
+      SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+      timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+      String[] lines = new String[_size];
+      int i = _next;
+      for (int n = 0; n < _size; n++) {
+        i = i == 0 ? _timesMillis.length - 1 : i - 1;
+        lines[n] = timeFormat.format(new Date(_timesMillis[i])) + " " + OUTCOMES[_outcomes[i]] + " from "
+            + _remoteAddresses[i] + " " + counterpartName + " " + _counterparts[i] + " in "
+            + _latenciesMicros[i] / 1000 + " ms";
+      }
+      return lines;
+    }
+  }
+}
@@ -0,0 +1,33 @@
+package com.codemint.example.yubi.audit;
+
+/**
+ * Management interface for {@link LoginHistory}, for support staff.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+public interface LoginHistoryMXBean {
+
+  /**
+   * Get the last login attempts for a user.
+   *
+   * @param userId
+   *          The user id.
+   * @return one line per attempt, newest first.
+   */
+  String[] getUserHistory(String userId);
+
+  /**
+   * Get the last login attempts with a Yubikey.
+   *
+   * @param publicId
+   *          The public id of the key, its OTPs without the last 32 characters.
+   * @return one line per attempt, newest first.
+   */
+  String[] getKeyHistory(String publicId);
+
+  int getUserCount();
+
+  int getKeyCount();
+
+  int getDepth();
+}
@@ -0,0 +1,208 @@
+package com.codemint.example.yubi.auth;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import com.codemint.example.yubi.util.Base64Url;
+import com.codemint.example.yubi.util.HmacSigner;
+
+/**
+ * Immutable trusted device token, issued after a complete two-factor login
+ * when the user asks to trust the device. It is signed with a
+ * {@link HmacSigner} and kept in a long-lived cookie. Until it expires, logins
+ * from the same browser need only the password, see
+ * {@link TwoFactorVerifier#verifyTrustedDevice(String, String, DeviceToken, String)}.
+ * <p>
+ * The token is bound to the user, to the account generation (raise it in the
+ * account file to revoke all tokens for the user), to the tenant if any and to
+ * a device id from {@link #newDeviceId()}. The device id is a random secret
+ * that the integrations keep in a separate HttpOnly cookie for the browser;
+ * the token only holds a hash of it. A token copied to another browser is
+ * therefore useless without the device id cookie too. Both are ordinary
+ * cookies, so the binding is no stronger than the protection of the cookies
+ * in the browser and on the wire.
+ * <p>
+ * The binary format is a type byte, the expiry time in seconds since the epoch
+ * (8 bytes), the generation (8 bytes), the device hash (8 bytes) and the user
+ * id in UTF-8. Tokens for a tenant have another type byte and the tenant id in
+ * UTF-8 with a length byte before the user id. The type bytes differ from
+ * {@link SessionToken}, so one can never be accepted as the other even with
+ * the same keys.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+public final class DeviceToken {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final byte TYPE = 'D';
+  private static final byte TENANT_TYPE = 'E';
+  private static final int MAX_TENANT_ID_LENGTH = 255;
+  private static final int HEADER_LENGTH = 25;
+  private static final int DEVICE_ID_BYTES = 16;
+  private static final SecureRandom RANDOM = new SecureRandom();
+  private final String _tenantId;
+  private final String _userId;
+  private final long _generation;
+  private final long _deviceHash;
+  private final long _expiresAtSeconds;
+
+  /**
+   * Constructor.
+   *
+   * @param tenantId
+   *          The tenant id or null for none.
+   * @param userId
+   *          The user id.
+   * @param generation
+   *          The account generation.
+   * @param deviceHash
+   *          The device hash from {@link #getDeviceHash(String)}.
+   * @param expiresAtSeconds
+   *          The expiry time in seconds since the epoch.
+   */
+  public DeviceToken(String tenantId, String userId, long generation, long deviceHash, long expiresAtSeconds) {
+    if (userId == null) {
+      throw new IllegalArgumentException("User id cannot be null");
+    }
+    if (tenantId != null && tenantId.getBytes(UTF_8).length > MAX_TENANT_ID_LENGTH) {
+      throw new IllegalArgumentException("Tenant id too long");
+    }
+    _tenantId = tenantId;
+    _userId = userId;
+    _generation = generation;
+    _deviceHash = deviceHash;
+    _expiresAtSeconds = expiresAtSeconds;
+  }
+
+  /**
+   * Create a random device id for a browser that has none.
+   *
+   * @return device id, safe for a cookie value.
+   */
+  public static String newDeviceId() {
+    byte[] bytes = new byte[DEVICE_ID_BYTES];
+    RANDOM.nextBytes(bytes);
+    return Base64Url.encode(bytes);
+  }
+
+  /**
+   * Compute the hash that binds a token to a device id: the first eight bytes
+   * of its SHA-256 digest, so that no other id with the same hash can be
+   * found from a token.
+   *
+   * @param deviceId
+   *          The device id.
+   * @return hash.
+   */
+  public static long getDeviceHash(String deviceId) {
+    try {
+      return SessionToken.getLong(MessageDigest.getInstance("SHA-256").digest(deviceId.getBytes(UTF_8)), 0);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Required algorithm SHA-256 missing in JVM!");
+    }
+  }
+
+  /**
+   * Get the tenant id.
+   *
+   * @return tenant id or null if not bound to a tenant.
+   */
+  public String getTenantId() {
+    return _tenantId;
+  }
+
+  public String getUserId() {
+    return _userId;
+  }
+
+  public long getGeneration() {
+    return _generation;
+  }
+
+  public long getDeviceHash() {
+    return _deviceHash;
+  }
+
+  public long getExpiresAtSeconds() {
+    return _expiresAtSeconds;
+  }
+
+  public boolean isExpired(long nowMillis) {
+    return nowMillis / 1000L >= _expiresAtSeconds;
+  }
+
+  /**
+   * Sign the token.
+   *
+   * @param signer
+   *          The signer.
+   * @return signed string suitable for a cookie.
+   */
+  public String sign(HmacSigner signer) {
+    byte[] tenantIdBytes = _tenantId != null ? _tenantId.getBytes(UTF_8) : null;
+    byte[] userIdBytes = _userId.getBytes(UTF_8);
+    int userIdOffset = tenantIdBytes != null ? HEADER_LENGTH + 1 + tenantIdBytes.length : HEADER_LENGTH;
+    byte[] payload = new byte[userIdOffset + userIdBytes.length];
+    payload[0] = tenantIdBytes != null ? TENANT_TYPE : TYPE;
+    SessionToken.putLong(payload, 1, _expiresAtSeconds);
+    SessionToken.putLong(payload, 9, _generation);
+    SessionToken.putLong(payload, 17, _deviceHash);
+    if (tenantIdBytes != null) {
+      payload[HEADER_LENGTH] = (byte) tenantIdBytes.length;
+      System.arraycopy(tenantIdBytes, 0, payload, HEADER_LENGTH + 1, tenantIdBytes.length);
+    }
+    System.arraycopy(userIdBytes, 0, payload, userIdOffset, userIdBytes.length);
+    return signer.sign(payload);
+  }
+
+  /**
+   * Verify a signed token.
+   *
+   * @param signer
+   *          The signer.
+   * @param signedToken
+   *          The signed token, may be null.
+   * @param tenantId
+   *          The tenant id of the request or null for none.
+   * @param deviceId
+   *          The device id from the cookie of the browser, may be null.
+   * @param nowMillis
+   *          The current time.
+   * @return token or null if not valid, expired, issued for another tenant or
+   *         issued to another device.
+   */
+  public static DeviceToken verify(HmacSigner signer, String signedToken, String tenantId, String deviceId,
+      long nowMillis) {
+    if (deviceId == null) {
+      return null;
+    }
+    byte[] payload = signer.verify(signedToken);
+    if (payload == null || payload.length <= HEADER_LENGTH || (payload[0] != TYPE && payload[0] != TENANT_TYPE)) {
+      return null;
+    }
+    String tokenTenantId = null;
+    int userIdOffset = HEADER_LENGTH;
+    if (payload[0] == TENANT_TYPE) {
+      int tenantIdLength = payload[HEADER_LENGTH] & 0xff;
+      userIdOffset = HEADER_LENGTH + 1 + tenantIdLength;
+      if (payload.length <= userIdOffset) {
+        return null;
+      }
+      tokenTenantId = new String(payload, HEADER_LENGTH + 1, tenantIdLength, UTF_8);
+    }
+    if (tenantId == null ? tokenTenantId != null : !tenantId.equals(tokenTenantId)) {
+      return null;
+    }
+    DeviceToken token = new DeviceToken(tokenTenantId, new String(payload, userIdOffset, payload.length
+        - userIdOffset, UTF_8), SessionToken.getLong(payload, 9), SessionToken.getLong(payload, 17), SessionToken
+            .getLong(payload, 1));
+    return token.isExpired(nowMillis) || token._deviceHash != getDeviceHash(deviceId) ? null : token;
+  }
+
+  @Override
+  public String toString() {
+    return "DeviceToken [_tenantId=" + _tenantId + ", _userId=" + _userId + ", _generation=" + _generation
+        + ", _expiresAtSeconds=" + _expiresAtSeconds + "]";
+  }
+}
@@ -0,0 +1,96 @@
+package com.codemint.example.yubi.auth;
+
+import com.codemint.example.yubi.util.TokenBucketMap;
+
+/**
+ * Rate limiter for login attempts keyed by user id, remote address and the
+ * public id of the Yubikey. Login code should call
+ * {@link #tryAcquire(String, String, String)} before doing anything expensive,
+ * i.e. before hashing the password or calling the validation service.
+ * <p>
+ * The limit per remote address in the shared instance can be raised with the
+ * system properties yubi.rateLimit.addressPerMinute and
+ * yubi.rateLimit.addressBurst, for example for load tests where all requests
+ * come from one host.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public class LoginRateLimiter {
+  private static final int OTP_SUFFIX_LENGTH = 32;
+  private static final int MAX_OTP_LENGTH = 48;
+  private static final int MAX_ENTRIES = 100_000;
+  private static final String ADDRESS_RATE_PROPERTY = "yubi.rateLimit.addressPerMinute";
+  private static final String ADDRESS_BURST_PROPERTY = "yubi.rateLimit.addressBurst";
+  private static final LoginRateLimiter INSTANCE = createDefault();
+  private final TokenBucketMap _userBuckets;
+  private final TokenBucketMap _addressBuckets;
+  private final TokenBucketMap _publicIdBuckets;
+
+  /**
+   * Constructor.
+   * 
+   * @param userBuckets
+   *          The buckets for user ids.
+   * @param addressBuckets
+   *          The buckets for remote addresses.
+   * @param publicIdBuckets
+   *          The buckets for public Yubikey ids.
+   */
+  public LoginRateLimiter(TokenBucketMap userBuckets, TokenBucketMap addressBuckets, TokenBucketMap publicIdBuckets) {
+    _userBuckets = userBuckets;
+    _addressBuckets = addressBuckets;
+    _publicIdBuckets = publicIdBuckets;
+  }
+
+  /**
+   * Get the shared limiter with default limits.
+   * 
+   * @return limiter.
+   */
+  public static LoginRateLimiter getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Create a new limiter with default limits, for example for a tenant that
+   * should not share limits with others.
+   * 
+   * @return limiter.
+   */
+  public static LoginRateLimiter createDefault() {
+    return new LoginRateLimiter(new TokenBucketMap(6, 10, MAX_ENTRIES), new TokenBucketMap(Integer.getInteger(
+        ADDRESS_RATE_PROPERTY, 60), Integer.getInteger(ADDRESS_BURST_PROPERTY, 30), MAX_ENTRIES), new TokenBucketMap(6,
+        10, MAX_ENTRIES));
+  }
+
+  /**
+   * Check if a login attempt is allowed. Unknown values (null) are not limited.
+   * 
+   * @param userId
+   *          The user id.
+   * @param remoteAddress
+   *          The remote address.
+   * @param otp
+   *          The one time password, used to find the public Yubikey id.
+   * @return true if allowed, false if the attempt should be rejected.
+   */
+  public boolean tryAcquire(String userId, String remoteAddress, String otp) {
+    return _addressBuckets.tryAcquire(remoteAddress) && _userBuckets.tryAcquire(userId)
+        && _publicIdBuckets.tryAcquire(getPublicId(otp));
+  }
+
+  /**
+   * Get the public id of the Yubikey that claims to have generated a one time
+   * password. The id is not verified.
+   * 
+   * @param otp
+   *          The one time password.
+   * @return public id or null if the password has the wrong length.
+   */
+  public static String getPublicId(String otp) {
+    if (otp != null && otp.length() > OTP_SUFFIX_LENGTH && otp.length() <= MAX_OTP_LENGTH) {
+      return otp.substring(0, otp.length() - OTP_SUFFIX_LENGTH);
+    }
+    return null;
+  }
+}
@@ -0,0 +1,77 @@
+package com.codemint.example.yubi.auth;
+
+import com.codemint.example.yubi.data.UserAccount;
+
+/**
+ * Immutable result of a login attempt with outcome and, if successful, the
+ * authenticated account.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public final class LoginResult {
+
+  /**
+   * Possible outcomes. All but {@link #SUCCESS} are failures.
+   */
+  public static enum Outcome {
+    SUCCESS, RATE_LIMITED, MISSING_CREDENTIALS, UNKNOWN_USER, BAD_PASSWORD, BAD_OTP_FORMAT, NOT_OK, WRONG_KEY,
+    UNREACHABLE, NOT_READY, UNTRUSTED_DEVICE;
+
+    private final LoginResult _failure = new LoginResult(this, null);
+  }
+
+  private final Outcome _outcome;
+  private final UserAccount _account;
+
+  private LoginResult(Outcome outcome, UserAccount account) {
+    _outcome = outcome;
+    _account = account;
+  }
+
+  /**
+   * Get a successful result.
+   * 
+   * @param account
+   *          The authenticated account.
+   * @return result.
+   */
+  public static LoginResult success(UserAccount account) {
+    return new LoginResult(Outcome.SUCCESS, account);
+  }
+
+  /**
+   * Get a failed result. The results are shared.
+   * 
+   * @param outcome
+   *          The reason for the failure.
+   * @return result.
+   */
+  public static LoginResult failure(Outcome outcome) {
+    if (outcome == Outcome.SUCCESS) {
+      throw new IllegalArgumentException("Success is not a failure");
+    }
+    return outcome._failure;
+  }
+
+  public Outcome getOutcome() {
+    return _outcome;
+  }
+
+  public boolean isSuccess() {
+    return _outcome == Outcome.SUCCESS;
+  }
+
+  /**
+   * Get the authenticated account.
+   * 
+   * @return account or null if the login failed.
+   */
+  public UserAccount getAccount() {
+    return _account;
+  }
+
+  @Override
+  public String toString() {
+    return "LoginResult [_outcome=" + _outcome + ", _account=" + _account + "]";
+  }
+}
@@ -0,0 +1,238 @@
+package com.codemint.example.yubi.auth;
+
+import java.io.File;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codemint.example.yubi.audit.AuditLog;
+import com.codemint.example.yubi.audit.LoginHistory;
+import com.codemint.example.yubi.data.AccountLoader;
+import com.codemint.example.yubi.data.AccountStore;
+import com.codemint.example.yubi.data.UserAccount;
+import com.codemint.example.yubi.metrics.LoginMetrics;
+import com.codemint.example.yubi.util.BlockingExecutors;
+import com.codemint.example.yubi.util.PasswordEncoder;
+import com.codemint.example.yubi.util.TokenBucketMap;
+
+/**
+ * Warms up the login code after start, so that the first real logins do not
+ * run in the interpreter. A background thread runs the complete
+ * {@link TwoFactorVerifier} check many times with synthetic accounts and a
+ * local stand-in for the validation service, in a mix of successful and
+ * failed logins. Nothing is written to the shared metrics, history or audit
+ * log.
+ * <p>
+ * The warm-up runs at least the given number of logins and then continues
+ * until the JIT compilers have been nearly idle for a few batches, as reported
+ * by the {@link CompilationMXBean}, or until the time limit. Until then
+ * {@link #isReady()} is false, so a readiness check can keep the node out of
+ * the load balancer. The network calls to the validation service are not
+ * warmed up.
+ * <p>
+ * There is one warm-up per process, registered with JMX as
+ * "com.codemint.example.yubi:type=LoginWarmup". It is off unless started, see
+ * {@link com.codemint.example.yubi.web.LoginWarmupListener}.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+public class LoginWarmup implements LoginWarmupMXBean {
+  private static final String DOMAIN = "com.codemint.example.yubi";
+  private static final Logger _logger = LoggerFactory.getLogger(LoginWarmup.class);
+  private static final LoginWarmup INSTANCE = createRegisteredInstance();
+  private static final int ACCOUNT_COUNT = 100;
+  private static final int BATCH_SIZE = 1000;
+  private static final long SETTLED_COMPILATION_MILLIS = 5L;
+  private static final int SETTLED_BATCHES = 3;
+  private static final String PASSWORD = "warmup";
+  private static final char[] MODHEX = "cbdefghijklnrtuv".toCharArray();
+  private volatile State _state = State.NOT_STARTED;
+  private volatile long _iterations;
+  private volatile long _durationMillis;
+  private volatile long _compilationMillis = -1L;
+
+  /**
+   * The states of the warm-up.
+   */
+  public static enum State {
+    NOT_STARTED, RUNNING, DONE
+  }
+
+  /**
+   * Get the shared warm-up registered with JMX.
+   *
+   * @return warm-up.
+   */
+  public static LoginWarmup getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Start the warm-up in the background unless already started.
+   *
+   * @param minIterations
+   *          The minimum number of logins.
+   * @param maxMillis
+   *          The maximum time to run.
+   */
+  public synchronized void start(final int minIterations, final long maxMillis) {
+    if (_state == State.NOT_STARTED) {
+      _state = State.RUNNING;
+      BlockingExecutors.newThread("yubi-login-warmup", new Runnable() {
+        @Override
+        public void run() {
+          warmUp(minIterations, maxMillis);
+        }
+      }).start();
+    }
+  }
+
+  @Override
+  public State getState() {
+    return _state;
+  }
+
+  @Override
+  public boolean isReady() {
+    return _state != State.RUNNING;
+  }
+
+  @Override
+  public long getIterations() {
+    return _iterations;
+  }
+
+  @Override
+  public long getDurationMillis() {
+    return _durationMillis;
+  }
+
+  @Override
+  public long getCompilationMillis() {
+    return _compilationMillis;
+  }
+
+  private void warmUp(int minIterations, long maxMillis) {
+    long startTime = System.nanoTime();
+    long deadline = startTime + TimeUnit.MILLISECONDS.toNanos(maxMillis);
+    CompilationMXBean compiler = ManagementFactory.getCompilationMXBean();
+    boolean timed = compiler != null && compiler.isCompilationTimeMonitoringSupported();
+    long compilationStart = timed ? compiler.getTotalCompilationTime() : 0L;
+    try {
+      Random random = new Random();
+      String[] publicIds = new String[ACCOUNT_COUNT];
+      TwoFactorVerifier verifier = createVerifier(random, publicIds);
+      long iterations = 0L;
+      long lastCompilation = compilationStart;
+      int settledBatches = 0;
+      while (System.nanoTime() - deadline < 0L) {
+        for (int i = 0; i < BATCH_SIZE; i++, iterations++) {
+          login(verifier, random, publicIds, iterations);
+        }
+        _iterations = iterations;
+        if (timed) {
+          long compilation = compiler.getTotalCompilationTime();
+          settledBatches = compilation - lastCompilation <= SETTLED_COMPILATION_MILLIS ? settledBatches + 1 : 0;
+          lastCompilation = compilation;
+        }
+        if (iterations >= minIterations && (!timed || settledBatches >= SETTLED_BATCHES)) {
+          break;
+        }
+      }
+    } catch (RuntimeException e) {
+      _logger.warn("Login warm-up failed", e);
+    } finally {
+      _durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+      if (timed) {
+        _compilationMillis = compiler.getTotalCompilationTime() - compilationStart;
+      }
+      _state = State.DONE;
+    }
+    _logger.info("Warmed up login with {} attempts in {} ms, {} ms compiling", _iterations, _durationMillis,
+        _compilationMillis);
+  }
+
+  /**
+   * Create a verifier with synthetic accounts, a validator that accepts every
+   * well-formed OTP without network calls, limits that are never reached and
+   * private metrics and history. The audit log is never started, so nothing is
+   * written.
+   */
+  private static TwoFactorVerifier createVerifier(Random random, String[] publicIds) {
+    Map<String, UserAccount> accounts = new HashMap<>();
+    for (int i = 0; i < ACCOUNT_COUNT; i++) {
+      String userId = getUserId(i);
+      int salt = random.nextInt();
+      publicIds[i] = randomModhex(random, 12);
+      accounts.put(userId, new UserAccount(userId, PasswordEncoder.encodePasswordForUser(userId, salt, PASSWORD),
+          publicIds[i], salt));
+    }
+    OtpValidator otpValidator = new OtpValidator() {
+      @Override
+      public String validate(String otp) {
+        return LoginRateLimiter.getPublicId(otp);
+      }
+    };
+    LoginRateLimiter rateLimiter = new LoginRateLimiter(createUnlimitedBuckets(), createUnlimitedBuckets(),
+        createUnlimitedBuckets());
+    return new TwoFactorVerifier(AccountLoader.forStore(new AccountStore(accounts)), otpValidator, rateLimiter,
+        new LoginMetrics(), new AuditLog(new File("."), 2, 1L, 1L), new LoginHistory(null, 1, ACCOUNT_COUNT * 2));
+  }
+
+  private static TokenBucketMap createUnlimitedBuckets() {
+    return new TokenBucketMap(Integer.MAX_VALUE, Integer.MAX_VALUE, ACCOUNT_COUNT * 2);
+  }
+
+  /**
+   * Run one login. Most succeed; the rest fail with a wrong password, an
+   * unknown user, a malformed OTP or another user's key, so that the failure
+   * paths are compiled too.
+   */
+  private static LoginResult login(TwoFactorVerifier verifier, Random random, String[] publicIds, long iteration) {
+    int account = (int) (iteration % ACCOUNT_COUNT);
+    String otp = publicIds[account] + randomModhex(random, 32);
+    switch ((int) (iteration % 10)) {
+    case 0:
+      return verifier.verify(getUserId(account), "wrong", otp, "127.0.0.1");
+    case 1:
+      return verifier.verify("unknown@example.com", PASSWORD, otp, "127.0.0.1");
+    case 2:
+      return verifier.verify(getUserId(account), PASSWORD, "not an otp", "127.0.0.1");
+    case 3:
+      return verifier.verify(getUserId((account + 1) % ACCOUNT_COUNT), PASSWORD, otp, "127.0.0.1");
+    default:
+      return verifier.verify(getUserId(account), PASSWORD, otp, "127.0.0.1");
+    }
+  }
+
+  private static String getUserId(int account) {
+    return "warmup" + account + "@example.com";
+  }
+
+  private static String randomModhex(Random random, int length) {
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = MODHEX[random.nextInt(MODHEX.length)];
+    }
+    return new String(chars);
+  }
+
+  private static LoginWarmup createRegisteredInstance() {
+    LoginWarmup warmup = new LoginWarmup();
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(warmup, new ObjectName(DOMAIN + ":type=LoginWarmup"));
+    } catch (JMException | SecurityException e) {
+      _logger.warn("Failed to register login warm-up with JMX, maybe registered by another application", e);
+    }
+    return warmup;
+  }
+}
@@ -0,0 +1,31 @@
+package com.codemint.example.yubi.auth;
+
+import com.codemint.example.yubi.auth.LoginWarmup.State;
+
+/**
+ * Management interface for {@link LoginWarmup}, for readiness checks.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+public interface LoginWarmupMXBean {
+
+  State getState();
+
+  /**
+   * Check if the warm-up is done or was never started.
+   *
+   * @return true if ready for traffic.
+   */
+  boolean isReady();
+
+  long getIterations();
+
+  long getDurationMillis();
+
+  /**
+   * Get the time the JIT compilers spent while warming up.
+   *
+   * @return milliseconds or -1 if not supported by the JVM.
+   */
+  long getCompilationMillis();
+}
@@ -0,0 +1,20 @@
+package com.codemint.example.yubi.auth;
+
+/**
+ * Validates one time passwords with a remote service.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public interface OtpValidator {
+
+  /**
+   * Validate a one time password with a valid format.
+   * 
+   * @param otp
+   *          The one time password.
+   * @return the public id of the key if the password is valid, null if not.
+   * @throws ValidationServiceException
+   *           if the validation service could not be reached.
+   */
+  String validate(String otp) throws ValidationServiceException;
+}
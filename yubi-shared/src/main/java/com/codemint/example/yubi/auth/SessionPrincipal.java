@@ -0,0 +1,158 @@
+package com.codemint.example.yubi.auth;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import com.codemint.example.yubi.data.RoleIndex;
+import com.codemint.example.yubi.data.UserAccount;
+
+/**
+ * Immutable principal for a logged in user, kept in the HTTP session instead
+ * of the {@link UserAccount}. It holds only the user id, the roles as a
+ * {@link RoleIndex} mask, the account version (see
+ * {@link UserAccount#getVersion()}) and the tenant id if any, so the password
+ * hash and salt never reach the session store.
+ * <p>
+ * It has its own compact encoding, so a replicated or persisted session costs
+ * a few dozen bytes: a format byte, the user id in modified UTF-8, the role
+ * mask as a variable-length number (one byte for up to seven roles), the
+ * version as eight bytes and the tenant id if the format byte says so.
+ * <p>
+ * The public no-argument constructor is for deserialization only.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+public final class SessionPrincipal implements Externalizable {
+  private static final long serialVersionUID = 1L;
+  private static final byte FORMAT = 1;
+  private static final byte TENANT_FORMAT = 2;
+  private String _tenantId;
+  private String _userId;
+  private long _roleMask;
+  private long _version;
+
+  /**
+   * Constructor for deserialization only.
+   */
+  public SessionPrincipal() {
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param tenantId
+   *          The tenant id or null for none.
+   * @param userId
+   *          The user id.
+   * @param roleMask
+   *          The role mask.
+   * @param version
+   *          The account version at login.
+   */
+  public SessionPrincipal(String tenantId, String userId, long roleMask, long version) {
+    if (userId == null) {
+      throw new IllegalArgumentException("User id cannot be null");
+    }
+    _tenantId = tenantId;
+    _userId = userId;
+    _roleMask = roleMask;
+    _version = version;
+  }
+
+  /**
+   * Create a principal for an account.
+   *
+   * @param tenantId
+   *          The tenant id or null for none.
+   * @param account
+   *          The account.
+   * @param roleIndex
+   *          The index for the role mask.
+   * @return principal.
+   */
+  public static SessionPrincipal forAccount(String tenantId, UserAccount account, RoleIndex roleIndex) {
+    return new SessionPrincipal(tenantId, account.getEmail(), roleIndex.getMask(account.getRoles()), account
+        .getVersion());
+  }
+
+  /**
+   * Get the tenant id.
+   *
+   * @return tenant id or null if not bound to a tenant.
+   */
+  public String getTenantId() {
+    return _tenantId;
+  }
+
+  public String getUserId() {
+    return _userId;
+  }
+
+  public long getRoleMask() {
+    return _roleMask;
+  }
+
+  public long getVersion() {
+    return _version;
+  }
+
+  /**
+   * Check if the account is unchanged since login.
+   *
+   * @param account
+   *          The current account, may be null if removed.
+   * @return true if current.
+   */
+  public boolean isCurrent(UserAccount account) {
+    return account != null && account.getVersion() == _version;
+  }
+
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    out.writeByte(_tenantId != null ? TENANT_FORMAT : FORMAT);
+    out.writeUTF(_userId);
+    // Unsigned variable-length number, seven bits per byte
+    long mask = _roleMask;
+    while ((mask & ~0x7fL) != 0L) {
+      out.writeByte((int) (mask & 0x7fL) | 0x80);
+      mask >>>= 7;
+    }
+    out.writeByte((int) mask);
+    out.writeLong(_version);
+    if (_tenantId != null) {
+      out.writeUTF(_tenantId);
+    }
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException {
+    byte format = in.readByte();
+    if (format != FORMAT && format != TENANT_FORMAT) {
+      throw new InvalidObjectException("Unknown session principal format " + format);
+    }
+    _userId = in.readUTF();
+    long mask = 0L;
+    for (int shift = 0;; shift += 7) {
+      if (shift > 63) {
+        throw new InvalidObjectException("Role mask too long");
+      }
+      byte b = in.readByte();
+      mask |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        break;
+      }
+    }
+    _roleMask = mask;
+    _version = in.readLong();
+    _tenantId = format == TENANT_FORMAT ? in.readUTF() : null;
+  }
+
+  @Override
+  public String toString() {
+    return "SessionPrincipal [_tenantId=" + _tenantId + ", _userId=" + _userId + ", _roleMask=" + _roleMask
+        + ", _version=" + _version + "]";
+  }
+}
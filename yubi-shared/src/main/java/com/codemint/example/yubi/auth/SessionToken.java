@@ -0,0 +1,235 @@
+package com.codemint.example.yubi.auth;
+
+import java.nio.charset.Charset;
+
+import com.codemint.example.yubi.data.UserAccount;
+import com.codemint.example.yubi.util.HmacSigner;
+
+/**
+ * Immutable session token with user id, role mask and expiry time. It is meant
+ * to be signed with a {@link HmacSigner} and stored in a cookie, so that any
+ * node can verify a session locally without a shared session store.
+ * <p>
+ * The binary format is a type byte, the expiry time in seconds since the epoch
+ * (8 bytes), the role mask (8 bytes) and the user id in UTF-8.
+ * <p>
+ * A token can also be bound to a tenant, so that a session from one tenant is
+ * not accepted by another with the same keys. Such tokens have another type
+ * byte and the tenant id in UTF-8 with a length byte before the user id.
+ * <p>
+ * A token can also carry the version of the account (see
+ * {@link com.codemint.example.yubi.data.UserAccount#getVersion()}), so that it
+ * can be rejected once the password or roles change. Such tokens have their
+ * own type bytes and the version (8 bytes) after the role mask.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public final class SessionToken {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final byte TYPE = 'S';
+  private static final byte TENANT_TYPE = 'T';
+  private static final byte VERSION_TYPE = 'V';
+  private static final byte TENANT_VERSION_TYPE = 'W';
+  private static final int MAX_TENANT_ID_LENGTH = 255;
+  private static final int HEADER_LENGTH = 17;
+  private static final int VERSION_HEADER_LENGTH = 25;
+  private final String _tenantId;
+  private final String _userId;
+  private final long _roleMask;
+  private final long _expiresAtSeconds;
+  private final boolean _versioned;
+  private final long _version;
+
+  /**
+   * Constructor.
+   * 
+   * @param userId
+   *          The user id.
+   * @param roleMask
+   *          The role mask.
+   * @param expiresAtSeconds
+   *          The expiry time in seconds since the epoch.
+   */
+  public SessionToken(String userId, long roleMask, long expiresAtSeconds) {
+    this(null, userId, roleMask, expiresAtSeconds);
+  }
+
+  /**
+   * Constructor for a token bound to a tenant.
+   * 
+   * @param tenantId
+   *          The tenant id or null for none.
+   * @param userId
+   *          The user id.
+   * @param roleMask
+   *          The role mask.
+   * @param expiresAtSeconds
+   *          The expiry time in seconds since the epoch.
+   */
+  public SessionToken(String tenantId, String userId, long roleMask, long expiresAtSeconds) {
+    this(tenantId, userId, roleMask, expiresAtSeconds, false, 0L);
+  }
+
+  /**
+   * Constructor for a token with the account version.
+   * 
+   * @param tenantId
+   *          The tenant id or null for none.
+   * @param userId
+   *          The user id.
+   * @param roleMask
+   *          The role mask.
+   * @param version
+   *          The account version.
+   * @param expiresAtSeconds
+   *          The expiry time in seconds since the epoch.
+   */
+  public SessionToken(String tenantId, String userId, long roleMask, long version, long expiresAtSeconds) {
+    this(tenantId, userId, roleMask, expiresAtSeconds, true, version);
+  }
+
+  private SessionToken(String tenantId, String userId, long roleMask, long expiresAtSeconds, boolean versioned,
+      long version) {
+    if (userId == null) {
+      throw new IllegalArgumentException("User id cannot be null");
+    }
+    if (tenantId != null && tenantId.getBytes(UTF_8).length > MAX_TENANT_ID_LENGTH) {
+      throw new IllegalArgumentException("Tenant id too long");
+    }
+    _tenantId = tenantId;
+    _userId = userId;
+    _roleMask = roleMask;
+    _expiresAtSeconds = expiresAtSeconds;
+    _versioned = versioned;
+    _version = version;
+  }
+
+  /**
+   * Get the tenant id.
+   * 
+   * @return tenant id or null if not bound to a tenant.
+   */
+  public String getTenantId() {
+    return _tenantId;
+  }
+
+  public String getUserId() {
+    return _userId;
+  }
+
+  public long getRoleMask() {
+    return _roleMask;
+  }
+
+  public long getExpiresAtSeconds() {
+    return _expiresAtSeconds;
+  }
+
+  public boolean isExpired(long nowMillis) {
+    return nowMillis / 1000L >= _expiresAtSeconds;
+  }
+
+  /**
+   * Check if the token was issued for the current version of an account.
+   * Tokens without a version are never current.
+   * 
+   * @param account
+   *          The current account, may be null if removed.
+   * @return true if current.
+   */
+  public boolean isCurrent(UserAccount account) {
+    return _versioned && account != null && account.getVersion() == _version;
+  }
+
+  /**
+   * Sign the token.
+   * 
+   * @param signer
+   *          The signer.
+   * @return signed string suitable for a cookie.
+   */
+  public String sign(HmacSigner signer) {
+    byte[] tenantIdBytes = _tenantId != null ? _tenantId.getBytes(UTF_8) : null;
+    byte[] userIdBytes = _userId.getBytes(UTF_8);
+    int headerLength = _versioned ? VERSION_HEADER_LENGTH : HEADER_LENGTH;
+    int userIdOffset = tenantIdBytes != null ? headerLength + 1 + tenantIdBytes.length : headerLength;
+    byte[] payload = new byte[userIdOffset + userIdBytes.length];
+    if (_versioned) {
+      payload[0] = tenantIdBytes != null ? TENANT_VERSION_TYPE : VERSION_TYPE;
+      putLong(payload, HEADER_LENGTH, _version);
+    } else {
+      payload[0] = tenantIdBytes != null ? TENANT_TYPE : TYPE;
+    }
+    putLong(payload, 1, _expiresAtSeconds);
+    putLong(payload, 9, _roleMask);
+    if (tenantIdBytes != null) {
+      payload[headerLength] = (byte) tenantIdBytes.length;
+      System.arraycopy(tenantIdBytes, 0, payload, headerLength + 1, tenantIdBytes.length);
+    }
+    System.arraycopy(userIdBytes, 0, payload, userIdOffset, userIdBytes.length);
+    return signer.sign(payload);
+  }
+
+  /**
+   * Verify a signed token.
+   * 
+   * @param signer
+   *          The signer.
+   * @param signedToken
+   *          The signed token, may be null.
+   * @param nowMillis
+   *          The current time.
+   * @return token or null if not valid or expired.
+   */
+  public static SessionToken verify(HmacSigner signer, String signedToken, long nowMillis) {
+    byte[] payload = signer.verify(signedToken);
+    if (payload == null || payload.length == 0) {
+      return null;
+    }
+    byte type = payload[0];
+    boolean versioned = type == VERSION_TYPE || type == TENANT_VERSION_TYPE;
+    if (!versioned && type != TYPE && type != TENANT_TYPE) {
+      return null;
+    }
+    int headerLength = versioned ? VERSION_HEADER_LENGTH : HEADER_LENGTH;
+    if (payload.length <= headerLength) {
+      return null;
+    }
+    String tenantId = null;
+    int userIdOffset = headerLength;
+    if (type == TENANT_TYPE || type == TENANT_VERSION_TYPE) {
+      int tenantIdLength = payload[headerLength] & 0xff;
+      userIdOffset = headerLength + 1 + tenantIdLength;
+      if (payload.length <= userIdOffset) {
+        return null;
+      }
+      tenantId = new String(payload, headerLength + 1, tenantIdLength, UTF_8);
+    }
+    SessionToken token = new SessionToken(tenantId, new String(payload, userIdOffset, payload.length - userIdOffset,
+        UTF_8), getLong(payload, 9), getLong(payload, 1), versioned, versioned ? getLong(payload, HEADER_LENGTH)
+            : 0L);
+    return token.isExpired(nowMillis) ? null : token;
+  }
+
+  static void putLong(byte[] bytes, int offset, long value) {
+    for (int i = 7; i >= 0; i--) {
+      bytes[offset + i] = (byte) value;
+      value >>>= 8;
+    }
+  }
+
+  static long getLong(byte[] bytes, int offset) {
+    long value = 0L;
+    for (int i = 0; i < 8; i++) {
+      value = value << 8 | (bytes[offset + i] & 0xff);
+    }
+    return value;
+  }
+
+  @Override
+  public String toString() {
+    return "SessionToken [_tenantId=" + _tenantId + ", _userId=" + _userId + ", _roleMask="
+        + Long.toHexString(_roleMask) + ", _expiresAtSeconds=" + _expiresAtSeconds + ", _version=" + (_versioned
+            ? Long.toHexString(_version) : "none") + "]";
+  }
+}
@@ -0,0 +1,383 @@
+package com.codemint.example.yubi.auth;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codemint.example.yubi.audit.AuditLog;
+import com.codemint.example.yubi.audit.LoginHistory;
+import com.codemint.example.yubi.auth.LoginResult.Outcome;
+import com.codemint.example.yubi.data.AccountLoader;
+import com.codemint.example.yubi.data.AccountStore;
+import com.codemint.example.yubi.data.UserAccount;
+import com.codemint.example.yubi.metrics.LoginMetrics;
+import com.codemint.example.yubi.metrics.LoginMetrics.Phase;
+import com.codemint.example.yubi.trace.LoginTracer;
+import com.codemint.example.yubi.trace.LoginTracers;
+import com.codemint.example.yubi.trace.TracePhase;
+import com.codemint.example.yubi.util.PasswordEncoder;
+import com.codemint.example.yubi.util.SingleFlight;
+import com.codemint.example.yubi.util.YubicoClientFactory;
+import com.yubico.client.v2.YubicoClient;
+
+/**
+ * Verifies user id, password and one time password against an
+ * {@link AccountStore} and an {@link OtpValidator}. This is the complete
+ * two-factor check used by the login adapters. It is thread-safe.
+ * <p>
+ * Every attempt is counted and timed in {@link LoginMetrics}, with separate
+ * timings for account lookup, password hashing and OTP validation, and
+ * recorded in the asynchronous {@link AuditLog}. The phases are also traced
+ * with the {@link LoginTracer} from {@link LoginTracers}. The attempts are only logged
+ * at debug level here, as synchronous logging is too slow under attack.
+ * <p>
+ * The accounts come from an {@link AccountLoader}. While they are still being
+ * loaded a login waits at most a few seconds and then fails with
+ * {@link Outcome#NOT_READY}, so the adapters can ask the user to retry.
+ * <p>
+ * Identical attempts that run at the same time, such as a double-clicked
+ * login button or a browser that resends a POST, share one check through
+ * {@link SingleFlight}. Otherwise the second would hash the password and call
+ * the validation service again only to fail as a replayed OTP. Attempts are
+ * only joined if user id, OTP, password and remote address are all equal, so
+ * a stolen OTP used from another address is still rejected as a replay.
+ * <p>
+ * A user who has logged in with both factors can be given a
+ * {@link DeviceToken}. Logins with a valid token need only the password, see
+ * {@link #verifyTrustedDevice(String, String, DeviceToken, String)}. That
+ * check is local and fast, with no call to the validation service.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public class TwoFactorVerifier {
+  private static final long ACCOUNT_WAIT_MILLIS = 5000L;
+  private final Logger _logger = LoggerFactory.getLogger(getClass());
+  private final AccountLoader _accountLoader;
+  private final OtpValidator _otpValidator;
+  private final LoginRateLimiter _rateLimiter;
+  private final LoginMetrics _metrics;
+  private final AuditLog _auditLog;
+  private final LoginHistory _history;
+  private final LoginTracer _tracer = LoginTracers.getTracer();
+  private final SingleFlight<AttemptKey, LoginResult> _attempts = new SingleFlight<>();
+
+  /**
+   * Constructor using the shared {@link LoginMetrics}, {@link AuditLog} and
+   * {@link LoginHistory}.
+   * 
+   * @param accountStore
+   *          The account store.
+   * @param otpValidator
+   *          The validator for one time passwords.
+   * @param rateLimiter
+   *          The rate limiter.
+   */
+  public TwoFactorVerifier(AccountStore accountStore, OtpValidator otpValidator, LoginRateLimiter rateLimiter) {
+    this(AccountLoader.forStore(accountStore), otpValidator, rateLimiter, LoginMetrics.getInstance(), AuditLog
+        .getInstance());
+  }
+
+  /**
+   * Constructor using the shared {@link LoginHistory}.
+   * 
+   * @param accountLoader
+   *          The loader for the accounts.
+   * @param otpValidator
+   *          The validator for one time passwords.
+   * @param rateLimiter
+   *          The rate limiter.
+   * @param metrics
+   *          The metrics to update.
+   * @param auditLog
+   *          The audit log for login events.
+   */
+  public TwoFactorVerifier(AccountLoader accountLoader, OtpValidator otpValidator, LoginRateLimiter rateLimiter,
+      LoginMetrics metrics, AuditLog auditLog) {
+    this(accountLoader, otpValidator, rateLimiter, metrics, auditLog, LoginHistory.getInstance());
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param accountLoader
+   *          The loader for the accounts.
+   * @param otpValidator
+   *          The validator for one time passwords.
+   * @param rateLimiter
+   *          The rate limiter.
+   * @param metrics
+   *          The metrics to update.
+   * @param auditLog
+   *          The audit log for login events.
+   * @param history
+   *          The history of login attempts per user and key.
+   */
+  public TwoFactorVerifier(AccountLoader accountLoader, OtpValidator otpValidator, LoginRateLimiter rateLimiter,
+      LoginMetrics metrics, AuditLog auditLog, LoginHistory history) {
+    _accountLoader = accountLoader;
+    _otpValidator = otpValidator;
+    _rateLimiter = rateLimiter;
+    _metrics = metrics;
+    _auditLog = auditLog;
+    _history = history;
+  }
+
+  /**
+   * Create a verifier with accounts from a text file, the Yubico validation
+   * service and the shared rate limiter. The file is loaded in the background
+   * by the shared {@link AccountLoader}, if not already loaded.
+   * 
+   * @param accountPath
+   *          The path to the user account file.
+   * @return verifier.
+   */
+  public static TwoFactorVerifier createDefault(String accountPath) {
+    AccountLoader accountLoader = AccountLoader.getInstance(accountPath);
+    accountLoader.start();
+    return new TwoFactorVerifier(accountLoader, new YubicoOtpValidator(YubicoClientFactory.getYubicoClient()),
+        LoginRateLimiter.getInstance(), LoginMetrics.getInstance(), AuditLog.getInstance());
+  }
+
+  public AccountLoader getAccountLoader() {
+    return _accountLoader;
+  }
+
+  /**
+   * Get the accounts if they have been loaded.
+   * 
+   * @return store or null if not ready.
+   */
+  public AccountStore getAccountStore() {
+    return _accountLoader.getAccountStore();
+  }
+
+  /**
+   * Verify a login attempt.
+   * 
+   * @param userId
+   *          The user id.
+   * @param password
+   *          The password.
+   * @param otp
+   *          The one time password.
+   * @param remoteAddress
+   *          The remote address or null if unknown.
+   * @return result.
+   */
+  public LoginResult verify(String userId, String password, String otp, String remoteAddress) {
+    return verifyTimed(userId, password, otp, null, remoteAddress);
+  }
+
+  /**
+   * Verify a login attempt from a trusted device, with password and a device
+   * token instead of a one time password. The token must have been verified
+   * with {@link DeviceToken#verify}; here it is checked against the account.
+   * It fails with {@link Outcome#UNTRUSTED_DEVICE} if it belongs to another
+   * user or if the account generation has been raised since it was issued.
+   * 
+   * @param userId
+   *          The user id.
+   * @param password
+   *          The password.
+   * @param deviceToken
+   *          The verified device token.
+   * @param remoteAddress
+   *          The remote address or null if unknown.
+   * @return result.
+   */
+  public LoginResult verifyTrustedDevice(String userId, String password, DeviceToken deviceToken,
+      String remoteAddress) {
+    if (deviceToken == null) {
+      throw new IllegalArgumentException("Device token cannot be null");
+    }
+    LoginResult result = verifyTimed(userId, password, null, deviceToken, remoteAddress);
+    if (result.isSuccess()) {
+      _metrics.recordTrustedDeviceLogin();
+    }
+    return result;
+  }
+
+  private LoginResult verifyTimed(String userId, String password, String otp, DeviceToken deviceToken,
+      String remoteAddress) {
+    long startTime = System.nanoTime();
+    LoginTracer.Span span = _tracer.start(TracePhase.LOGIN, userId, remoteAddress);
+    LoginResult result;
+    try {
+      if (deviceToken != null) {
+        result = verifyUntimed(userId, password, null, deviceToken, remoteAddress);
+      } else {
+        result = verifyShared(userId, password, otp, remoteAddress);
+      }
+    } finally {
+      span.end();
+    }
+    long duration = System.nanoTime() - startTime;
+    _metrics.recordLogin(result.getOutcome(), duration);
+    _auditLog.log(result.getOutcome(), userId, remoteAddress, otp, duration);
+    _history.record(result.getOutcome(), userId, isKnownUser(userId), remoteAddress, otp, duration);
+    return result;
+  }
+
+  private boolean isKnownUser(String userId) {
+    AccountStore accountStore = _accountLoader.getAccountStore();
+    return userId != null && accountStore != null && accountStore.getAccount(userId) != null;
+  }
+
+  private LoginResult verifyShared(String userId, String password, String otp, String remoteAddress) {
+    if (userId == null || password == null || otp == null) {
+      return verifyUntimed(userId, password, otp, null, remoteAddress);
+    }
+    Attempt attempt = new Attempt(userId, password, otp, remoteAddress);
+    LoginResult result = _attempts.execute(new AttemptKey(userId, password, otp, remoteAddress), attempt);
+    if (!attempt._ran) {
+      _logger.debug("Joined a running login attempt for {}", userId);
+      _metrics.recordCoalesced();
+    }
+    return result;
+  }
+
+  private LoginResult verifyUntimed(String userId, String password, String otp, DeviceToken deviceToken,
+      String remoteAddress) {
+    if (userId == null || password == null || (otp == null && deviceToken == null)) {
+      return LoginResult.failure(Outcome.MISSING_CREDENTIALS);
+    }
+    if (!_rateLimiter.tryAcquire(userId, remoteAddress, otp)) {
+      _logger.debug("Too many login attempts for {} from {}", userId, remoteAddress);
+      return LoginResult.failure(Outcome.RATE_LIMITED);
+    }
+
+    long lookupStartTime = System.nanoTime();
+    LoginTracer.Span span = _tracer.start(TracePhase.ACCOUNT_LOOKUP, userId, null);
+    AccountStore accountStore = awaitAccountStore();
+    UserAccount account = accountStore != null ? accountStore.getAccount(userId) : null;
+    span.end();
+    long hashStartTime = System.nanoTime();
+    _metrics.recordLatency(Phase.ACCOUNT_LOOKUP, hashStartTime - lookupStartTime);
+    if (accountStore == null) {
+      _logger.debug("Accounts not loaded, state {}", _accountLoader.getState());
+      return LoginResult.failure(Outcome.NOT_READY);
+    }
+    if (account == null) {
+      _logger.debug("Unknown user {}", userId);
+      return LoginResult.failure(Outcome.UNKNOWN_USER);
+    }
+    span = _tracer.start(TracePhase.PASSWORD_HASH, userId, null);
+    String hashedPassword = PasswordEncoder.encodePasswordForUser(userId, account.getSalt(), password);
+    span.end();
+    _metrics.recordLatency(Phase.PASSWORD_HASH, System.nanoTime() - hashStartTime);
+    if (!account.getHashedPassword().equals(hashedPassword)) {
+      _logger.debug("Wrong password for {}", userId);
+      return LoginResult.failure(Outcome.BAD_PASSWORD);
+    }
+    if (deviceToken != null) {
+      if (!deviceToken.getUserId().equals(userId) || deviceToken.getGeneration() != account.getGeneration()) {
+        _logger.debug("Untrusted device token for {}", userId);
+        return LoginResult.failure(Outcome.UNTRUSTED_DEVICE);
+      }
+      _logger.debug("User {} authenticated from trusted device", userId);
+      return LoginResult.success(account);
+    }
+    span = _tracer.start(TracePhase.OTP_FORMAT_CHECK, userId, null);
+    boolean validOtpFormat = YubicoClient.isValidOTPFormat(otp);
+    span.end();
+    if (!validOtpFormat) {
+      _logger.debug("Bad format for OTP for {}", userId);
+      return LoginResult.failure(Outcome.BAD_OTP_FORMAT);
+    }
+
+    try {
+      _logger.debug("Verifying Yubikey for {}...", userId);
+      String publicId = validateTimed(otp);
+      if (publicId == null) {
+        _logger.debug("Failed to verify Yubikey for {}, response not OK", userId);
+        return LoginResult.failure(Outcome.NOT_OK);
+      }
+      if (!publicId.equals(account.getPublicYubiId())) {
+        _logger.debug("Login attempt for {} with wrong Yubikey {}!", userId, publicId);
+        return LoginResult.failure(Outcome.WRONG_KEY);
+      }
+      _logger.debug("User {} with public id {} authenticated", userId, publicId);
+      return LoginResult.success(account);
+    } catch (ValidationServiceException e) {
+      _logger.error(e.getMessage(), e.getCause());
+      return LoginResult.failure(Outcome.UNREACHABLE);
+    }
+  }
+
+  private AccountStore awaitAccountStore() {
+    try {
+      return _accountLoader.awaitAccountStore(ACCOUNT_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  private String validateTimed(String otp) throws ValidationServiceException {
+    long startTime = System.nanoTime();
+    try {
+      return _otpValidator.validate(otp);
+    } finally {
+      _metrics.recordLatency(Phase.OTP_VALIDATION, System.nanoTime() - startTime);
+    }
+  }
+
+  /**
+   * Key for identical login attempts. The hash code leaves out the password,
+   * which is only compared.
+   */
+  private static final class AttemptKey {
+    private final String _userId;
+    private final String _password;
+    private final String _otp;
+    private final String _remoteAddress;
+
+    AttemptKey(String userId, String password, String otp, String remoteAddress) {
+      _userId = userId;
+      _password = password;
+      _otp = otp;
+      _remoteAddress = remoteAddress;
+    }
+
+    @Override
+    public int hashCode() {
+      return _userId.hashCode() * 31 + _otp.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof AttemptKey)) {
+        return false;
+      }
+      AttemptKey other = (AttemptKey) obj;
+      return _userId.equals(other._userId) && _otp.equals(other._otp) && _password.equals(other._password)
+          && (_remoteAddress == null ? other._remoteAddress == null : _remoteAddress.equals(other._remoteAddress));
+    }
+  }
+
+  /**
+   * A login attempt that records if it ran or if the result came from an
+   * identical attempt.
+   */
+  private final class Attempt implements SingleFlight.Call<LoginResult> {
+    private final String _userId;
+    private final String _password;
+    private final String _otp;
+    private final String _remoteAddress;
+    private boolean _ran;
+
+    Attempt(String userId, String password, String otp, String remoteAddress) {
+      _userId = userId;
+      _password = password;
+      _otp = otp;
+      _remoteAddress = remoteAddress;
+    }
+
+    @Override
+    public LoginResult call() {
+      _ran = true;
+      return verifyUntimed(_userId, _password, _otp, null, _remoteAddress);
+    }
+  }
+}
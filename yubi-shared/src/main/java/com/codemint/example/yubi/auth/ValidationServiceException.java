@@ -0,0 +1,14 @@
+package com.codemint.example.yubi.auth;
+
+/**
+ * Thrown when the validation service for one time passwords is unavailable.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public class ValidationServiceException extends Exception {
+  private static final long serialVersionUID = 1L;
+
+  public ValidationServiceException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
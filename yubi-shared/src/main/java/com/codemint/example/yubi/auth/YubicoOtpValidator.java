@@ -0,0 +1,50 @@
+package com.codemint.example.yubi.auth;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codemint.example.yubi.trace.LoginTracer;
+import com.codemint.example.yubi.trace.LoginTracers;
+import com.codemint.example.yubi.trace.TracePhase;
+import com.yubico.client.v2.VerificationResponse;
+import com.yubico.client.v2.YubicoClient;
+import com.yubico.client.v2.exceptions.YubicoValidationFailure;
+import com.yubico.client.v2.exceptions.YubicoVerificationException;
+
+/**
+ * {@link OtpValidator} that verifies one time passwords with the Yubico
+ * validation service. The calls are traced with the configured service URLs
+ * as detail; the client queries all of them and uses the first response.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public class YubicoOtpValidator implements OtpValidator {
+  private static final Logger _logger = LoggerFactory.getLogger(YubicoOtpValidator.class);
+  private final LoginTracer _tracer = LoginTracers.getTracer();
+  private final YubicoClient _yubicoClient;
+  private final String _endpoint;
+
+  public YubicoOtpValidator(YubicoClient yubicoClient) {
+    _yubicoClient = yubicoClient;
+    String[] urls = yubicoClient.getWsapiUrls();
+    _endpoint = urls != null ? Arrays.toString(urls) : null;
+  }
+
+  @Override
+  public String validate(String otp) throws ValidationServiceException {
+    LoginTracer.Span span = _tracer.start(TracePhase.OTP_VALIDATION, null, _endpoint);
+    try {
+      VerificationResponse response = _yubicoClient.verify(otp);
+      return response.isOk() ? response.getPublicId() : null;
+    } catch (YubicoValidationFailure e) {
+      _logger.error("Validation failure for Yubikey", e);
+      return null;
+    } catch (YubicoVerificationException e) {
+      throw new ValidationServiceException("Failed to verify Yubikey - servers unreachable?", e);
+    } finally {
+      span.end();
+    }
+  }
+}
@@ -0,0 +1,125 @@
+package com.codemint.example.yubi.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The difference between an {@link AccountStore} and a new version of its
+ * account file, computed by {@link AccountSync#diff(AccountStore, java.io.File)}
+ * and applied with {@link AccountStore#apply(AccountDelta)}. It only holds the
+ * accounts that were added, changed or removed, the hashes of the old records
+ * that are no longer in the file and, while it is computed, the old records
+ * that are still there.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+public final class AccountDelta {
+  private final AccountStore _base;
+  private final AccountRecords _unchangedRecords;
+  private final List<UserAccount> _added = new ArrayList<>();
+  private final List<UserAccount> _changed = new ArrayList<>();
+  private final List<UserAccount> _removed = new ArrayList<>();
+  private final List<Record> _newRecords = new ArrayList<>();
+  private long[] _staleHashes = new long[8];
+  private int _staleCount;
+
+  AccountDelta(AccountStore base, int baseRecordCount) {
+    _base = base;
+    _unchangedRecords = new AccountRecords(baseRecordCount);
+  }
+
+  /**
+   * Get the store the delta was computed from.
+   *
+   * @return store.
+   */
+  public AccountStore getBase() {
+    return _base;
+  }
+
+  public List<UserAccount> getAdded() {
+    return Collections.unmodifiableList(_added);
+  }
+
+  public List<UserAccount> getChanged() {
+    return Collections.unmodifiableList(_changed);
+  }
+
+  public List<UserAccount> getRemoved() {
+    return Collections.unmodifiableList(_removed);
+  }
+
+  public int getUnchanged() {
+    return _unchangedRecords.size();
+  }
+
+  /**
+   * Check if the file had the same accounts as the store.
+   *
+   * @return true if nothing was added, changed or removed.
+   */
+  public boolean isEmpty() {
+    return _added.isEmpty() && _changed.isEmpty() && _removed.isEmpty();
+  }
+
+  @Override
+  public String toString() {
+    return _added.size() + " added, " + _changed.size() + " changed, " + _removed.size() + " removed, "
+        + getUnchanged() + " unchanged";
+  }
+
+  void markUnchanged(long hash, UserAccount account) {
+    _unchangedRecords.put(hash, account);
+  }
+
+  boolean isUnchanged(long hash) {
+    return _unchangedRecords.find(hash) >= 0;
+  }
+
+  void addStale(long hash) {
+    if (_staleCount == _staleHashes.length) {
+      _staleHashes = Arrays.copyOf(_staleHashes, _staleCount * 2);
+    }
+    _staleHashes[_staleCount++] = hash;
+  }
+
+  int getStaleCount() {
+    return _staleCount;
+  }
+
+  long getStaleHash(int index) {
+    return _staleHashes[index];
+  }
+
+  void addRecord(long hash, UserAccount account, boolean existing) {
+    _newRecords.add(new Record(hash, account));
+    if (existing) {
+      _changed.add(account);
+    } else {
+      _added.add(account);
+    }
+  }
+
+  void addRemoved(UserAccount account) {
+    _removed.add(account);
+  }
+
+  List<Record> getNewRecords() {
+    return _newRecords;
+  }
+
+  /**
+   * A new line with its hash.
+   */
+  static final class Record {
+    final long _hash;
+    final UserAccount _account;
+
+    Record(long hash, UserAccount account) {
+      _hash = hash;
+      _account = account;
+    }
+  }
+}
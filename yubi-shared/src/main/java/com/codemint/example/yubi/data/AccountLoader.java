@@ -0,0 +1,445 @@
+package com.codemint.example.yubi.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codemint.example.yubi.util.BlockingExecutors;
+
+/**
+ * Process-wide loader for an account file. Each file is read once per JVM in a
+ * background thread and the resulting {@link AccountStore} is shared by every
+ * login module that uses the same file, so class loading and the first login
+ * never wait for a full read. Loading is normally started when the web
+ * application starts, see {@link com.codemint.example.yubi.web.AccountLoaderListener}.
+ * <p>
+ * Login code waits a bounded time for the accounts with
+ * {@link #awaitAccountStore(long, TimeUnit)}; health checks use
+ * {@link #getState()}. A failed load is logged and retried on demand, at most
+ * every ten seconds. Each loader is registered with JMX as
+ * "com.codemint.example.yubi:type=AccountLoader,path=...".
+ * <p>
+ * Once loaded the file is checked for changes every minute, or as often as
+ * the system property "yubi.accounts.refreshSeconds" says (0 turns it off).
+ * A changed file is compared with the current accounts by {@link AccountSync}
+ * and only the delta is applied, as a new snapshot. Registered
+ * {@link Listener listeners} are then told about the delta.
+ * <p>
+ * A file that is still being written must not be mistaken for one where most
+ * accounts were removed. The modification time and length must therefore stay
+ * the same for a short settle time (system property
+ * "yubi.accounts.settleMillis", default two seconds) before the file is read
+ * and while it is read, or the check is repeated at the next refresh. Writing
+ * a new file and renaming it over the old one is still the safest. A delta
+ * that removes more than half of the accounts, or the percentage in the
+ * system property "yubi.accounts.maxRemovedPercent", is refused and logged;
+ * restart or change the file again after raising the limit to apply it.
+ * <p>
+ * Loaders from {@link #newInstance(String)} are not shared and can be closed
+ * when no longer needed, such as for a tenant that has been idle. The shared
+ * loaders are closed with {@link #shutdown()} when the application that
+ * loaded this class stops.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+public class AccountLoader implements AccountLoaderMXBean {
+  private static final String DOMAIN = "com.codemint.example.yubi";
+  private static final long RETRY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10L);
+  private static final long REFRESH_SECONDS = Long.getLong("yubi.accounts.refreshSeconds", 60L);
+  private static final long SETTLE_MILLIS = Long.getLong("yubi.accounts.settleMillis", 2000L);
+  private static final int MAX_REMOVED_PERCENT = Integer.getInteger("yubi.accounts.maxRemovedPercent", 50);
+  private static final Logger _logger = LoggerFactory.getLogger(AccountLoader.class);
+  private static final ConcurrentMap<String, AccountLoader> _loaders = new ConcurrentHashMap<>();
+  private final String _path;
+  private final List<Listener> _listeners = new CopyOnWriteArrayList<>();
+  private volatile State _state;
+  private volatile AccountStore _accountStore;
+  private volatile Throwable _failure;
+  private volatile long _loadMillis;
+  private volatile long _lastSyncMillis = -1L;
+  private volatile String _lastDelta;
+  private volatile boolean _closed;
+  private Thread _refreshThread;
+  private CountDownLatch _done = new CountDownLatch(1);
+  private long _failedAtNanos;
+  private long _fileLastModified;
+  private long _fileLength;
+
+  /**
+   * Listener for changes in the accounts after the first load.
+   */
+  public interface Listener {
+    /**
+     * Called on the refresh thread after a non-empty delta has been applied.
+     * It should return quickly.
+     *
+     * @param delta
+     *          The delta, with the previous store as base.
+     */
+    void accountsChanged(AccountDelta delta);
+  }
+
+  /**
+   * The states of a loader.
+   */
+  public static enum State {
+    NOT_STARTED, LOADING, READY, FAILED
+  }
+
+  private AccountLoader(String path, AccountStore accountStore) {
+    _path = path;
+    _accountStore = accountStore;
+    _state = accountStore != null ? State.READY : State.NOT_STARTED;
+    if (accountStore != null) {
+      _done.countDown();
+    }
+  }
+
+  /**
+   * Get the shared loader for a file. Loading is not started.
+   *
+   * @param path
+   *          The path to the user account file.
+   * @return loader.
+   */
+  public static AccountLoader getInstance(String path) {
+    String absolutePath = new File(path).getAbsolutePath();
+    AccountLoader loader = _loaders.get(absolutePath);
+    if (loader == null) {
+      loader = new AccountLoader(absolutePath, null);
+      AccountLoader existing = _loaders.putIfAbsent(absolutePath, loader);
+      if (existing != null) {
+        loader = existing;
+      } else {
+        loader.registerWithJmx();
+      }
+    }
+    return loader;
+  }
+
+  /**
+   * Create a loader for a file that is not shared with other users of the
+   * file. It is registered with JMX until closed. Loading is not started.
+   *
+   * @param path
+   *          The path to the user account file.
+   * @return loader.
+   */
+  public static AccountLoader newInstance(String path) {
+    AccountLoader loader = new AccountLoader(new File(path).getAbsolutePath(), null);
+    loader.registerWithJmx();
+    return loader;
+  }
+
+  /**
+   * Get a loader that is already done, for accounts that are not read from a
+   * file. It is not shared or registered.
+   *
+   * @param accountStore
+   *          The accounts.
+   * @return ready loader.
+   */
+  public static AccountLoader forStore(AccountStore accountStore) {
+    return new AccountLoader(null, accountStore);
+  }
+
+  /**
+   * Start loading in the background unless already loading or loaded. A
+   * failed load is started again if the last attempt was long enough ago.
+   */
+  public synchronized void start() {
+    if (_closed) {
+      return;
+    }
+    if (_state == State.NOT_STARTED
+        || (_state == State.FAILED && System.nanoTime() - _failedAtNanos >= RETRY_INTERVAL_NANOS)) {
+      _state = State.LOADING;
+      final CountDownLatch done = new CountDownLatch(1);
+      _done = done;
+      BlockingExecutors.newThread("yubi-account-loader", new Runnable() {
+        @Override
+        public void run() {
+          load(done);
+        }
+      }).start();
+    }
+  }
+
+  /**
+   * Get the accounts, starting the load if needed and waiting at most the
+   * given time for it to complete.
+   *
+   * @param timeout
+   *          The maximum time to wait.
+   * @param unit
+   *          The time unit.
+   * @return store or null if not loaded in time or failed.
+   * @throws InterruptedException
+   *           if interrupted while waiting.
+   */
+  public AccountStore awaitAccountStore(long timeout, TimeUnit unit) throws InterruptedException {
+    AccountStore accountStore = _accountStore;
+    if (accountStore != null) {
+      return accountStore;
+    }
+    CountDownLatch done;
+    synchronized (this) {
+      start();
+      done = _done;
+    }
+    done.await(timeout, unit);
+    return _accountStore;
+  }
+
+  public void addListener(Listener listener) {
+    _listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    _listeners.remove(listener);
+  }
+
+  /**
+   * Get the accounts without waiting.
+   *
+   * @return store or null if not loaded yet.
+   */
+  public AccountStore getAccountStore() {
+    return _accountStore;
+  }
+
+  public boolean isReady() {
+    return _accountStore != null;
+  }
+
+  /**
+   * Get the reason for the last failed load.
+   *
+   * @return exception or null.
+   */
+  public Throwable getFailure() {
+    return _failure;
+  }
+
+  @Override
+  public String getPath() {
+    return _path;
+  }
+
+  @Override
+  public State getState() {
+    return _state;
+  }
+
+  @Override
+  public int getAccountCount() {
+    AccountStore accountStore = _accountStore;
+    return accountStore != null ? accountStore.getAccounts().size() : -1;
+  }
+
+  @Override
+  public long getLoadMillis() {
+    return _loadMillis;
+  }
+
+  @Override
+  public long getLastSyncMillis() {
+    return _lastSyncMillis;
+  }
+
+  @Override
+  public String getLastDelta() {
+    return _lastDelta;
+  }
+
+  @Override
+  public String getFailureMessage() {
+    Throwable failure = _failure;
+    return failure != null ? failure.toString() : null;
+  }
+
+  private void load(CountDownLatch done) {
+    long startTime = System.nanoTime();
+    try {
+      File file = new File(_path);
+      long lastModified = file.lastModified();
+      long length = file.length();
+      AccountStore accountStore = AccountStore.load(_path);
+      _loadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+      synchronized (this) {
+        _accountStore = accountStore;
+        _fileLastModified = lastModified;
+        _fileLength = length;
+        _failure = null;
+        _state = State.READY;
+      }
+      _logger.info("Loaded {} accounts from {} in {} ms", accountStore.getAccounts().size(), _path, _loadMillis);
+      startRefresh();
+    } catch (RuntimeException e) {
+      synchronized (this) {
+        _failure = e;
+        _failedAtNanos = System.nanoTime();
+        _state = State.FAILED;
+      }
+      _logger.error("Failed to load accounts from {}", _path, e);
+    } finally {
+      done.countDown();
+    }
+  }
+
+  /**
+   * Apply the changes in the account file if it has been modified since the
+   * last load or sync and has stopped changing. Only the refresh thread calls
+   * this.
+   *
+   * @return true if the accounts changed.
+   * @throws IOException
+   *           on read errors.
+   * @throws InterruptedException
+   *           if interrupted while waiting for the file to settle.
+   */
+  boolean refresh() throws IOException, InterruptedException {
+    File file = new File(_path);
+    long lastModified = file.lastModified();
+    long length = file.length();
+    synchronized (this) {
+      if (lastModified == _fileLastModified && length == _fileLength) {
+        return false;
+      }
+    }
+    TimeUnit.MILLISECONDS.sleep(SETTLE_MILLIS);
+    if (!isUnchanged(file, lastModified, length)) {
+      _logger.debug("Account file {} is still changing, checking again later", _path);
+      return false;
+    }
+    long startTime = System.nanoTime();
+    AccountStore accountStore = _accountStore;
+    AccountDelta delta = AccountSync.diff(accountStore, file);
+    if (!isUnchanged(file, lastModified, length)) {
+      _logger.debug("Account file {} changed while read, checking again later", _path);
+      return false;
+    }
+    int accountCount = accountStore.getAccounts().size();
+    if (delta.getRemoved().size() * 100L > (long) accountCount * MAX_REMOVED_PERCENT) {
+      _logger.error("Refusing to remove {} of {} accounts with {}, keeping the current accounts until the file "
+          + "changes again", delta.getRemoved().size(), accountCount, _path);
+      _lastDelta = "Refused: " + delta;
+      synchronized (this) {
+        _fileLastModified = lastModified;
+        _fileLength = length;
+      }
+      return false;
+    }
+    AccountStore newStore = accountStore.apply(delta);
+    _lastSyncMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    _lastDelta = delta.toString();
+    synchronized (this) {
+      _accountStore = newStore;
+      _fileLastModified = lastModified;
+      _fileLength = length;
+    }
+    _logger.info("Synchronized accounts from {} in {} ms: {}", _path, _lastSyncMillis, delta);
+    if (delta.isEmpty()) {
+      return false;
+    }
+    for (Listener listener : _listeners) {
+      try {
+        listener.accountsChanged(delta);
+      } catch (RuntimeException e) {
+        _logger.error("Account listener failed", e);
+      }
+    }
+    return true;
+  }
+
+  private static boolean isUnchanged(File file, long lastModified, long length) {
+    return file.lastModified() == lastModified && file.length() == length;
+  }
+
+  private synchronized void startRefresh() {
+    if (REFRESH_SECONDS > 0L && !_closed) {
+      _refreshThread = BlockingExecutors.newThread("yubi-account-sync", new Runnable() {
+        @Override
+        public void run() {
+          refreshPeriodically();
+        }
+      });
+      _refreshThread.start();
+    }
+  }
+
+  /**
+   * Stop checking the file for changes and remove the loader from JMX. The
+   * accounts already loaded can still be used. Only for loaders from
+   * {@link #newInstance(String)}; shared loaders are closed by
+   * {@link #shutdown()}.
+   */
+  public void close() {
+    Thread refreshThread;
+    synchronized (this) {
+      if (_closed) {
+        return;
+      }
+      _closed = true;
+      refreshThread = _refreshThread;
+    }
+    if (refreshThread != null) {
+      refreshThread.interrupt();
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(getObjectName());
+    } catch (JMException | SecurityException e) {
+      _logger.debug("Failed to unregister account loader for {}", _path, e);
+    }
+  }
+
+  /**
+   * Close all shared loaders, when the application that loaded this class
+   * stops. Later calls to {@link #getInstance(String)} create new loaders.
+   */
+  public static void shutdown() {
+    for (AccountLoader loader : _loaders.values()) {
+      _loaders.remove(loader.getPath(), loader);
+      loader.close();
+    }
+  }
+
+  private void refreshPeriodically() {
+    try {
+      while (true) {
+        TimeUnit.SECONDS.sleep(REFRESH_SECONDS);
+        try {
+          refresh();
+        } catch (IOException | RuntimeException e) {
+          _logger.warn("Failed to synchronize accounts from {}, keeping the current accounts", _path, e);
+        }
+      }
+    } catch (InterruptedException e) {
+      _logger.debug("Account refresh interrupted");
+    }
+  }
+
+  private void registerWithJmx() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, getObjectName());
+    } catch (JMException | SecurityException e) {
+      _logger.warn("Failed to register account loader with JMX, maybe registered by another application", e);
+    }
+  }
+
+  private ObjectName getObjectName() throws JMException {
+    return new ObjectName(DOMAIN + ":type=AccountLoader,path=" + ObjectName.quote(_path));
+  }
+}
@@ -0,0 +1,42 @@
+package com.codemint.example.yubi.data;
+
+import com.codemint.example.yubi.data.AccountLoader.State;
+
+/**
+ * Management interface for {@link AccountLoader}, for readiness checks.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+public interface AccountLoaderMXBean {
+
+  String getPath();
+
+  State getState();
+
+  /**
+   * Get the number of loaded accounts.
+   *
+   * @return count or -1 if not loaded.
+   */
+  int getAccountCount();
+
+  long getLoadMillis();
+
+  /**
+   * Get the time for the last synchronization with a changed file.
+   *
+   * @return milliseconds or -1 if never synchronized.
+   */
+  long getLastSyncMillis();
+
+  /**
+   * Get a summary of the last synchronization, with the number of added,
+   * changed, removed and unchanged accounts. It starts with "Refused" if the
+   * delta removed too many accounts and was not applied.
+   *
+   * @return summary or null.
+   */
+  String getLastDelta();
+
+  String getFailureMessage();
+}
@@ -0,0 +1,82 @@
+package com.codemint.example.yubi.data;
+
+/**
+ * Hash table from the content hash of a line in the account file to the
+ * account parsed from it, with open addressing and linear probing. The hashes
+ * are kept in a primitive array, so looking up a line allocates nothing. It
+ * collects the unchanged lines while a delta is computed.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+final class AccountRecords {
+  private final long[] _hashes;
+  private final UserAccount[] _accounts;
+  private final int _mask;
+  private int _size;
+
+  /**
+   * Constructor.
+   *
+   * @param expectedSize
+   *          The number of records to make room for.
+   */
+  AccountRecords(int expectedSize) {
+    int capacity = 8;
+    while (capacity < expectedSize * 2) {
+      capacity <<= 1;
+    }
+    _hashes = new long[capacity];
+    _accounts = new UserAccount[capacity];
+    _mask = capacity - 1;
+  }
+
+  /**
+   * Find the slot for a hash.
+   *
+   * @param hash
+   *          The content hash.
+   * @return slot or -1 if not found.
+   */
+  int find(long hash) {
+    for (int slot = firstSlot(hash);; slot = (slot + 1) & _mask) {
+      if (_accounts[slot] == null) {
+        return -1;
+      } else if (_hashes[slot] == hash) {
+        return slot;
+      }
+    }
+  }
+
+  /**
+   * Add a record, replacing any record with the same hash.
+   *
+   * @param hash
+   *          The content hash.
+   * @param account
+   *          The account.
+   * @throws IllegalStateException
+   *           if the table is full.
+   */
+  void put(long hash, UserAccount account) {
+    if (_size >= _accounts.length - 1) {
+      throw new IllegalStateException("Account records full");
+    }
+    int slot = firstSlot(hash);
+    while (_accounts[slot] != null && _hashes[slot] != hash) {
+      slot = (slot + 1) & _mask;
+    }
+    if (_accounts[slot] == null) {
+      _size++;
+    }
+    _hashes[slot] = hash;
+    _accounts[slot] = account;
+  }
+
+  int size() {
+    return _size;
+  }
+
+  private int firstSlot(long hash) {
+    return (int) (hash ^ (hash >>> 32)) & _mask;
+  }
+}
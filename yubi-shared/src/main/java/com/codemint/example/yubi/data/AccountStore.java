@@ -0,0 +1,240 @@
+package com.codemint.example.yubi.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Read-only store with user accounts keyed by e-mail/account id. The accounts
+ * are kept in an immutable snapshot that can be shared by all threads.
+ * <p>
+ * Stores loaded from a file also keep a content hash per line, so that a new
+ * version of the file can be applied as a delta with {@link AccountSync}. The
+ * result is a new store that shares the unchanged accounts with this one.
+ * <p>
+ * Both the accounts and the line hashes are kept in {@link LongHashTrie}
+ * instances, so applying a delta copies only the trie nodes on the paths to
+ * the changed entries and shares the rest. The accounts are keyed by the hash
+ * code of the id; the rare ids with the same hash code share an array.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public class AccountStore {
+  private static final AccountStore EMPTY = new AccountStore(Collections.<String, UserAccount> emptyMap());
+  private final LongHashTrie<Object> _accounts;
+  private final int _accountCount;
+  private final LongHashTrie<UserAccount> _records;
+
+  /**
+   * Constructor.
+   * 
+   * @param accounts
+   *          The accounts keyed by id.
+   */
+  public AccountStore(Map<String, UserAccount> accounts) {
+    LongHashTrie<Object> trie = LongHashTrie.empty();
+    for (UserAccount account : accounts.values()) {
+      trie = withAccount(trie, account);
+    }
+    _accounts = trie;
+    _accountCount = accounts.size();
+    _records = LongHashTrie.empty();
+  }
+
+  private AccountStore(LongHashTrie<Object> accounts, int accountCount, LongHashTrie<UserAccount> records) {
+    _accounts = accounts;
+    _accountCount = accountCount;
+    _records = records;
+  }
+
+  /**
+   * Create a store with accounts from a text file.
+   * 
+   * @param path
+   *          The path to the user account file.
+   * @return store.
+   */
+  public static AccountStore load(String path) {
+    try {
+      return EMPTY.apply(AccountSync.diff(EMPTY, new File(path)));
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to read accounts", e);
+    }
+  }
+
+  /**
+   * Create a new store with a delta applied. Unchanged accounts and the trie
+   * nodes that hold them are shared with this store.
+   * 
+   * @param delta
+   *          The delta, computed from this store.
+   * @return new store or this store if the delta is empty.
+   * @throws IllegalArgumentException
+   *           if the delta was computed from another store.
+   */
+  public AccountStore apply(AccountDelta delta) {
+    if (delta.getBase() != this) {
+      throw new IllegalArgumentException("Delta computed from another store");
+    }
+    if (delta.isEmpty()) {
+      return this;
+    }
+    LongHashTrie<Object> accounts = _accounts;
+    int accountCount = _accountCount;
+    for (UserAccount account : delta.getRemoved()) {
+      if (findAccount(accounts, account.getEmail()) != null) {
+        accounts = withoutAccount(accounts, account.getEmail());
+        accountCount--;
+      }
+    }
+    LongHashTrie<UserAccount> records = _records;
+    for (int i = 0; i < delta.getStaleCount(); i++) {
+      records = records.remove(delta.getStaleHash(i));
+    }
+    for (AccountDelta.Record record : delta.getNewRecords()) {
+      if (findAccount(accounts, record._account.getEmail()) == null) {
+        accountCount++;
+      }
+      accounts = withAccount(accounts, record._account);
+      records = records.put(record._hash, record._account);
+    }
+    return new AccountStore(accounts, accountCount, records);
+  }
+
+  /**
+   * Get an account.
+   * 
+   * @param userId
+   *          The e-mail/account id.
+   * @return account or null if not found.
+   */
+  public UserAccount getAccount(String userId) {
+    return userId != null ? findAccount(_accounts, userId) : null;
+  }
+
+  /**
+   * Get all accounts.
+   * 
+   * @return unmodifiable collection with accounts.
+   */
+  public Collection<UserAccount> getAccounts() {
+    return new AbstractCollection<UserAccount>() {
+      @Override
+      public Iterator<UserAccount> iterator() {
+        return new AccountIterator(_accounts.values());
+      }
+
+      @Override
+      public int size() {
+        return _accountCount;
+      }
+    };
+  }
+
+  /**
+   * Get the records with the content hash of each line in the account file
+   * and the account parsed from it, which has the hash as version.
+   * 
+   * @return records, empty if not loaded from a file.
+   */
+  LongHashTrie<UserAccount> getRecords() {
+    return _records;
+  }
+
+  private static UserAccount findAccount(LongHashTrie<Object> accounts, String id) {
+    Object value = accounts.get(id.hashCode());
+    if (value instanceof UserAccount) {
+      UserAccount account = (UserAccount) value;
+      return account.getEmail().equals(id) ? account : null;
+    } else if (value != null) {
+      for (UserAccount account : (UserAccount[]) value) {
+        if (account.getEmail().equals(id)) {
+          return account;
+        }
+      }
+    }
+    return null;
+  }
+
+  private static LongHashTrie<Object> withAccount(LongHashTrie<Object> accounts, UserAccount account) {
+    String id = account.getEmail();
+    Object value = accounts.get(id.hashCode());
+    if (value == null || value instanceof UserAccount && ((UserAccount) value).getEmail().equals(id)) {
+      return accounts.put(id.hashCode(), account);
+    }
+    UserAccount[] others = value instanceof UserAccount ? new UserAccount[] { (UserAccount) value }
+        : (UserAccount[]) value;
+    UserAccount[] sameHash = new UserAccount[others.length + 1];
+    int count = 0;
+    for (UserAccount other : others) {
+      if (!other.getEmail().equals(id)) {
+        sameHash[count++] = other;
+      }
+    }
+    sameHash[count++] = account;
+    return accounts.put(id.hashCode(), count == 1 ? sameHash[0] : Arrays.copyOf(sameHash, count));
+  }
+
+  private static LongHashTrie<Object> withoutAccount(LongHashTrie<Object> accounts, String id) {
+    Object value = accounts.get(id.hashCode());
+    if (!(value instanceof UserAccount[])) {
+      return accounts.remove(id.hashCode());
+    }
+    UserAccount[] others = (UserAccount[]) value;
+    UserAccount[] sameHash = new UserAccount[others.length - 1];
+    int count = 0;
+    for (UserAccount other : others) {
+      if (!other.getEmail().equals(id)) {
+        sameHash[count++] = other;
+      }
+    }
+    return accounts.put(id.hashCode(), count == 1 ? sameHash[0] : sameHash);
+  }
+
+  /**
+   * Iterates over the accounts, flattening the arrays of accounts with the
+   * same id hash code.
+   */
+  private static final class AccountIterator implements Iterator<UserAccount> {
+    private final Iterator<Object> _values;
+    private UserAccount[] _sameHash;
+    private int _position;
+
+    AccountIterator(Iterator<Object> values) {
+      _values = values;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return _sameHash != null || _values.hasNext();
+    }
+
+    @Override
+    public UserAccount next() {
+      if (_sameHash != null) {
+        UserAccount account = _sameHash[_position++];
+        if (_position == _sameHash.length) {
+          _sameHash = null;
+        }
+        return account;
+      }
+      Object value = _values.next();
+      if (value instanceof UserAccount) {
+        return (UserAccount) value;
+      }
+      _sameHash = (UserAccount[]) value;
+      _position = 0;
+      return next();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
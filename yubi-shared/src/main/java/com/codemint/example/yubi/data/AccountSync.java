@@ -0,0 +1,135 @@
+package com.codemint.example.yubi.data;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Compares an account file with the accounts in a store. The file is streamed
+ * through a reusable buffer and each line is hashed with 64-bit FNV-1a. A line
+ * with the same hash as a record in the store is unchanged and is neither
+ * parsed nor copied into a string, so a resync allocates memory and creates
+ * accounts only for the lines that differ. Unchanged accounts keep their
+ * identity, so caches keyed on them stay valid. The old records are only
+ * scanned for removed lines if fewer lines than records were unchanged.
+ * <p>
+ * Stores created with the {@link AccountStore#AccountStore(java.util.Map)}
+ * constructor have no record hashes; every line in the file is then added or
+ * changed.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+public final class AccountSync {
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private AccountSync() {
+  }
+
+  /**
+   * Compute the difference between a store and an account file.
+   *
+   * @param base
+   *          The current store.
+   * @param file
+   *          The new account file.
+   * @return delta to apply to the store.
+   * @throws IOException
+   *           on read errors.
+   */
+  public static AccountDelta diff(AccountStore base, File file) throws IOException {
+    LongHashTrie<UserAccount> baseRecords = base.getRecords();
+    AccountDelta delta = new AccountDelta(base, baseRecords.size());
+    Set<String> newIds = new HashSet<>();
+    char[] buffer = new char[BUFFER_SIZE];
+    char[] line = new char[256];
+    int length = 0;
+    try (Reader reader = new FileReader(file)) {
+      for (int count = reader.read(buffer); count >= 0; count = reader.read(buffer)) {
+        for (int i = 0; i < count; i++) {
+          char c = buffer[i];
+          if (c == '\n' || c == '\r') {
+            processLine(line, length, baseRecords, delta, newIds);
+            length = 0;
+          } else {
+            if (length == line.length) {
+              line = Arrays.copyOf(line, length * 2);
+            }
+            line[length++] = c;
+          }
+        }
+      }
+      processLine(line, length, baseRecords, delta, newIds);
+    }
+    if (baseRecords.size() == 0) {
+      for (UserAccount account : base.getAccounts()) {
+        if (!newIds.contains(account.getEmail())) {
+          delta.addRemoved(account);
+        }
+      }
+    } else if (delta.getUnchanged() < baseRecords.size()) {
+      for (Iterator<UserAccount> i = baseRecords.values(); i.hasNext();) {
+        UserAccount account = i.next();
+        // The version of an account in the records is the hash of its line
+        if (!delta.isUnchanged(account.getVersion())) {
+          delta.addStale(account.getVersion());
+          // Skip stale duplicates of an id, only the account in the store counts
+          if (!newIds.contains(account.getEmail()) && base.getAccount(account.getEmail()) == account) {
+            delta.addRemoved(account);
+          }
+        }
+      }
+    }
+    return delta;
+  }
+
+  private static void processLine(char[] line, int length, LongHashTrie<UserAccount> baseRecords,
+      AccountDelta delta, Set<String> newIds) {
+    int start = 0;
+    int end = length;
+    while (start < end && line[start] <= ' ') {
+      start++;
+    }
+    while (end > start && line[end - 1] <= ' ') {
+      end--;
+    }
+    if (start == end) {
+      return;
+    }
+    long hash = hash(line, start, end);
+    UserAccount existing = baseRecords.get(hash);
+    if (existing != null) {
+      delta.markUnchanged(hash, existing);
+    } else {
+      UserAccount account = UserAccount.parse(new String(line, start, end - start), hash);
+      newIds.add(account.getEmail());
+      delta.addRecord(hash, account, delta.getBase().getAccount(account.getEmail()) != null);
+    }
+  }
+
+  /**
+   * Compute the 64-bit FNV-1a hash of a range of characters.
+   *
+   * @param chars
+   *          The characters.
+   * @param start
+   *          The first index.
+   * @param end
+   *          The index after the last.
+   * @return hash.
+   */
+  static long hash(char[] chars, int start, int end) {
+    long hash = FNV_OFFSET_BASIS;
+    for (int i = start; i < end; i++) {
+      hash ^= chars[i];
+      hash *= FNV_PRIME;
+    }
+    return hash;
+  }
+}
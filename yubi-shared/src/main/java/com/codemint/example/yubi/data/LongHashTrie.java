@@ -0,0 +1,277 @@
+package com.codemint.example.yubi.data;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable map from a 64-bit key to a value, stored as a hash array mapped
+ * trie. Each node has up to 32 entries, indexed by five bits of the key and
+ * packed with a bitmap, and an entry is either a leaf or a child node.
+ * Adding or removing a key copies only the nodes on the path to it, in
+ * practice three or four for a hundred thousand keys, and shares all other
+ * nodes with the original map. A store can therefore apply a delta with work
+ * and garbage proportional to the number of changed accounts.
+ * <p>
+ * Values cannot be null.
+ *
+ * @param <V>
+ *          The value type.
+ * @author Erik Wramner, CodeMint
+ */
+final class LongHashTrie<V> {
+  private static final int BITS = 5;
+  private static final int MAX_DEPTH = 64 / BITS + 2;
+  private static final Node EMPTY_NODE = new Node(0, new Object[0]);
+  private static final LongHashTrie<Object> EMPTY = new LongHashTrie<>(EMPTY_NODE, 0);
+  private final Node _root;
+  private final int _size;
+
+  private LongHashTrie(Node root, int size) {
+    _root = root;
+    _size = size;
+  }
+
+  /**
+   * Get the empty map.
+   *
+   * @return empty map.
+   */
+  @SuppressWarnings("unchecked")
+  static <V> LongHashTrie<V> empty() {
+    return (LongHashTrie<V>) EMPTY;
+  }
+
+  /**
+   * Get the value for a key.
+   *
+   * @param key
+   *          The key.
+   * @return value or null if not found.
+   */
+  @SuppressWarnings("unchecked")
+  V get(long key) {
+    Node node = _root;
+    for (int shift = 0;; shift += BITS) {
+      int bit = bit(key, shift);
+      if ((node._bitmap & bit) == 0) {
+        return null;
+      }
+      Object entry = node._entries[node.index(bit)];
+      if (entry instanceof Node) {
+        node = (Node) entry;
+      } else {
+        Leaf leaf = (Leaf) entry;
+        return leaf._key == key ? (V) leaf._value : null;
+      }
+    }
+  }
+
+  /**
+   * Create a map with a key added or replaced.
+   *
+   * @param key
+   *          The key.
+   * @param value
+   *          The value.
+   * @return new map.
+   */
+  LongHashTrie<V> put(long key, V value) {
+    if (value == null) {
+      throw new IllegalArgumentException("Value cannot be null");
+    }
+    int size = get(key) == null ? _size + 1 : _size;
+    return new LongHashTrie<>(put(_root, 0, new Leaf(key, value)), size);
+  }
+
+  /**
+   * Create a map with a key removed.
+   *
+   * @param key
+   *          The key.
+   * @return new map or this map if the key is not present.
+   */
+  LongHashTrie<V> remove(long key) {
+    if (get(key) == null) {
+      return this;
+    }
+    return new LongHashTrie<>(remove(_root, 0, key), _size - 1);
+  }
+
+  int size() {
+    return _size;
+  }
+
+  /**
+   * Iterate over the values in no particular order.
+   *
+   * @return iterator.
+   */
+  Iterator<V> values() {
+    return new ValueIterator<>(_root);
+  }
+
+  private static int index(long key, int shift) {
+    return (int) (key >>> shift) & 31;
+  }
+
+  private static int bit(long key, int shift) {
+    return 1 << index(key, shift);
+  }
+
+  private static Node put(Node node, int shift, Leaf leaf) {
+    int bit = bit(leaf._key, shift);
+    int index = node.index(bit);
+    if ((node._bitmap & bit) == 0) {
+      return node.insert(bit, index, leaf);
+    }
+    Object entry = node._entries[index];
+    if (entry instanceof Node) {
+      return node.replace(index, put((Node) entry, shift + BITS, leaf));
+    }
+    Leaf existing = (Leaf) entry;
+    if (existing._key == leaf._key) {
+      return node.replace(index, leaf);
+    }
+    return node.replace(index, merge(existing, leaf, shift + BITS));
+  }
+
+  /**
+   * Create a node with two leaves that share the bits below the shift. The
+   * keys differ, so the recursion ends at the last five bits at the latest.
+   */
+  private static Node merge(Leaf a, Leaf b, int shift) {
+    int indexA = index(a._key, shift);
+    int indexB = index(b._key, shift);
+    if (indexA == indexB) {
+      return new Node(1 << indexA, new Object[] { merge(a, b, shift + BITS) });
+    }
+    return new Node((1 << indexA) | (1 << indexB), indexA < indexB ? new Object[] { a, b } : new Object[] { b,
+        a });
+  }
+
+  /**
+   * Remove a key that is known to be present. A child node that is left with
+   * a single leaf is replaced by the leaf, so the trie stays as shallow as
+   * when built by adding keys.
+   */
+  private static Node remove(Node node, int shift, long key) {
+    int bit = bit(key, shift);
+    int index = node.index(bit);
+    Object entry = node._entries[index];
+    if (entry instanceof Node) {
+      Node child = remove((Node) entry, shift + BITS, key);
+      if (child._entries.length == 1 && !(child._entries[0] instanceof Node)) {
+        return node.replace(index, child._entries[0]);
+      }
+      return node.replace(index, child);
+    }
+    return node.delete(bit, index);
+  }
+
+  /**
+   * Node with the entries for the bits set in the bitmap, in bit order.
+   */
+  private static final class Node {
+    private final int _bitmap;
+    private final Object[] _entries;
+
+    Node(int bitmap, Object[] entries) {
+      _bitmap = bitmap;
+      _entries = entries;
+    }
+
+    int index(int bit) {
+      return Integer.bitCount(_bitmap & (bit - 1));
+    }
+
+    Node insert(int bit, int index, Object entry) {
+      Object[] entries = new Object[_entries.length + 1];
+      System.arraycopy(_entries, 0, entries, 0, index);
+      entries[index] = entry;
+      System.arraycopy(_entries, index, entries, index + 1, _entries.length - index);
+      return new Node(_bitmap | bit, entries);
+    }
+
+    Node replace(int index, Object entry) {
+      Object[] entries = _entries.clone();
+      entries[index] = entry;
+      return new Node(_bitmap, entries);
+    }
+
+    Node delete(int bit, int index) {
+      Object[] entries = new Object[_entries.length - 1];
+      System.arraycopy(_entries, 0, entries, 0, index);
+      System.arraycopy(_entries, index + 1, entries, index, entries.length - index);
+      return new Node(_bitmap & ~bit, entries);
+    }
+  }
+
+  /**
+   * Key and value.
+   */
+  private static final class Leaf {
+    private final long _key;
+    private final Object _value;
+
+    Leaf(long key, Object value) {
+      _key = key;
+      _value = value;
+    }
+  }
+
+  /**
+   * Depth-first iterator with an explicit stack.
+   */
+  private static final class ValueIterator<V> implements Iterator<V> {
+    private final Node[] _nodes = new Node[MAX_DEPTH];
+    private final int[] _positions = new int[MAX_DEPTH];
+    private int _depth;
+    private Leaf _next;
+
+    ValueIterator(Node root) {
+      _nodes[0] = root;
+      advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return _next != null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V next() {
+      if (_next == null) {
+        throw new NoSuchElementException();
+      }
+      V value = (V) _next._value;
+      advance();
+      return value;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    private void advance() {
+      _next = null;
+      while (_depth >= 0) {
+        Node node = _nodes[_depth];
+        if (_positions[_depth] == node._entries.length) {
+          _depth--;
+          continue;
+        }
+        Object entry = node._entries[_positions[_depth]++];
+        if (entry instanceof Node) {
+          _depth++;
+          _nodes[_depth] = (Node) entry;
+          _positions[_depth] = 0;
+        } else {
+          _next = (Leaf) entry;
+          return;
+        }
+      }
+    }
+  }
+}
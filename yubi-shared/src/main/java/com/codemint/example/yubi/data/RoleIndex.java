@@ -0,0 +1,196 @@
+package com.codemint.example.yubi.data;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Maps role names to bits in a 64-bit mask, so that a set of roles can be
+ * stored and compared as a single long. The bits are assigned in sorted name
+ * order, so all nodes with the same roles agree on the mapping.
+ * <p>
+ * Masks that leave the node, such as in session cookies and replicated
+ * sessions, must use an index from {@link #parse(String)}. There the bits
+ * follow the order of a configured list, so a role appended to the list gets
+ * a new bit and the existing bits keep their meaning on all nodes.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public final class RoleIndex {
+  public static final int MAX_ROLES = 64;
+  private static final int CACHE_BITS = 10;
+  private final String[] _names;
+  private final Map<String, Integer> _bitPositions = new HashMap<>();
+  private final AtomicReferenceArray<CachedNames> _namesByMask;
+
+  /**
+   * Constructor.
+   * 
+   * @param roleNames
+   *          All known role names.
+   * @throws IllegalArgumentException
+   *           if there are too many roles.
+   */
+  public RoleIndex(Collection<String> roleNames) {
+    this(new TreeSet<>(roleNames));
+  }
+
+  private RoleIndex(Set<String> orderedNames) {
+    if (orderedNames.size() > MAX_ROLES) {
+      throw new IllegalArgumentException("At most " + MAX_ROLES + " roles supported, got " + orderedNames.size());
+    }
+    _names = orderedNames.toArray(new String[orderedNames.size()]);
+    for (int i = 0; i < _names.length; i++) {
+      _bitPositions.put(_names[i], i);
+    }
+    _namesByMask = new AtomicReferenceArray<>(1 << Math.min(_names.length, CACHE_BITS));
+  }
+
+  /**
+   * Create an index from a configured list of roles, where the first role has
+   * the lowest bit.
+   * 
+   * @param roleList
+   *          The role names separated by commas.
+   * @return role index.
+   * @throws IllegalArgumentException
+   *           if a role is listed twice or there are too many roles.
+   */
+  public static RoleIndex parse(String roleList) {
+    Set<String> names = new LinkedHashSet<>();
+    for (String role : roleList.split(",")) {
+      String name = role.trim();
+      if (!name.isEmpty() && !names.add(name)) {
+        throw new IllegalArgumentException("Role " + name + " listed twice in " + roleList);
+      }
+    }
+    return new RoleIndex(names);
+  }
+
+  /**
+   * Create an index with all roles used by a number of accounts.
+   * 
+   * @param accounts
+   *          The accounts.
+   * @param extraRoles
+   *          Additional roles, for example roles required by configuration.
+   * @return role index.
+   */
+  public static RoleIndex forAccounts(Collection<UserAccount> accounts, String... extraRoles) {
+    TreeSet<String> roles = new TreeSet<>();
+    for (UserAccount account : accounts) {
+      roles.addAll(account.getRoles());
+    }
+    for (String role : extraRoles) {
+      roles.add(role);
+    }
+    return new RoleIndex(roles);
+  }
+
+  /**
+   * Get the bit for a role.
+   * 
+   * @param role
+   *          The role name.
+   * @return mask with the bit for the role set, 0 if unknown.
+   */
+  public long getBit(String role) {
+    Integer position = _bitPositions.get(role);
+    return position != null ? 1L << position : 0L;
+  }
+
+  /**
+   * Get the mask for a number of roles. Unknown roles are ignored.
+   * 
+   * @param roles
+   *          The role names.
+   * @return mask.
+   */
+  public long getMask(Collection<String> roles) {
+    long mask = 0L;
+    for (String role : roles) {
+      mask |= getBit(role);
+    }
+    return mask;
+  }
+
+  /**
+   * Get the roles that are not in the index, for warnings about roles that
+   * are left out of a mask.
+   * 
+   * @param roles
+   *          The role names.
+   * @return unknown roles, usually empty.
+   */
+  public List<String> getUnknownRoles(Collection<String> roles) {
+    List<String> unknown = new ArrayList<>();
+    for (String role : roles) {
+      if (!_bitPositions.containsKey(role)) {
+        unknown.add(role);
+      }
+    }
+    return unknown;
+  }
+
+  /**
+   * Get the role names for a mask. The arrays are cached and shared, so they
+   * must not be modified.
+   * <p>
+   * The cache is an array indexed by the mask itself when there are at most
+   * ten roles, so every combination has its own slot and a lookup allocates
+   * nothing. With more roles the mask is hashed to a slot and a colliding mask
+   * replaces the cached entry.
+   * 
+   * @param mask
+   *          The mask.
+   * @return role names.
+   */
+  public String[] getRoleNames(long mask) {
+    mask &= validBits();
+    int slot = getSlot(mask);
+    CachedNames cached = _namesByMask.get(slot);
+    if (cached == null || cached._mask != mask) {
+      String[] names = new String[Long.bitCount(mask)];
+      int pos = 0;
+      for (int i = 0; i < _names.length; i++) {
+        if ((mask & (1L << i)) != 0) {
+          names[pos++] = _names[i];
+        }
+      }
+      cached = new CachedNames(mask, names);
+      _namesByMask.set(slot, cached);
+    }
+    return cached._names;
+  }
+
+  private int getSlot(long mask) {
+    if (_names.length <= CACHE_BITS) {
+      return (int) mask;
+    }
+    long hash = mask * 0x9e3779b97f4a7c15L;
+    return (int) (hash >>> (64 - CACHE_BITS));
+  }
+
+  private long validBits() {
+    return _names.length == MAX_ROLES ? -1L : (1L << _names.length) - 1;
+  }
+
+  /**
+   * Immutable cache entry, so that a slot is replaced as a whole.
+   */
+  private static final class CachedNames {
+    private final long _mask;
+    private final String[] _names;
+
+    CachedNames(long mask, String[] names) {
+      _mask = mask;
+      _names = names;
+    }
+  }
+}
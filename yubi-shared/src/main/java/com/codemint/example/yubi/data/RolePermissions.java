@@ -0,0 +1,104 @@
+package com.codemint.example.yubi.data;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Permissions granted to roles, read from a plain text file with one role per
+ * line in the same style as the account file: the role name, a semicolon and
+ * the permissions separated with pipe characters, for example
+ * "PowerUsers;report:read,export|page:*|". Permissions use the Shiro wildcard
+ * syntax. It is NOT intended for production use.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+public final class RolePermissions {
+  private final Map<String, Set<String>> _permissionsByRole;
+
+  /**
+   * Constructor.
+   *
+   * @param permissionsByRole
+   *          Map from role name to granted permissions.
+   */
+  public RolePermissions(Map<String, Set<String>> permissionsByRole) {
+    Map<String, Set<String>> map = new HashMap<>();
+    for (Map.Entry<String, Set<String>> entry : permissionsByRole.entrySet()) {
+      map.put(entry.getKey(), Collections.unmodifiableSet(new LinkedHashSet<>(entry.getValue())));
+    }
+    _permissionsByRole = Collections.unmodifiableMap(map);
+  }
+
+  /**
+   * Get the permissions granted to a role.
+   *
+   * @param role
+   *          The role name.
+   * @return permissions, empty if none.
+   */
+  public Set<String> getPermissions(String role) {
+    Set<String> permissions = _permissionsByRole.get(role);
+    return permissions != null ? permissions : Collections.<String> emptySet();
+  }
+
+  /**
+   * Get all roles with permissions.
+   *
+   * @return role names.
+   */
+  public Set<String> getRoles() {
+    return _permissionsByRole.keySet();
+  }
+
+  /**
+   * Read role permissions from a file. A missing file means that no roles have
+   * permissions.
+   *
+   * @param path
+   *          The path to the file.
+   * @return role permissions.
+   */
+  public static RolePermissions load(String path) {
+    File file = new File(path);
+    if (!file.exists()) {
+      return new RolePermissions(Collections.<String, Set<String>> emptyMap());
+    }
+    try {
+      return new RolePermissions(readPermissions(file));
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to read role permissions", e);
+    }
+  }
+
+  private static Map<String, Set<String>> readPermissions(File file) throws IOException {
+    Map<String, Set<String>> map = new HashMap<>();
+    try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+      for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+        String trimmedLine = line.trim();
+        if (!trimmedLine.isEmpty() && !trimmedLine.startsWith("#")) {
+          String[] fields = trimmedLine.split(";");
+          Set<String> permissions = map.get(fields[0]);
+          if (permissions == null) {
+            permissions = new LinkedHashSet<>();
+            map.put(fields[0], permissions);
+          }
+          if (fields.length > 1) {
+            for (String permission : fields[1].split("\\|")) {
+              if (!permission.trim().isEmpty()) {
+                permissions.add(permission.trim());
+              }
+            }
+          }
+        }
+      }
+    }
+    return map;
+  }
+}
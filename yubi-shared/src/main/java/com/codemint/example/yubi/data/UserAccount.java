@@ -16,6 +16,13 @@ import java.util.Set;
  * This class represents a user account with a hashed password and roles. It is
  * built for demo purposes only and can read and write itself to plain text
  * files. It is NOT intended for production use.
+ * <p>
+ * The generation is an optional counter at the end of the line. Raising it
+ * revokes the trusted device tokens issued to the user.
+ * <p>
+ * Accounts read from a file have a version, the content hash of the line, so
+ * that it is the same on all nodes and changes whenever the account changes.
+ * Sessions can keep it to detect accounts that have changed since login.
  * 
  * @author Erik Wramner, CodeMint
  */
@@ -24,6 +31,8 @@ public class UserAccount implements Comparable<UserAccount> {
   private final String _hashedPassword;
   private final String _publicYubiId;
   private final int _salt;
+  private final long _generation;
+  private long _version;
   private final Set<String> _roles;
 
   /**
@@ -39,10 +48,29 @@ public class UserAccount implements Comparable<UserAccount> {
    *          The random salt for this user.
    */
   public UserAccount(String email, String hashedPassword, String publicYubiId, int salt) {
+    this(email, hashedPassword, publicYubiId, salt, 0L);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param email
+   *          The e-mail/account id.
+   * @param hashedPassword
+   *          The hashed password.
+   * @param publicYubiId
+   *          The public Yubikey id.
+   * @param salt
+   *          The random salt for this user.
+   * @param generation
+   *          The generation for trusted device tokens.
+   */
+  public UserAccount(String email, String hashedPassword, String publicYubiId, int salt, long generation) {
     _email = email;
     _hashedPassword = hashedPassword;
     _publicYubiId = publicYubiId;
     _salt = salt;
+    _generation = generation;
     _roles = new HashSet<>();
   }
 
@@ -62,6 +90,20 @@ public class UserAccount implements Comparable<UserAccount> {
     return _salt;
   }
 
+  public long getGeneration() {
+    return _generation;
+  }
+
+  /**
+   * Get the version.
+   * 
+   * @return content hash of the line in the account file or 0 if not read
+   *         from a file.
+   */
+  public long getVersion() {
+    return _version;
+  }
+
   public Set<String> getRoles() {
     return Collections.unmodifiableSet(_roles);
   }
@@ -118,23 +160,49 @@ public class UserAccount implements Comparable<UserAccount> {
       for (String line = reader.readLine(); line != null; line = reader.readLine()) {
         String trimmedLine = line.trim();
         if (!trimmedLine.isEmpty()) {
-          String[] fields = trimmedLine.split(";");
-          UserAccount account = new UserAccount(fields[0], fields[1], fields[2], Integer.parseInt(fields[3]));
-          if (fields.length > 4) {
-            String[] roles = fields[4].split("\\|");
-            for (String role : roles) {
-              if (role != null && !role.trim().isEmpty()) {
-                account.addRole(role);
-              }
-            }
-          }
-          accounts.add(account);
+          accounts.add(parse(trimmedLine));
         }
       }
     }
     return accounts;
   }
 
+  /**
+   * Parse a line from an account file.
+   * 
+   * @param trimmedLine
+   *          The line without leading and trailing white space.
+   * @return account.
+   */
+  static UserAccount parse(String trimmedLine) {
+    return parse(trimmedLine, AccountSync.hash(trimmedLine.toCharArray(), 0, trimmedLine.length()));
+  }
+
+  /**
+   * Parse a line from an account file with a known content hash.
+   * 
+   * @param trimmedLine
+   *          The line without leading and trailing white space.
+   * @param version
+   *          The content hash of the line.
+   * @return account.
+   */
+  static UserAccount parse(String trimmedLine, long version) {
+    String[] fields = trimmedLine.split(";");
+    UserAccount account = new UserAccount(fields[0], fields[1], fields[2], Integer.parseInt(fields[3]),
+        fields.length > 5 ? Long.parseLong(fields[5]) : 0L);
+    if (fields.length > 4) {
+      String[] roles = fields[4].split("\\|");
+      for (String role : roles) {
+        if (role != null && !role.trim().isEmpty()) {
+          account.addRole(role);
+        }
+      }
+    }
+    account._version = version;
+    return account;
+  }
+
   public static void writeAccounts(Set<UserAccount> accounts, File file) throws IOException {
     try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
       for (UserAccount account : accounts) {
@@ -151,6 +219,10 @@ public class UserAccount implements Comparable<UserAccount> {
           writer.append('|');
         }
         writer.append(';');
+        if (account.getGeneration() != 0L) {
+          writer.append(String.valueOf(account.getGeneration()));
+        }
+        writer.newLine();
       }
       writer.flush();
     }
@@ -0,0 +1,147 @@
+package com.codemint.example.yubi.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram for latencies in nanoseconds in the style of HdrHistogram.
+ * Values below {@link #SUB_BUCKET_COUNT} are counted exactly. Larger values go
+ * to buckets by power of two, each split into {@link #SUB_BUCKET_COUNT} linear
+ * sub buckets, so the relative error is at most about 3% over the full range
+ * while recording is a few shifts and one atomic increment.
+ * <p>
+ * Recording and reading can happen concurrently. A reader may see a value
+ * that is recorded in the count but not yet in a bucket, which is fine for
+ * monitoring. For the same reason {@link #reset()} is not atomic.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+public class LatencyHistogram implements LatencyHistogramMXBean {
+  private static final int SUB_BUCKET_BITS = 5;
+  static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+  private static final double NANOS_PER_MICRO = 1000.0;
+  private final AtomicLongArray _counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong _count = new AtomicLong();
+  private final AtomicLong _sum = new AtomicLong();
+  private final AtomicLong _max = new AtomicLong();
+
+  /**
+   * Record a value.
+   *
+   * @param nanos
+   *          The latency in nanoseconds, negative values are counted as 0.
+   */
+  public void record(long nanos) {
+    long value = Math.max(nanos, 0L);
+    _counts.incrementAndGet(indexFor(value));
+    _count.incrementAndGet();
+    _sum.addAndGet(value);
+    long max = _max.get();
+    while (value > max && !_max.compareAndSet(max, value)) {
+      max = _max.get();
+    }
+  }
+
+  /**
+   * Get the value at a given percentile. The result is the highest value that
+   * falls in the same bucket as the percentile, capped at the maximum.
+   *
+   * @param percentile
+   *          The percentile, 0-100.
+   * @return value in nanoseconds, 0 if empty.
+   */
+  public long getValueAtPercentile(double percentile) {
+    long[] counts = new long[BUCKET_COUNT];
+    long total = 0L;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts[i] = _counts.get(i);
+      total += counts[i];
+    }
+    if (total == 0L) {
+      return 0L;
+    }
+    long rank = Math.max(1L, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * total));
+    long seen = 0L;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(highestValueFor(i), _max.get());
+      }
+    }
+    return _max.get();
+  }
+
+  @Override
+  public long getCount() {
+    return _count.get();
+  }
+
+  /**
+   * Get the largest recorded value.
+   *
+   * @return value in nanoseconds.
+   */
+  public long getMax() {
+    return _max.get();
+  }
+
+  @Override
+  public double getMeanMicros() {
+    long count = _count.get();
+    return count > 0L ? _sum.get() / NANOS_PER_MICRO / count : 0.0;
+  }
+
+  @Override
+  public double getMaxMicros() {
+    return _max.get() / NANOS_PER_MICRO;
+  }
+
+  @Override
+  public double getP50Micros() {
+    return getValueAtPercentile(50.0) / NANOS_PER_MICRO;
+  }
+
+  @Override
+  public double getP90Micros() {
+    return getValueAtPercentile(90.0) / NANOS_PER_MICRO;
+  }
+
+  @Override
+  public double getP99Micros() {
+    return getValueAtPercentile(99.0) / NANOS_PER_MICRO;
+  }
+
+  @Override
+  public double getP999Micros() {
+    return getValueAtPercentile(99.9) / NANOS_PER_MICRO;
+  }
+
+  @Override
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      _counts.set(i, 0L);
+    }
+    _count.set(0L);
+    _sum.set(0L);
+    _max.set(0L);
+  }
+
+  static int indexFor(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) - SUB_BUCKET_COUNT);
+  }
+
+  static long highestValueFor(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int shift = (index >>> SUB_BUCKET_BITS) - 1;
+    long lowest = (long) (SUB_BUCKET_COUNT + (index & (SUB_BUCKET_COUNT - 1))) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
@@ -0,0 +1,29 @@
+package com.codemint.example.yubi.metrics;
+
+/**
+ * Management interface for a {@link LatencyHistogram}. All times are in
+ * microseconds.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public interface LatencyHistogramMXBean {
+
+  long getCount();
+
+  double getMeanMicros();
+
+  double getMaxMicros();
+
+  double getP50Micros();
+
+  double getP90Micros();
+
+  double getP99Micros();
+
+  double getP999Micros();
+
+  /**
+   * Clear all recorded values.
+   */
+  void reset();
+}
@@ -0,0 +1,307 @@
+package com.codemint.example.yubi.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codemint.example.yubi.auth.LoginResult.Outcome;
+
+/**
+ * Metrics for logins: counters per outcome and latency histograms for each
+ * phase of a login. The shared instance is registered in the platform MBean
+ * server as "com.codemint.example.yubi:type=LoginMetrics" with one
+ * "com.codemint.example.yubi:type=LoginLatency,phase=..." bean per phase, so
+ * the numbers can be watched with JConsole or any other JMX client. Metrics
+ * for a tenant have the tenant id as an extra key property in the names.
+ * <p>
+ * All methods are lock-free and safe to call from any thread.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+public class LoginMetrics implements LoginMetricsMXBean {
+  private static final String DOMAIN = "com.codemint.example.yubi";
+  private static final Logger _logger = LoggerFactory.getLogger(LoginMetrics.class);
+  private static final LoginMetrics INSTANCE = createRegisteredInstance();
+  private final AtomicLong _attempts = new AtomicLong();
+  private final AtomicLong _coalesced = new AtomicLong();
+  private final AtomicLong _trustedDeviceLogins = new AtomicLong();
+  private final AtomicLong _shed = new AtomicLong();
+  private final AtomicLongArray _outcomes = new AtomicLongArray(Outcome.values().length);
+  private final LatencyHistogram[] _histograms = new LatencyHistogram[Phase.values().length];
+  private final String _tenantId;
+  private boolean _sharedRegistered;
+
+  /**
+   * The timed phases of a login.
+   */
+  public static enum Phase {
+    ACCOUNT_LOOKUP("AccountLookup"), PASSWORD_HASH("PasswordHash"), OTP_VALIDATION("OtpValidation"), LOGIN("Login");
+
+    private final String _name;
+
+    private Phase(String name) {
+      _name = name;
+    }
+
+    public String getName() {
+      return _name;
+    }
+  }
+
+  public LoginMetrics() {
+    this(null);
+  }
+
+  /**
+   * Constructor for the metrics of a tenant.
+   *
+   * @param tenantId
+   *          The tenant id or null for none.
+   */
+  public LoginMetrics(String tenantId) {
+    _tenantId = tenantId;
+    for (int i = 0; i < _histograms.length; i++) {
+      _histograms[i] = new LatencyHistogram();
+    }
+  }
+
+  /**
+   * Get the shared instance registered with JMX.
+   *
+   * @return metrics.
+   */
+  public static LoginMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Record a completed login attempt.
+   *
+   * @param outcome
+   *          The outcome.
+   * @param nanos
+   *          The end-to-end time in nanoseconds.
+   */
+  public void recordLogin(Outcome outcome, long nanos) {
+    _attempts.incrementAndGet();
+    _outcomes.incrementAndGet(outcome.ordinal());
+    _histograms[Phase.LOGIN.ordinal()].record(nanos);
+  }
+
+  /**
+   * Record a login attempt that got its result from an identical attempt
+   * running at the same time. It is also recorded as a login.
+   */
+  public void recordCoalesced() {
+    _coalesced.incrementAndGet();
+  }
+
+  /**
+   * Record a successful login with a trusted device token instead of a one
+   * time password. It is also recorded as a login.
+   */
+  public void recordTrustedDeviceLogin() {
+    _trustedDeviceLogins.incrementAndGet();
+  }
+
+  /**
+   * Record a login attempt rejected by admission control. It is not recorded
+   * as a login, as it never reached the verifier.
+   */
+  public void recordShed() {
+    _shed.incrementAndGet();
+  }
+
+  /**
+   * Record the time for one phase of a login.
+   *
+   * @param phase
+   *          The phase.
+   * @param nanos
+   *          The time in nanoseconds.
+   */
+  public void recordLatency(Phase phase, long nanos) {
+    _histograms[phase.ordinal()].record(nanos);
+  }
+
+  public LatencyHistogram getHistogram(Phase phase) {
+    return _histograms[phase.ordinal()];
+  }
+
+  public long getCount(Outcome outcome) {
+    return _outcomes.get(outcome.ordinal());
+  }
+
+  @Override
+  public long getAttempts() {
+    return _attempts.get();
+  }
+
+  @Override
+  public long getCoalesced() {
+    return _coalesced.get();
+  }
+
+  @Override
+  public long getShed() {
+    return _shed.get();
+  }
+
+  @Override
+  public long getSuccesses() {
+    return getCount(Outcome.SUCCESS);
+  }
+
+  @Override
+  public long getFailures() {
+    long failures = 0L;
+    for (Outcome outcome : Outcome.values()) {
+      if (outcome != Outcome.SUCCESS) {
+        failures += getCount(outcome);
+      }
+    }
+    return failures;
+  }
+
+  @Override
+  public long getRateLimited() {
+    return getCount(Outcome.RATE_LIMITED);
+  }
+
+  @Override
+  public long getMissingCredentials() {
+    return getCount(Outcome.MISSING_CREDENTIALS);
+  }
+
+  @Override
+  public long getUnknownUser() {
+    return getCount(Outcome.UNKNOWN_USER);
+  }
+
+  @Override
+  public long getBadPassword() {
+    return getCount(Outcome.BAD_PASSWORD);
+  }
+
+  @Override
+  public long getBadOtpFormat() {
+    return getCount(Outcome.BAD_OTP_FORMAT);
+  }
+
+  @Override
+  public long getNotOk() {
+    return getCount(Outcome.NOT_OK);
+  }
+
+  @Override
+  public long getWrongKey() {
+    return getCount(Outcome.WRONG_KEY);
+  }
+
+  @Override
+  public long getUnreachable() {
+    return getCount(Outcome.UNREACHABLE);
+  }
+
+  @Override
+  public long getNotReady() {
+    return getCount(Outcome.NOT_READY);
+  }
+
+  @Override
+  public long getUntrustedDevice() {
+    return getCount(Outcome.UNTRUSTED_DEVICE);
+  }
+
+  @Override
+  public long getTrustedDeviceLogins() {
+    return _trustedDeviceLogins.get();
+  }
+
+  @Override
+  public void reset() {
+    _attempts.set(0L);
+    _coalesced.set(0L);
+    _trustedDeviceLogins.set(0L);
+    _shed.set(0L);
+    for (int i = 0; i < _outcomes.length(); i++) {
+      _outcomes.set(i, 0L);
+    }
+    for (LatencyHistogram histogram : _histograms) {
+      histogram.reset();
+    }
+  }
+
+  /**
+   * Register this instance and its histograms with an MBean server.
+   *
+   * @param server
+   *          The MBean server.
+   * @throws JMException
+   *           if registration fails.
+   */
+  public void register(MBeanServer server) throws JMException {
+    server.registerMBean(this, new ObjectName(DOMAIN + ":type=LoginMetrics" + getTenantProperty()));
+    for (Phase phase : Phase.values()) {
+      server.registerMBean(getHistogram(phase), getObjectName(phase));
+    }
+  }
+
+  /**
+   * Remove this instance and its histograms from an MBean server, for example
+   * when an application is undeployed.
+   *
+   * @param server
+   *          The MBean server.
+   * @throws JMException
+   *           if unregistration fails.
+   */
+  public void unregister(MBeanServer server) throws JMException {
+    server.unregisterMBean(new ObjectName(DOMAIN + ":type=LoginMetrics" + getTenantProperty()));
+    for (Phase phase : Phase.values()) {
+      server.unregisterMBean(getObjectName(phase));
+    }
+  }
+
+  private ObjectName getObjectName(Phase phase) throws JMException {
+    return new ObjectName(DOMAIN + ":type=LoginLatency" + getTenantProperty() + ",phase=" + phase.getName());
+  }
+
+  private String getTenantProperty() {
+    return _tenantId != null ? ",tenant=" + ObjectName.quote(_tenantId) : "";
+  }
+
+  /**
+   * Remove the shared instance from JMX, when the application that loaded
+   * this class stops. Nothing is done if another application had already
+   * registered the names.
+   */
+  public static synchronized void shutdown() {
+    if (INSTANCE._sharedRegistered) {
+      INSTANCE._sharedRegistered = false;
+      try {
+        INSTANCE.unregister(ManagementFactory.getPlatformMBeanServer());
+      } catch (JMException | SecurityException e) {
+        _logger.debug("Failed to unregister login metrics", e);
+      }
+    }
+  }
+
+  private static LoginMetrics createRegisteredInstance() {
+    LoginMetrics metrics = new LoginMetrics();
+    try {
+      metrics.register(ManagementFactory.getPlatformMBeanServer());
+      metrics._sharedRegistered = true;
+    } catch (JMException | SecurityException e) {
+      _logger.warn("Failed to register login metrics with JMX, maybe registered by another application", e);
+    }
+    return metrics;
+  }
+}
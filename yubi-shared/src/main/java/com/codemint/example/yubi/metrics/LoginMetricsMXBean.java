@@ -0,0 +1,71 @@
+package com.codemint.example.yubi.metrics;
+
+/**
+ * Management interface for {@link LoginMetrics} with login counters. The
+ * latencies are exposed as separate {@link LatencyHistogramMXBean} instances.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public interface LoginMetricsMXBean {
+
+  long getAttempts();
+
+  /**
+   * Get the number of attempts that shared the result of an identical
+   * attempt running at the same time.
+   *
+   * @return count.
+   */
+  long getCoalesced();
+
+  /**
+   * Get the number of login attempts rejected without verification because
+   * too many logins were in progress.
+   *
+   * @return count.
+   */
+  long getShed();
+
+  long getSuccesses();
+
+  long getFailures();
+
+  long getRateLimited();
+
+  long getMissingCredentials();
+
+  long getUnknownUser();
+
+  long getBadPassword();
+
+  long getBadOtpFormat();
+
+  long getNotOk();
+
+  long getWrongKey();
+
+  long getUnreachable();
+
+  long getNotReady();
+
+  /**
+   * Get the number of logins with a trusted device token that was revoked or
+   * issued to another user.
+   *
+   * @return count.
+   */
+  long getUntrustedDevice();
+
+  /**
+   * Get the number of successful logins with password and trusted device
+   * token instead of a one time password.
+   *
+   * @return count.
+   */
+  long getTrustedDeviceLogins();
+
+  /**
+   * Clear all counters and histograms.
+   */
+  void reset();
+}
@@ -0,0 +1,171 @@
+package com.codemint.example.yubi.tenant;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codemint.example.yubi.audit.AuditLog;
+import com.codemint.example.yubi.audit.LoginHistory;
+import com.codemint.example.yubi.auth.LoginRateLimiter;
+import com.codemint.example.yubi.auth.TwoFactorVerifier;
+import com.codemint.example.yubi.auth.YubicoOtpValidator;
+import com.codemint.example.yubi.data.AccountLoader;
+import com.codemint.example.yubi.metrics.LoginMetrics;
+import com.codemint.example.yubi.util.AdaptiveConcurrencyLimit;
+import com.codemint.example.yubi.util.YubicoClientFactory;
+
+/**
+ * An active tenant with everything a login needs: its own account loader,
+ * Yubico client, rate limits, metrics, login history and limit on logins in
+ * progress. Nothing
+ * is shared with other tenants except the audit log, so a slow reload or an
+ * unreachable validation service only delays the logins of this tenant.
+ * <p>
+ * Tenants are created and closed by the {@link TenantRegistry}.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+public class Tenant {
+  private static final Logger _logger = LoggerFactory.getLogger(Tenant.class);
+  private static final long RETIRED = Long.MIN_VALUE;
+  private final String _id;
+  private final String _pathPrefix;
+  private final AccountLoader _accountLoader;
+  private final LoginMetrics _metrics;
+  private final LoginHistory _history;
+  private final TwoFactorVerifier _verifier;
+  private final AdaptiveConcurrencyLimit _loginLimit;
+  private final AtomicLong _lastUsedNanos = new AtomicLong(System.nanoTime());
+
+  /**
+   * Constructor. The accounts are loaded when the tenant is started.
+   *
+   * @param id
+   *          The tenant id.
+   * @param pathPrefix
+   *          The path prefix or null if resolved by host only.
+   * @param accountFile
+   *          The path to the user account file.
+   * @param yubicoResource
+   *          The Yubico property file on the class path.
+   * @param loginLimit
+   *          The limit on logins in progress.
+   */
+  Tenant(String id, String pathPrefix, String accountFile, String yubicoResource,
+      AdaptiveConcurrencyLimit loginLimit) {
+    _id = id;
+    _pathPrefix = pathPrefix;
+    YubicoOtpValidator otpValidator = new YubicoOtpValidator(YubicoClientFactory.getYubicoClient(yubicoResource));
+    _accountLoader = AccountLoader.newInstance(accountFile);
+    _metrics = new LoginMetrics(id);
+    _history = new LoginHistory(id);
+    _verifier = new TwoFactorVerifier(_accountLoader, otpValidator, LoginRateLimiter.createDefault(), _metrics,
+        AuditLog.getInstance(), _history);
+    _loginLimit = loginLimit;
+  }
+
+  /**
+   * Register the metrics and history and start loading the accounts in the
+   * background.
+   */
+  void start() {
+    try {
+      _metrics.register(ManagementFactory.getPlatformMBeanServer());
+      _history.register(ManagementFactory.getPlatformMBeanServer());
+    } catch (JMException | SecurityException e) {
+      _logger.warn("Failed to register login metrics for tenant {} with JMX", _id, e);
+    }
+    _accountLoader.start();
+  }
+
+  /**
+   * Stop refreshing the accounts and unregister the metrics and history.
+   */
+  void close() {
+    _accountLoader.close();
+    try {
+      _metrics.unregister(ManagementFactory.getPlatformMBeanServer());
+      _history.unregister(ManagementFactory.getPlatformMBeanServer());
+    } catch (JMException | SecurityException e) {
+      _logger.debug("Failed to unregister login metrics for tenant {}", _id, e);
+    }
+  }
+
+  /**
+   * Mark the tenant as used, unless it has been retired.
+   *
+   * @param nowNanos
+   *          The current time.
+   * @return true if marked, false if retired and about to be closed.
+   */
+  boolean touch(long nowNanos) {
+    while (true) {
+      long lastUsed = _lastUsedNanos.get();
+      if (lastUsed == RETIRED) {
+        return false;
+      }
+      if (lastUsed - nowNanos >= 0L || _lastUsedNanos.compareAndSet(lastUsed, nowNanos)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Retire the tenant if it has been idle too long. The check and the retiral
+   * are one atomic step, so a tenant that is touched at the same time is
+   * either kept or seen as retired by the request that touched it.
+   *
+   * @param nowNanos
+   *          The current time.
+   * @param idleNanos
+   *          The idle time.
+   * @return true if retired by this call.
+   */
+  boolean retireIfIdle(long nowNanos, long idleNanos) {
+    long lastUsed = _lastUsedNanos.get();
+    return lastUsed != RETIRED && nowNanos - lastUsed > idleNanos && _lastUsedNanos.compareAndSet(lastUsed,
+        RETIRED);
+  }
+
+  void retire() {
+    _lastUsedNanos.set(RETIRED);
+  }
+
+  boolean isRetired() {
+    return _lastUsedNanos.get() == RETIRED;
+  }
+
+  public String getId() {
+    return _id;
+  }
+
+  /**
+   * Get the path prefix.
+   *
+   * @return prefix starting with a slash or null if none.
+   */
+  public String getPathPrefix() {
+    return _pathPrefix;
+  }
+
+  public TwoFactorVerifier getVerifier() {
+    return _verifier;
+  }
+
+  public LoginMetrics getMetrics() {
+    return _metrics;
+  }
+
+  public AdaptiveConcurrencyLimit getLoginLimit() {
+    return _loginLimit;
+  }
+
+  @Override
+  public String toString() {
+    return "Tenant [_id=" + _id + ", _pathPrefix=" + _pathPrefix + "]";
+  }
+}
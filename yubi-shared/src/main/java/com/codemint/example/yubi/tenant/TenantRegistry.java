@@ -0,0 +1,261 @@
+package com.codemint.example.yubi.tenant;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codemint.example.yubi.util.AdaptiveConcurrencyLimit;
+
+/**
+ * Registry that resolves requests to tenants by host name or path prefix and
+ * activates the tenants on demand. Only the definitions are read up front; a
+ * {@link Tenant} with its accounts and clients is created on first use and
+ * closed again when it has been idle for a while, so memory grows with the
+ * number of active tenants rather than with all that are defined.
+ * <p>
+ * The definitions are read from a property file:
+ *
+ * <pre>
+ * tenants=acme,globex
+ * tenant.acme.hosts=acme.example.com,login.acme.com
+ * tenant.acme.accountFile=etc/acme_accounts.txt
+ * tenant.acme.yubicoProperties=/acme-yubico.properties
+ * tenant.globex.pathPrefix=/globex
+ * tenant.globex.accountFile=etc/globex_accounts.txt
+ * idleMinutes=30
+ * minConcurrentLogins=4
+ * maxConcurrentLogins=64
+ * </pre>
+ *
+ * A tenant needs hosts, a path prefix or both and an account file. The Yubico
+ * property file defaults to /yubico.properties, but each tenant still gets its
+ * own client. Host names are matched first, then the longest path prefix.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+public class TenantRegistry {
+  private static final Logger _logger = LoggerFactory.getLogger(TenantRegistry.class);
+  private static final String DEFAULT_YUBICO_RESOURCE = "/yubico.properties";
+  private final Map<String, Definition> _definitions = new HashMap<>();
+  private final Map<String, Definition> _definitionsByHost = new HashMap<>();
+  private final List<Definition> _definitionsWithPrefix = new ArrayList<>();
+  private final ConcurrentMap<String, Tenant> _tenants = new ConcurrentHashMap<>();
+  private final AtomicLong _nextSweepNanos = new AtomicLong(System.nanoTime());
+  private final long _idleNanos;
+  private final int _minConcurrentLogins;
+  private final int _maxConcurrentLogins;
+
+  /**
+   * Constructor.
+   *
+   * @param properties
+   *          The tenant definitions.
+   * @throws IllegalArgumentException
+   *           if a definition is incomplete.
+   */
+  public TenantRegistry(Properties properties) {
+    _idleNanos = TimeUnit.MINUTES.toNanos(Long.parseLong(properties.getProperty("idleMinutes", "30")));
+    _minConcurrentLogins = Integer.parseInt(properties.getProperty("minConcurrentLogins", "4"));
+    _maxConcurrentLogins = Integer.parseInt(properties.getProperty("maxConcurrentLogins", "64"));
+    String tenants = properties.getProperty("tenants", "").trim();
+    for (String id : tenants.isEmpty() ? new String[0] : tenants.split("\\s*,\\s*")) {
+      Definition definition = new Definition(id, properties);
+      _definitions.put(id, definition);
+      for (String host : definition._hosts) {
+        if (_definitionsByHost.put(host, definition) != null) {
+          throw new IllegalArgumentException("Host " + host + " used by more than one tenant");
+        }
+      }
+      if (definition._pathPrefix != null) {
+        _definitionsWithPrefix.add(definition);
+      }
+    }
+    Collections.sort(_definitionsWithPrefix, new Comparator<Definition>() {
+      @Override
+      public int compare(Definition d1, Definition d2) {
+        return d2._pathPrefix.length() - d1._pathPrefix.length();
+      }
+    });
+    _logger.info("Read {} tenant definitions", _definitions.size());
+  }
+
+  /**
+   * Create a registry with definitions from a property file.
+   *
+   * @param path
+   *          The path to the property file.
+   * @return registry.
+   */
+  public static TenantRegistry load(String path) {
+    Properties properties = new Properties();
+    try (InputStream is = new FileInputStream(path)) {
+      properties.load(is);
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to read tenants from " + path, e);
+    }
+    return new TenantRegistry(properties);
+  }
+
+  /**
+   * Find the tenant for a request and activate it if needed.
+   *
+   * @param host
+   *          The host name of the request.
+   * @param path
+   *          The path of the request within the application.
+   * @return tenant or null if none matches.
+   */
+  public Tenant resolve(String host, String path) {
+    Definition definition = host != null ? _definitionsByHost.get(host.toLowerCase(Locale.ROOT)) : null;
+    if (definition == null && path != null) {
+      for (Definition candidate : _definitionsWithPrefix) {
+        String prefix = candidate._pathPrefix;
+        if (path.startsWith(prefix) && (path.length() == prefix.length() || path.charAt(prefix.length()) == '/')) {
+          definition = candidate;
+          break;
+        }
+      }
+    }
+    return definition != null ? getTenant(definition) : null;
+  }
+
+  /**
+   * Get a tenant by id and activate it if needed.
+   *
+   * @param id
+   *          The tenant id.
+   * @return tenant or null if not defined.
+   */
+  public Tenant getTenant(String id) {
+    Definition definition = _definitions.get(id);
+    return definition != null ? getTenant(definition) : null;
+  }
+
+  /**
+   * Get the tenant for a definition and mark it as used before sweeping, so
+   * that it is never closed under the request. If the sweep retired it first
+   * a new tenant is activated.
+   */
+  private Tenant getTenant(Definition definition) {
+    long now = System.nanoTime();
+    while (true) {
+      Tenant tenant = _tenants.get(definition._id);
+      if (tenant == null || tenant.isRetired()) {
+        tenant = activate(definition);
+      }
+      if (tenant.touch(now)) {
+        closeIdleTenants(now);
+        return tenant;
+      }
+    }
+  }
+
+  /**
+   * Create and start a tenant, unless there is an active one. Only the thread
+   * that wins the lock creates it, so that no tenant is registered or loaded
+   * twice. Creation is cheap, as the accounts are loaded in the background.
+   */
+  private synchronized Tenant activate(Definition definition) {
+    Tenant tenant = _tenants.get(definition._id);
+    if (tenant == null || tenant.isRetired()) {
+      tenant = new Tenant(definition._id, definition._pathPrefix, definition._accountFile,
+          definition._yubicoResource, new AdaptiveConcurrencyLimit(_minConcurrentLogins, _maxConcurrentLogins));
+      tenant.start();
+      _tenants.put(definition._id, tenant);
+      _logger.info("Activated tenant {}", definition._id);
+    }
+    return tenant;
+  }
+
+  /**
+   * Close the tenants that have been idle too long, at most once per quarter
+   * of the idle time. A tenant is retired before it is removed, so a request
+   * that got it from the map just before either keeps it alive or sees that it
+   * is retired and activates a new one. A closed tenant is created anew on its
+   * next request.
+   */
+  private void closeIdleTenants(long now) {
+    long nextSweep = _nextSweepNanos.get();
+    if (now - nextSweep < 0L || !_nextSweepNanos.compareAndSet(nextSweep, now + _idleNanos / 4)) {
+      return;
+    }
+    for (Tenant tenant : _tenants.values()) {
+      if (tenant.retireIfIdle(now, _idleNanos)) {
+        _tenants.remove(tenant.getId(), tenant);
+        tenant.close();
+        _logger.info("Closed idle tenant {}", tenant.getId());
+      }
+    }
+  }
+
+  /**
+   * Get the number of active tenants.
+   *
+   * @return count.
+   */
+  public int getActiveCount() {
+    return _tenants.size();
+  }
+
+  /**
+   * Close all active tenants, for example when the application is stopped.
+   */
+  public void close() {
+    for (Tenant tenant : _tenants.values()) {
+      if (_tenants.remove(tenant.getId(), tenant)) {
+        tenant.retire();
+        tenant.close();
+      }
+    }
+  }
+
+  /**
+   * A tenant as defined in the property file.
+   */
+  private static final class Definition {
+    private final String _id;
+    private final List<String> _hosts = new ArrayList<>();
+    private final String _pathPrefix;
+    private final String _accountFile;
+    private final String _yubicoResource;
+
+    Definition(String id, Properties properties) {
+      String keyPrefix = "tenant." + id + ".";
+      _id = id;
+      String hosts = properties.getProperty(keyPrefix + "hosts", "").trim();
+      if (!hosts.isEmpty()) {
+        for (String host : hosts.split("\\s*,\\s*")) {
+          _hosts.add(host.toLowerCase(Locale.ROOT));
+        }
+      }
+      String pathPrefix = properties.getProperty(keyPrefix + "pathPrefix");
+      if (pathPrefix != null) {
+        pathPrefix = pathPrefix.trim();
+        if (!pathPrefix.startsWith("/") || pathPrefix.endsWith("/")) {
+          throw new IllegalArgumentException("Path prefix for tenant " + id + " must start but not end with /");
+        }
+      }
+      _pathPrefix = pathPrefix;
+      _accountFile = properties.getProperty(keyPrefix + "accountFile");
+      _yubicoResource = properties.getProperty(keyPrefix + "yubicoProperties", DEFAULT_YUBICO_RESOURCE);
+      if (_accountFile == null || (_hosts.isEmpty() && _pathPrefix == null)) {
+        throw new IllegalArgumentException("Tenant " + id + " needs an account file and hosts or a path prefix");
+      }
+    }
+  }
+}
@@ -0,0 +1,37 @@
+package com.codemint.example.yubi.trace;
+
+/**
+ * Service provider interface for tracing the phases of a login, for example
+ * with JDK Flight Recorder. Implementations are found with
+ * {@link java.util.ServiceLoader}, see {@link LoginTracers}. They must be
+ * thread-safe and cheap when tracing is disabled.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public interface LoginTracer {
+
+  /**
+   * Start a span for a phase. The caller must call {@link Span#end()} when the
+   * phase is done, normally in a finally block.
+   * 
+   * @param phase
+   *          The phase.
+   * @param userId
+   *          The user id or null.
+   * @param detail
+   *          Additional information such as the service endpoint, or null.
+   * @return span.
+   */
+  Span start(TracePhase phase, String userId, String detail);
+
+  /**
+   * A started phase.
+   */
+  interface Span {
+
+    /**
+     * End the phase.
+     */
+    void end();
+  }
+}
@@ -0,0 +1,75 @@
+package com.codemint.example.yubi.trace;
+
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holder for the {@link LoginTracer} used by the login code. The first tracer
+ * found with {@link ServiceLoader} is used; without one tracing is a no-op
+ * that does not allocate anything.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public final class LoginTracers {
+  private static final Logger _logger = LoggerFactory.getLogger(LoginTracers.class);
+  private static final LoginTracer.Span NOOP_SPAN = new LoginTracer.Span() {
+    @Override
+    public void end() {
+    }
+  };
+  private static final LoginTracer NOOP_TRACER = new LoginTracer() {
+    @Override
+    public Span start(TracePhase phase, String userId, String detail) {
+      return NOOP_SPAN;
+    }
+  };
+  private static final LoginTracer TRACER = loadTracer();
+
+  private LoginTracers() {
+  }
+
+  /**
+   * Get the tracer.
+   * 
+   * @return tracer, never null.
+   */
+  public static LoginTracer getTracer() {
+    return TRACER;
+  }
+
+  /**
+   * Get a tracer that does nothing.
+   * 
+   * @return no-op tracer.
+   */
+  public static LoginTracer getNoopTracer() {
+    return NOOP_TRACER;
+  }
+
+  /**
+   * Get a span that does nothing, for tracers that are disabled.
+   * 
+   * @return no-op span.
+   */
+  public static LoginTracer.Span getNoopSpan() {
+    return NOOP_SPAN;
+  }
+
+  private static LoginTracer loadTracer() {
+    try {
+      Iterator<LoginTracer> it = ServiceLoader.load(LoginTracer.class, LoginTracers.class.getClassLoader()).iterator();
+      if (it.hasNext()) {
+        LoginTracer tracer = it.next();
+        _logger.info("Using login tracer {}", tracer.getClass().getName());
+        return tracer;
+      }
+    } catch (ServiceConfigurationError | LinkageError e) {
+      _logger.warn("Failed to load login tracer, tracing disabled", e);
+    }
+    return NOOP_TRACER;
+  }
+}
@@ -0,0 +1,10 @@
+package com.codemint.example.yubi.trace;
+
+/**
+ * The traced phases of a login.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public enum TracePhase {
+  LOGIN, ACCOUNT_LOOKUP, PASSWORD_HASH, OTP_FORMAT_CHECK, OTP_VALIDATION, SESSION_SETUP
+}
@@ -0,0 +1,117 @@
+package com.codemint.example.yubi.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limit on the number of concurrent calls that adapts to their latency, for
+ * shedding load before it takes all threads.
+ * <p>
+ * Callers take a permit with {@link #tryAcquire()} and give it back with
+ * {@link #release(long)} and the latency of the call. The limit follows the
+ * gradient between the lowest latency seen recently and the latency of each
+ * call: it grows by roughly its square root while latency stays close to the
+ * lowest and shrinks in proportion when calls get slower, as that means they
+ * are queueing for something. It never leaves the range given to the
+ * constructor. The lowest latency is taken from the last
+ * {@value #BASELINE_WINDOW} calls, so it can follow a slower service.
+ * <p>
+ * Acquiring a permit is lock-free; the limit is updated under a lock on
+ * release.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+public class AdaptiveConcurrencyLimit {
+  private static final int BASELINE_WINDOW = 1000;
+  private static final double LATENCY_TOLERANCE = 2.0;
+  private static final double SMOOTHING = 0.2;
+  private final AtomicInteger _inFlight = new AtomicInteger();
+  private final int _minLimit;
+  private final int _maxLimit;
+  private volatile int _limit;
+  private double _estimatedLimit;
+  private long _baselineNanos;
+  private long _windowMinNanos = Long.MAX_VALUE;
+  private int _windowSamples;
+
+  /**
+   * Constructor. The limit starts at the maximum.
+   *
+   * @param minLimit
+   *          The lowest limit.
+   * @param maxLimit
+   *          The highest limit.
+   */
+  public AdaptiveConcurrencyLimit(int minLimit, int maxLimit) {
+    if (minLimit <= 0 || maxLimit < minLimit) {
+      throw new IllegalArgumentException("Limits must be positive with min <= max");
+    }
+    _minLimit = minLimit;
+    _maxLimit = maxLimit;
+    _limit = maxLimit;
+    _estimatedLimit = maxLimit;
+  }
+
+  /**
+   * Try to take a permit.
+   *
+   * @return true if granted, false if the limit has been reached.
+   */
+  public boolean tryAcquire() {
+    while (true) {
+      int inFlight = _inFlight.get();
+      if (inFlight >= _limit) {
+        return false;
+      }
+      if (_inFlight.compareAndSet(inFlight, inFlight + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Give back a permit and adjust the limit.
+   *
+   * @param latencyNanos
+   *          The latency of the call in nanoseconds, or a negative value to
+   *          give back the permit without a sample.
+   */
+  public void release(long latencyNanos) {
+    _inFlight.decrementAndGet();
+    if (latencyNanos >= 0L) {
+      update(Math.max(latencyNanos, 1L));
+    }
+  }
+
+  private synchronized void update(long latencyNanos) {
+    _windowMinNanos = Math.min(_windowMinNanos, latencyNanos);
+    if (_baselineNanos == 0L || latencyNanos < _baselineNanos) {
+      _baselineNanos = latencyNanos;
+    }
+    if (++_windowSamples == BASELINE_WINDOW) {
+      _baselineNanos = _windowMinNanos;
+      _windowMinNanos = Long.MAX_VALUE;
+      _windowSamples = 0;
+    }
+    double gradient = Math.min(1.0, LATENCY_TOLERANCE * _baselineNanos / latencyNanos);
+    double newLimit = _estimatedLimit * gradient + Math.sqrt(_estimatedLimit);
+    _estimatedLimit = Math.max(_minLimit, Math.min(_maxLimit, _estimatedLimit * (1.0 - SMOOTHING) + newLimit
+        * SMOOTHING));
+    _limit = (int) _estimatedLimit;
+  }
+
+  public int getLimit() {
+    return _limit;
+  }
+
+  public int getInFlight() {
+    return _inFlight.get();
+  }
+
+  public int getMinLimit() {
+    return _minLimit;
+  }
+
+  public int getMaxLimit() {
+    return _maxLimit;
+  }
+}
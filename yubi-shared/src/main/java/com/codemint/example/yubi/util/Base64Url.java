@@ -0,0 +1,104 @@
+package com.codemint.example.yubi.util;
+
+/**
+ * Minimal URL-safe Base64 codec without padding (RFC 4648 section 5), suitable
+ * for cookie values. Java SE 7 has no public Base64 class, hence this one.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public final class Base64Url {
+  private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+      .toCharArray();
+  private static final int[] REVERSE = new int[128];
+
+  static {
+    for (int i = 0; i < REVERSE.length; i++) {
+      REVERSE[i] = -1;
+    }
+    for (int i = 0; i < ALPHABET.length; i++) {
+      REVERSE[ALPHABET[i]] = i;
+    }
+  }
+
+  private Base64Url() {
+  }
+
+  /**
+   * Encode bytes.
+   * 
+   * @param data
+   *          The bytes.
+   * @return encoded string without padding.
+   */
+  public static String encode(byte[] data) {
+    char[] out = new char[(data.length * 8 + 5) / 6];
+    int pos = 0;
+    int i = 0;
+    for (; i + 2 < data.length; i += 3) {
+      int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff);
+      out[pos++] = ALPHABET[bits >>> 18];
+      out[pos++] = ALPHABET[(bits >>> 12) & 0x3f];
+      out[pos++] = ALPHABET[(bits >>> 6) & 0x3f];
+      out[pos++] = ALPHABET[bits & 0x3f];
+    }
+    int remaining = data.length - i;
+    if (remaining == 1) {
+      int bits = (data[i] & 0xff) << 16;
+      out[pos++] = ALPHABET[bits >>> 18];
+      out[pos++] = ALPHABET[(bits >>> 12) & 0x3f];
+    } else if (remaining == 2) {
+      int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8;
+      out[pos++] = ALPHABET[bits >>> 18];
+      out[pos++] = ALPHABET[(bits >>> 12) & 0x3f];
+      out[pos++] = ALPHABET[(bits >>> 6) & 0x3f];
+    }
+    return new String(out);
+  }
+
+  /**
+   * Decode part of a string.
+   * 
+   * @param s
+   *          The string.
+   * @param start
+   *          The start index, inclusive.
+   * @param end
+   *          The end index, exclusive.
+   * @return decoded bytes or null if the input is not valid.
+   */
+  public static byte[] decode(String s, int start, int end) {
+    int length = end - start;
+    if (length < 0 || length % 4 == 1) {
+      return null;
+    }
+    byte[] out = new byte[length * 6 / 8];
+    int bits = 0;
+    int bitCount = 0;
+    int pos = 0;
+    for (int i = start; i < end; i++) {
+      char c = s.charAt(i);
+      int value = c < REVERSE.length ? REVERSE[c] : -1;
+      if (value < 0) {
+        return null;
+      }
+      bits = bits << 6 | value;
+      bitCount += 6;
+      if (bitCount >= 8) {
+        bitCount -= 8;
+        out[pos++] = (byte) (bits >>> bitCount);
+      }
+    }
+    return out;
+  }
+
+  /**
+   * Decode a string.
+   * 
+   * @param s
+   *          The string.
+   * @return decoded bytes or null if the input is not valid.
+   */
+  public static byte[] decode(String s) {
+    return decode(s, 0, s.length());
+  }
+}
@@ -0,0 +1,64 @@
+package com.codemint.example.yubi.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads for blocking work: calls to the validation service, account loading
+ * and audit writes. This version uses daemon platform threads. The jar is
+ * multi-release and on Java 21 it contains a version that uses virtual
+ * threads instead, see src/main/java21, so that a blocked call costs a small
+ * heap object rather than a thread stack.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public final class BlockingExecutors {
+  private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+    private final AtomicInteger _threadCount = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable task) {
+      return BlockingExecutors.newThread("yubi-blocking-" + _threadCount.incrementAndGet(), task);
+    }
+  });
+
+  private BlockingExecutors() {
+  }
+
+  /**
+   * Check if the threads are virtual. Offloading a blocking call from a
+   * container thread only pays when they are.
+   * 
+   * @return true if virtual.
+   */
+  public static boolean isVirtual() {
+    return false;
+  }
+
+  /**
+   * Create a thread that does not prevent the JVM from exiting.
+   * 
+   * @param name
+   *          The thread name.
+   * @param task
+   *          The task to run.
+   * @return unstarted thread.
+   */
+  public static Thread newThread(String name, Runnable task) {
+    Thread thread = new Thread(task, name);
+    thread.setDaemon(true);
+    return thread;
+  }
+
+  /**
+   * Get the shared executor for blocking tasks. It has no bound, so callers
+   * must limit the number of tasks themselves.
+   * 
+   * @return executor.
+   */
+  public static ExecutorService getExecutor() {
+    return EXECUTOR;
+  }
+}
@@ -0,0 +1,172 @@
+package com.codemint.example.yubi.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Properties;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signs and verifies small binary payloads with HMAC-SHA256, producing compact
+ * URL-safe strings that can be used as cookie values.
+ * <p>
+ * Several keys can be configured at the same time. New tokens are always signed
+ * with the active key, but tokens signed with any configured key are accepted,
+ * so keys can be rotated by first adding the new key on all nodes, then making
+ * it active and finally removing the old key. The key id is stored in the first
+ * byte of the signed data. Each thread keeps its own initialized {@link Mac}
+ * per key, as creating and initializing one is expensive.
+ * <p>
+ * The properties have the following format, keys are Base64 (URL-safe) and
+ * should be at least 32 bytes:
+ * 
+ * <pre>
+ * active_key=2
+ * key.1=...
+ * key.2=...
+ * </pre>
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public class HmacSigner {
+  private static final String ALGORITHM = "HmacSHA256";
+  private static final int MAX_KEYS = 256;
+  private final SigningKey[] _keys = new SigningKey[MAX_KEYS];
+  private final SigningKey _activeKey;
+
+  /**
+   * Constructor.
+   * 
+   * @param properties
+   *          The properties with keys.
+   * @throws IllegalArgumentException
+   *           if the properties are not valid.
+   */
+  public HmacSigner(Properties properties) {
+    for (String name : properties.stringPropertyNames()) {
+      if (name.startsWith("key.")) {
+        int id = Integer.parseInt(name.substring(4));
+        if (id < 0 || id >= MAX_KEYS) {
+          throw new IllegalArgumentException("Key id must be 0-" + (MAX_KEYS - 1) + ": " + name);
+        }
+        byte[] secret = Base64Url.decode(properties.getProperty(name).trim());
+        if (secret == null || secret.length < 16) {
+          throw new IllegalArgumentException("Key " + name + " is not valid or too short");
+        }
+        _keys[id] = new SigningKey(id, secret);
+      }
+    }
+    String activeKeyId = properties.getProperty("active_key");
+    if (activeKeyId == null) {
+      throw new IllegalArgumentException("No active_key defined");
+    }
+    int id = Integer.parseInt(activeKeyId.trim());
+    if (id < 0 || id >= MAX_KEYS || _keys[id] == null) {
+      throw new IllegalArgumentException("Active key " + activeKeyId + " not defined");
+    }
+    _activeKey = _keys[id];
+  }
+
+  /**
+   * Create a signer with keys from a property file on the class path.
+   * 
+   * @param resource
+   *          The resource name, for example "/session-keys.properties".
+   * @return signer.
+   */
+  public static HmacSigner fromClasspath(String resource) {
+    InputStream is = null;
+    try {
+      is = HmacSigner.class.getResourceAsStream(resource);
+      if (is != null) {
+        Properties props = new Properties();
+        props.load(is);
+        return new HmacSigner(props);
+      } else {
+        throw new IllegalStateException("Failed to read " + resource + "!");
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to read " + resource + "!", e);
+    } finally {
+      if (is != null) {
+        try {
+          is.close();
+        } catch (IOException e) {
+        }
+      }
+    }
+  }
+
+  /**
+   * Sign a payload with the active key.
+   * 
+   * @param payload
+   *          The payload.
+   * @return signed token.
+   */
+  public String sign(byte[] payload) {
+    byte[] data = new byte[payload.length + 1];
+    data[0] = (byte) _activeKey._id;
+    System.arraycopy(payload, 0, data, 1, payload.length);
+    return Base64Url.encode(data) + '.' + Base64Url.encode(_activeKey.getMac().doFinal(data));
+  }
+
+  /**
+   * Verify a token.
+   * 
+   * @param token
+   *          The token.
+   * @return payload if the signature is valid and the key is known, null
+   *         otherwise.
+   */
+  public byte[] verify(String token) {
+    if (token == null) {
+      return null;
+    }
+    int separator = token.indexOf('.');
+    if (separator <= 0) {
+      return null;
+    }
+    byte[] data = Base64Url.decode(token, 0, separator);
+    byte[] signature = Base64Url.decode(token, separator + 1, token.length());
+    if (data == null || data.length < 1 || signature == null) {
+      return null;
+    }
+    SigningKey key = _keys[data[0] & 0xff];
+    if (key == null || !MessageDigest.isEqual(signature, key.getMac().doFinal(data))) {
+      return null;
+    }
+    byte[] payload = new byte[data.length - 1];
+    System.arraycopy(data, 1, payload, 0, payload.length);
+    return payload;
+  }
+
+  private static final class SigningKey {
+    private final int _id;
+    private final SecretKeySpec _secret;
+    private final ThreadLocal<Mac> _mac = new ThreadLocal<Mac>() {
+      @Override
+      protected Mac initialValue() {
+        try {
+          Mac mac = Mac.getInstance(ALGORITHM);
+          mac.init(_secret);
+          return mac;
+        } catch (GeneralSecurityException e) {
+          throw new IllegalStateException("Required algorithm " + ALGORITHM + " missing in JVM!", e);
+        }
+      }
+    };
+
+    SigningKey(int id, byte[] secret) {
+      _id = id;
+      _secret = new SecretKeySpec(secret, ALGORITHM);
+    }
+
+    Mac getMac() {
+      return _mac.get();
+    }
+  }
+}
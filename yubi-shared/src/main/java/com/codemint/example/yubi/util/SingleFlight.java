@@ -0,0 +1,103 @@
+package com.codemint.example.yubi.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Coalesces concurrent calls with the same key: the first caller runs the
+ * call and callers that arrive while it is running wait for it and get the
+ * same result. Nothing is cached; the key is forgotten as soon as the call
+ * completes, so a later call with the same key runs again.
+ * <p>
+ * If the running call throws, the waiting callers run the call themselves.
+ * Callers that need to know if their call ran can set a flag in it.
+ *
+ * @author Erik Wramner, CodeMint
+ * @param <K>
+ *          The key type.
+ * @param <V>
+ *          The result type.
+ */
+public final class SingleFlight<K, V> {
+  private final ConcurrentMap<K, Flight<V>> _flights = new ConcurrentHashMap<>();
+
+  /**
+   * A call to coalesce.
+   *
+   * @param <V>
+   *          The result type.
+   */
+  public interface Call<V> {
+    V call();
+  }
+
+  /**
+   * Run a call or join a running call with the same key.
+   *
+   * @param key
+   *          The key.
+   * @param call
+   *          The call.
+   * @return result, possibly shared with other callers.
+   */
+  public V execute(K key, Call<V> call) {
+    Flight<V> flight = new Flight<>();
+    Flight<V> running = _flights.putIfAbsent(key, flight);
+    if (running != null) {
+      if (running.await()) {
+        return running._result;
+      }
+      return call.call();
+    }
+    try {
+      V result = call.call();
+      flight._result = result;
+      flight._succeeded = true;
+      return result;
+    } finally {
+      _flights.remove(key, flight);
+      flight._done.countDown();
+    }
+  }
+
+  /**
+   * Get the number of calls running right now.
+   *
+   * @return count.
+   */
+  public int getRunning() {
+    return _flights.size();
+  }
+
+  /**
+   * A running call. The fields are written before the latch is released and
+   * read after it has been awaited.
+   */
+  private static final class Flight<V> {
+    private final CountDownLatch _done = new CountDownLatch(1);
+    private V _result;
+    private boolean _succeeded;
+
+    /**
+     * Wait for the call to complete, without giving up if interrupted.
+     *
+     * @return true if it succeeded.
+     */
+    boolean await() {
+      boolean interrupted = false;
+      while (true) {
+        try {
+          _done.await();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      return _succeeded;
+    }
+  }
+}
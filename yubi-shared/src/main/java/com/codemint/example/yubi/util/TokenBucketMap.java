@@ -0,0 +1,122 @@
+package com.codemint.example.yubi.util;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded map of lock-free token buckets, one per key.
+ * <p>
+ * Each bucket is a single {@link AtomicLong} holding the theoretical arrival
+ * time of the next permit (the generic cell rate algorithm), so acquiring a
+ * permit is a map lookup and a compare-and-set. A bucket whose arrival time is
+ * in the past is full and carries no state, which means it can be dropped at
+ * any time without changing the outcome. When the map reaches its capacity
+ * such idle buckets are swept. Buckets that still hold state are never
+ * evicted, as that would let an attacker reset the limit of a throttled key by
+ * flooding the map. If nothing is idle, new keys instead share a single
+ * overflow bucket with the same rate until a sweep frees room, so memory stays
+ * flat and a flood of distinct keys is throttled as one. A sweep records when
+ * the first remaining bucket becomes idle and is not repeated before that.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public class TokenBucketMap {
+  private final ConcurrentMap<String, AtomicLong> _buckets = new ConcurrentHashMap<>();
+  private final AtomicBoolean _evicting = new AtomicBoolean();
+  private final AtomicLong _overflowBucket = new AtomicLong(System.nanoTime());
+  private final long _emissionIntervalNanos;
+  private final long _burstToleranceNanos;
+  private final int _maxEntries;
+  private volatile long _nextSweepNanos = System.nanoTime();
+
+  /**
+   * Constructor.
+   * 
+   * @param permitsPerMinute
+   *          The sustained number of permits per minute and key.
+   * @param burst
+   *          The number of permits that can be used at once by an idle key.
+   * @param maxEntries
+   *          The maximum number of keys to track.
+   */
+  public TokenBucketMap(int permitsPerMinute, int burst, int maxEntries) {
+    if (permitsPerMinute <= 0 || burst <= 0 || maxEntries <= 0) {
+      throw new IllegalArgumentException("Rate, burst and max entries must be positive");
+    }
+    _emissionIntervalNanos = TimeUnit.MINUTES.toNanos(1L) / permitsPerMinute;
+    _burstToleranceNanos = _emissionIntervalNanos * (burst - 1);
+    _maxEntries = maxEntries;
+  }
+
+  /**
+   * Try to take a permit for a key.
+   * 
+   * @param key
+   *          The key, null is always granted.
+   * @return true if granted, false if the key has exceeded its rate.
+   */
+  public boolean tryAcquire(String key) {
+    if (key == null) {
+      return true;
+    }
+    final long now = System.nanoTime();
+    AtomicLong bucket = _buckets.get(key);
+    if (bucket == null) {
+      if (_buckets.size() >= _maxEntries && now - _nextSweepNanos >= 0) {
+        sweep(now);
+      }
+      if (_buckets.size() >= _maxEntries) {
+        bucket = _overflowBucket;
+      } else {
+        AtomicLong newBucket = new AtomicLong(now);
+        bucket = _buckets.putIfAbsent(key, newBucket);
+        if (bucket == null) {
+          bucket = newBucket;
+        }
+      }
+    }
+    while (true) {
+      final long arrivalTime = bucket.get();
+      final long start = arrivalTime - now > 0 ? arrivalTime : now;
+      if (start - now > _burstToleranceNanos) {
+        return false;
+      }
+      if (bucket.compareAndSet(arrivalTime, start + _emissionIntervalNanos)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Get the number of tracked keys.
+   * 
+   * @return number of keys.
+   */
+  public int size() {
+    return _buckets.size();
+  }
+
+  private void sweep(long now) {
+    if (!_evicting.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      long nextIdleTime = now + _emissionIntervalNanos + _burstToleranceNanos;
+      for (Iterator<AtomicLong> i = _buckets.values().iterator(); i.hasNext();) {
+        long arrivalTime = i.next().get();
+        if (arrivalTime - now <= 0) {
+          i.remove();
+        } else if (arrivalTime - nextIdleTime < 0) {
+          nextIdleTime = arrivalTime;
+        }
+      }
+      _nextSweepNanos = nextIdleTime;
+    } finally {
+      _evicting.set(false);
+    }
+  }
+}
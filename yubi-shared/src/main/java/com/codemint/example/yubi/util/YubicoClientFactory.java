@@ -10,12 +10,26 @@ import com.yubico.client.v2.YubicoClient;
  * Factory that creates {@link YubicoClient} instances with key and client id
  * from a property file. Visit <a
  * href="https://upgrade.yubico.com/getapikey">Yubico</a> to get your own key.
+ * <p>
+ * The properties are client_id, secret_key and the optional wsapi_urls, a
+ * comma-separated list of validation service URLs that replaces the Yubico
+ * cloud. Each can be overridden with a system property prefixed with
+ * "yubico.", in which case the property file may be missing. The load test
+ * uses that to point all examples to a local validation server.
+ * <p>
+ * Tenants can have their own property file, see
+ * {@link #getYubicoClient(String)}. The system properties apply to them too.
  * 
  * @author Erik Wramner, CodeMint
  */
 public class YubicoClientFactory {
-  private static final YubicoClientFactory INSTANCE = new YubicoClientFactory();
-  private final Properties _yubicoProperties = loadYubicoProperties();
+  private static final String SYSTEM_PROPERTY_PREFIX = "yubico.";
+  private static final String DEFAULT_RESOURCE = "/yubico.properties";
+  private final Properties _yubicoProperties;
+
+  private YubicoClientFactory(String resource) {
+    _yubicoProperties = loadYubicoProperties(resource);
+  }
 
   /**
    * Get a client.
@@ -23,27 +37,49 @@ public class YubicoClientFactory {
    * @return client.
    */
   public static YubicoClient getYubicoClient() {
-    return INSTANCE.createYubicoClient();
+    return getYubicoClient(DEFAULT_RESOURCE);
+  }
+
+  /**
+   * Get a new client configured from another property file on the class path.
+   * 
+   * @param resource
+   *          The resource name, such as "/yubico.properties".
+   * @return client.
+   */
+  public static YubicoClient getYubicoClient(String resource) {
+    return new YubicoClientFactory(resource).createYubicoClient();
   }
 
   private YubicoClient createYubicoClient() {
-    return YubicoClient.getClient(Integer.valueOf(_yubicoProperties.getProperty("client_id")),
-        _yubicoProperties.getProperty("secret_key"));
+    YubicoClient client = YubicoClient.getClient(Integer.valueOf(getProperty("client_id")),
+        getProperty("secret_key"));
+    String wsapiUrls = getProperty("wsapi_urls");
+    if (wsapiUrls != null && !wsapiUrls.trim().isEmpty()) {
+      client.setWsapiUrls(wsapiUrls.trim().split("\\s*,\\s*"));
+    }
+    return client;
+  }
+
+  private String getProperty(String name) {
+    return System.getProperty(SYSTEM_PROPERTY_PREFIX + name, _yubicoProperties.getProperty(name));
   }
 
-  private static Properties loadYubicoProperties() {
+  private static Properties loadYubicoProperties(String resource) {
     InputStream is = null;
     try {
-      is = YubicoClientFactory.class.getResourceAsStream("/yubico.properties");
+      is = YubicoClientFactory.class.getResourceAsStream(resource);
       if (is != null) {
         Properties props = new Properties();
         props.load(is);
         return props;
+      } else if (System.getProperty(SYSTEM_PROPERTY_PREFIX + "client_id") != null) {
+        return new Properties();
       } else {
-        throw new IllegalStateException("Failed to read yubico.properties!");
+        throw new IllegalStateException("Failed to read " + resource + "!");
       }
     } catch (IOException e) {
-      throw new IllegalStateException("Failed to read yubico.properties!", e);
+      throw new IllegalStateException("Failed to read " + resource + "!", e);
     } finally {
       if (is != null) {
         try {
@@ -0,0 +1,48 @@
+package com.codemint.example.yubi.web;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import com.codemint.example.yubi.audit.AuditLog;
+import com.codemint.example.yubi.audit.LoginHistory;
+import com.codemint.example.yubi.data.AccountLoader;
+import com.codemint.example.yubi.metrics.LoginMetrics;
+
+/**
+ * Starts loading the user accounts in the background when the web application
+ * starts, so that they are ready before the first login. The file is given by
+ * the context parameter "accountFile" and defaults to etc/user_accounts.txt.
+ * The loader is also stored as a context attribute named after the
+ * {@link AccountLoader} class, for pages and servlets that report readiness.
+ * <p>
+ * When the application stops, the shared loaders, the audit log writer and
+ * the JMX registrations of the shared metrics and login history are shut
+ * down, so that they do not keep the class loader of an undeployed
+ * application alive. That is only done if this library was loaded by the
+ * class loader of the application; a copy in the container is shared with
+ * other applications.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public class AccountLoaderListener implements ServletContextListener {
+  public static final String ACCOUNT_FILE_PARAMETER = "accountFile";
+  private static final String DEFAULT_ACCOUNT_FILE = "etc/user_accounts.txt";
+
+  @Override
+  public void contextInitialized(ServletContextEvent sce) {
+    String accountFile = sce.getServletContext().getInitParameter(ACCOUNT_FILE_PARAMETER);
+    AccountLoader loader = AccountLoader.getInstance(accountFile != null ? accountFile : DEFAULT_ACCOUNT_FILE);
+    loader.start();
+    sce.getServletContext().setAttribute(AccountLoader.class.getName(), loader);
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent sce) {
+    if (getClass().getClassLoader() == sce.getServletContext().getClassLoader()) {
+      AccountLoader.shutdown();
+      AuditLog.shutdown();
+      LoginMetrics.shutdown();
+      LoginHistory.shutdown();
+    }
+  }
+}
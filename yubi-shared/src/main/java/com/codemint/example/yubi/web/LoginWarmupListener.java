@@ -0,0 +1,36 @@
+package com.codemint.example.yubi.web;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import com.codemint.example.yubi.auth.LoginWarmup;
+
+/**
+ * Starts the {@link LoginWarmup} when the web application starts. Add it to
+ * web.xml to turn the warm-up on; it is off otherwise. The context parameters
+ * "loginWarmupIterations" (default 20000) and "loginWarmupMaxSeconds" (default
+ * 60) set the minimum number of logins and the time limit. The warm-up is
+ * also stored as a context attribute named after the {@link LoginWarmup}
+ * class, for pages and servlets that report readiness.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+public class LoginWarmupListener implements ServletContextListener {
+  private static final int DEFAULT_ITERATIONS = 20000;
+  private static final long DEFAULT_MAX_SECONDS = 60L;
+
+  @Override
+  public void contextInitialized(ServletContextEvent sce) {
+    String iterations = sce.getServletContext().getInitParameter("loginWarmupIterations");
+    String maxSeconds = sce.getServletContext().getInitParameter("loginWarmupMaxSeconds");
+    LoginWarmup warmup = LoginWarmup.getInstance();
+    warmup.start(iterations != null ? Integer.parseInt(iterations) : DEFAULT_ITERATIONS,
+        (maxSeconds != null ? Long.parseLong(maxSeconds) : DEFAULT_MAX_SECONDS) * 1000L);
+    sce.getServletContext().setAttribute(LoginWarmup.class.getName(), warmup);
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent sce) {
+    // The warm-up is shared by the whole process and ends by itself
+  }
+}
@@ -0,0 +1,206 @@
+package com.codemint.example.yubi.web;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codemint.example.yubi.data.AccountDelta;
+import com.codemint.example.yubi.data.AccountLoader;
+import com.codemint.example.yubi.data.UserAccount;
+
+/**
+ * Registry of the live HTTP sessions of each user, so that the sessions of a
+ * user can be found without scanning all sessions. Login code registers the
+ * session with {@link #register(HttpSession, String, String)} and the registry
+ * forgets it when the container destroys it.
+ * <p>
+ * When the accounts loaded by the {@link AccountLoaderListener} change, the
+ * sessions of the changed and removed accounts are invalidated at once, while
+ * all other sessions are left alone. Login code should also compare
+ * {@link UserAccount#getVersion()} with the version kept in the session on
+ * each request, as a cheap check for changes the registry has not seen, such
+ * as accounts of tenants or sessions replicated from another node.
+ * <p>
+ * Add it as a listener in web.xml after the {@link AccountLoaderListener}. It
+ * is stored as a context attribute named after this class, see
+ * {@link #get(ServletContext)}.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+public class SessionRegistry implements ServletContextListener, HttpSessionListener {
+  private static final String KEY_SESSION_ATTRIBUTE = SessionRegistry.class.getName() + ".key";
+  private final Logger _logger = LoggerFactory.getLogger(getClass());
+  private final ConcurrentMap<String, Set<HttpSession>> _sessions = new ConcurrentHashMap<>();
+  private final AccountLoader.Listener _accountListener = new AccountLoader.Listener() {
+    @Override
+    public void accountsChanged(AccountDelta delta) {
+      int count = 0;
+      for (UserAccount account : delta.getChanged()) {
+        count += invalidate(null, account.getEmail());
+      }
+      for (UserAccount account : delta.getRemoved()) {
+        count += invalidate(null, account.getEmail());
+      }
+      _logger.info("Invalidated {} sessions for changed accounts", count);
+    }
+  };
+  private AccountLoader _accountLoader;
+
+  /**
+   * Get the registry for a web application.
+   *
+   * @param context
+   *          The servlet context.
+   * @return registry or null if not configured.
+   */
+  public static SessionRegistry get(ServletContext context) {
+    return (SessionRegistry) context.getAttribute(SessionRegistry.class.getName());
+  }
+
+  @Override
+  public void contextInitialized(ServletContextEvent sce) {
+    ServletContext context = sce.getServletContext();
+    context.setAttribute(SessionRegistry.class.getName(), this);
+    _accountLoader = (AccountLoader) context.getAttribute(AccountLoader.class.getName());
+    if (_accountLoader != null) {
+      _accountLoader.addListener(_accountListener);
+    } else {
+      _logger.warn("No account loader in context, sessions are only checked on use");
+    }
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent sce) {
+    if (_accountLoader != null) {
+      _accountLoader.removeListener(_accountListener);
+    }
+  }
+
+  @Override
+  public void sessionCreated(HttpSessionEvent se) {
+  }
+
+  @Override
+  public void sessionDestroyed(HttpSessionEvent se) {
+    HttpSession session = se.getSession();
+    String key = (String) session.getAttribute(KEY_SESSION_ATTRIBUTE);
+    if (key != null) {
+      Set<HttpSession> sessions = _sessions.get(key);
+      if (sessions != null) {
+        sessions.remove(session);
+        if (sessions.isEmpty()) {
+          _sessions.remove(key, sessions);
+        }
+      }
+    }
+  }
+
+  /**
+   * Register the session of a user that has logged in.
+   *
+   * @param session
+   *          The session.
+   * @param tenantId
+   *          The tenant id or null for none.
+   * @param userId
+   *          The user id.
+   */
+  public void register(HttpSession session, String tenantId, String userId) {
+    String key = getKey(tenantId, userId);
+    session.setAttribute(KEY_SESSION_ATTRIBUTE, key);
+    while (true) {
+      Set<HttpSession> sessions = _sessions.get(key);
+      if (sessions == null) {
+        Set<HttpSession> newSessions = Collections.newSetFromMap(new ConcurrentHashMap<HttpSession, Boolean>());
+        sessions = _sessions.putIfAbsent(key, newSessions);
+        if (sessions == null) {
+          sessions = newSessions;
+        }
+      }
+      sessions.add(session);
+      // Retry if the set was removed as empty while adding
+      if (_sessions.get(key) == sessions) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Invalidate all sessions of a user.
+   *
+   * @param tenantId
+   *          The tenant id or null for none.
+   * @param userId
+   *          The user id.
+   * @return number of invalidated sessions.
+   */
+  public int invalidate(String tenantId, String userId) {
+    Set<HttpSession> sessions = _sessions.remove(getKey(tenantId, userId));
+    if (sessions == null) {
+      return 0;
+    }
+    int count = 0;
+    for (HttpSession session : new ArrayList<>(sessions)) {
+      if (invalidate(session)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Get the number of sessions for a user.
+   *
+   * @param tenantId
+   *          The tenant id or null for none.
+   * @param userId
+   *          The user id.
+   * @return count.
+   */
+  public int getSessionCount(String tenantId, String userId) {
+    Set<HttpSession> sessions = _sessions.get(getKey(tenantId, userId));
+    return sessions != null ? sessions.size() : 0;
+  }
+
+  /**
+   * Get the ids of the users with sessions.
+   *
+   * @return user keys, with the tenant id and a slash first for tenants.
+   */
+  public List<String> getUserKeys() {
+    return new ArrayList<>(_sessions.keySet());
+  }
+
+  /**
+   * Invalidate a session that may already be invalid.
+   *
+   * @param session
+   *          The session.
+   * @return true if invalidated now.
+   */
+  public static boolean invalidate(HttpSession session) {
+    try {
+      session.invalidate();
+      return true;
+    } catch (IllegalStateException e) {
+      return false;
+    }
+  }
+
+  private static String getKey(String tenantId, String userId) {
+    return tenantId != null ? tenantId + "/" + userId : userId;
+  }
+}
@@ -0,0 +1,52 @@
+package com.codemint.example.yubi.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Threads for blocking work, Java 21 version with virtual threads. A virtual
+ * thread that waits for the validation service releases its carrier thread,
+ * so thousands of verifications in flight cost little more than their stacks
+ * on the heap. The public API must match the version in src/main/java.
+ * 
+ * @author Erik Wramner, CodeMint
+ */
+public final class BlockingExecutors {
+  private static final ExecutorService EXECUTOR = Executors.newThreadPerTaskExecutor(Thread.ofVirtual()
+      .name("yubi-blocking-", 1L).factory());
+
+  private BlockingExecutors() {
+  }
+
+  /**
+   * Check if the threads are virtual.
+   * 
+   * @return true.
+   */
+  public static boolean isVirtual() {
+    return true;
+  }
+
+  /**
+   * Create a virtual thread. Virtual threads are always daemon threads.
+   * 
+   * @param name
+   *          The thread name.
+   * @param task
+   *          The task to run.
+   * @return unstarted thread.
+   */
+  public static Thread newThread(String name, Runnable task) {
+    return Thread.ofVirtual().name(name).unstarted(task);
+  }
+
+  /**
+   * Get the shared executor for blocking tasks, one new virtual thread per
+   * task.
+   * 
+   * @return executor.
+   */
+  public static ExecutorService getExecutor() {
+    return EXECUTOR;
+  }
+}
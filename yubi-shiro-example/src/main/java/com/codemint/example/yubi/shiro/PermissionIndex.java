@@ -0,0 +1,258 @@
+package com.codemint.example.yubi.shiro;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.codemint.example.yubi.data.RoleIndex;
+import com.codemint.example.yubi.data.RolePermissions;
+
+/**
+ * Index with the permissions granted to each combination of roles, compiled
+ * into a trie with one level per permission part. Checking a permission is a
+ * walk down the trie comparing parts in place, without splitting the string or
+ * creating permission objects.
+ * <p>
+ * Permissions use the Shiro wildcard syntax and are case insensitive. A part
+ * containing "*" matches anything and trailing wildcard parts are implied, so
+ * "page:*" and "page" are the same. When a checked permission has several sub
+ * parts ("page:read,edit") each of them must be granted, possibly by different
+ * permissions.
+ * <p>
+ * The tries are cached per role mask and all part tokens are interned, so
+ * users with the same roles share the same trie.
+ *
+ * @author Erik Wramner, CodeMint
+ */
+final class PermissionIndex {
+  private static final String WILDCARD_TOKEN = "*";
+  private final RoleIndex _roleIndex;
+  private final RolePermissions _rolePermissions;
+  private final Map<String, String> _tokens = new HashMap<>();
+  private final ConcurrentMap<Long, CompiledPermissions> _permissionsByMask = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor.
+   *
+   * @param roleIndex
+   *          The role index defining the role masks.
+   * @param rolePermissions
+   *          The permissions granted to each role.
+   */
+  PermissionIndex(RoleIndex roleIndex, RolePermissions rolePermissions) {
+    _roleIndex = roleIndex;
+    _rolePermissions = rolePermissions;
+  }
+
+  /**
+   * Get the compiled permissions for a role mask, compiling them on first use.
+   *
+   * @param roleMask
+   *          The role mask.
+   * @return compiled permissions.
+   */
+  CompiledPermissions getPermissions(long roleMask) {
+    CompiledPermissions permissions = _permissionsByMask.get(roleMask);
+    if (permissions == null) {
+      permissions = compile(roleMask);
+      CompiledPermissions existing = _permissionsByMask.putIfAbsent(roleMask, permissions);
+      if (existing != null) {
+        permissions = existing;
+      }
+    }
+    return permissions;
+  }
+
+  /**
+   * Get the permission strings granted to a role mask, as defined.
+   *
+   * @param roleMask
+   *          The role mask.
+   * @return permissions.
+   */
+  Set<String> getPermissionStrings(long roleMask) {
+    Set<String> permissions = new LinkedHashSet<>();
+    for (String role : _roleIndex.getRoleNames(roleMask)) {
+      permissions.addAll(_rolePermissions.getPermissions(role));
+    }
+    return permissions;
+  }
+
+  private synchronized CompiledPermissions compile(long roleMask) {
+    Node root = new Node();
+    for (String permission : getPermissionStrings(roleMask)) {
+      add(root, permission);
+    }
+    return new CompiledPermissions(root);
+  }
+
+  private void add(Node root, String permission) {
+    String[] parts = permission.trim().toLowerCase(Locale.ROOT).split(":", -1);
+    String[][] tokens = new String[parts.length][];
+    int length = 0;
+    for (int i = 0; i < parts.length; i++) {
+      String[] subparts = parts[i].split(",", -1);
+      for (int j = 0; j < subparts.length; j++) {
+        subparts[j] = subparts[j].trim();
+        if (subparts[j].isEmpty()) {
+          throw new IllegalArgumentException("Invalid permission " + permission);
+        }
+        if (WILDCARD_TOKEN.equals(subparts[j])) {
+          subparts = null;
+          break;
+        }
+        subparts[j] = intern(subparts[j]);
+      }
+      tokens[i] = subparts;
+      if (subparts != null) {
+        length = i + 1;
+      }
+    }
+    insert(root, tokens, 0, length);
+  }
+
+  private static void insert(Node node, String[][] tokens, int part, int length) {
+    if (part == length) {
+      node._terminal = true;
+    } else if (tokens[part] == null) {
+      insert(node.getOrAddWildcard(), tokens, part + 1, length);
+    } else {
+      for (String token : tokens[part]) {
+        insert(node.getOrAddChild(token), tokens, part + 1, length);
+      }
+    }
+  }
+
+  private String intern(String token) {
+    String interned = _tokens.get(token);
+    if (interned == null) {
+      interned = token;
+      _tokens.put(token, token);
+    }
+    return interned;
+  }
+
+  private static int hash(String s, int start, int end) {
+    int h = 0;
+    for (int i = start; i < end; i++) {
+      h = 31 * h + Character.toLowerCase(s.charAt(i));
+    }
+    return h;
+  }
+
+  /**
+   * The compiled permissions for one role mask. Immutable once published and
+   * safe to share between threads.
+   */
+  static final class CompiledPermissions {
+    private final Node _root;
+
+    private CompiledPermissions(Node root) {
+      _root = root;
+    }
+
+    /**
+     * Check if a permission is implied by the granted permissions.
+     *
+     * @param permission
+     *          The permission in wildcard syntax.
+     * @return true if permitted.
+     */
+    boolean implies(String permission) {
+      return permission != null && implies(_root, permission, 0);
+    }
+
+    private static boolean implies(Node node, String permission, int start) {
+      if (node._terminal) {
+        return true;
+      }
+      if (start > permission.length()) {
+        return false;
+      }
+      int end = permission.indexOf(':', start);
+      if (end < 0) {
+        end = permission.length();
+      }
+      for (int subpartStart = start; subpartStart <= end;) {
+        int subpartEnd = permission.indexOf(',', subpartStart);
+        if (subpartEnd < 0 || subpartEnd > end) {
+          subpartEnd = end;
+        }
+        if (!impliesToken(node, permission, subpartStart, subpartEnd, end + 1)) {
+          return false;
+        }
+        subpartStart = subpartEnd + 1;
+      }
+      return true;
+    }
+
+    private static boolean impliesToken(Node node, String permission, int start, int end, int next) {
+      while (start < end && Character.isWhitespace(permission.charAt(start))) {
+        start++;
+      }
+      while (end > start && Character.isWhitespace(permission.charAt(end - 1))) {
+        end--;
+      }
+      if (start == end) {
+        return false;
+      }
+      Node child = node.getChild(permission, start, end);
+      if (child != null && implies(child, permission, next)) {
+        return true;
+      }
+      return node._wildcard != null && implies(node._wildcard, permission, next);
+    }
+  }
+
+  /**
+   * Trie node for one permission part. Children are kept in parallel arrays
+   * with precomputed case insensitive hashes.
+   */
+  private static final class Node {
+    private static final String[] NO_TOKENS = new String[0];
+    private static final Node[] NO_NODES = new Node[0];
+    private String[] _tokens = NO_TOKENS;
+    private int[] _hashes = new int[0];
+    private Node[] _children = NO_NODES;
+    private Node _wildcard;
+    private boolean _terminal;
+
+    Node getChild(String s, int start, int end) {
+      int length = end - start;
+      int h = hash(s, start, end);
+      for (int i = 0; i < _hashes.length; i++) {
+        if (_hashes[i] == h && _tokens[i].length() == length && _tokens[i].regionMatches(true, 0, s, start, length)) {
+          return _children[i];
+        }
+      }
+      return null;
+    }
+
+    Node getOrAddChild(String token) {
+      Node child = getChild(token, 0, token.length());
+      if (child == null) {
+        int n = _tokens.length;
+        _tokens = Arrays.copyOf(_tokens, n + 1);
+        _hashes = Arrays.copyOf(_hashes, n + 1);
+        _children = Arrays.copyOf(_children, n + 1);
+        child = new Node();
+        _tokens[n] = token;
+        _hashes[n] = hash(token, 0, token.length());
+        _children[n] = child;
+      }
+      return child;
+    }
+
+    Node getOrAddWildcard() {
+      if (_wildcard == null) {
+        _wildcard = new Node();
+      }
+      return _wildcard;
+    }
+  }
+}
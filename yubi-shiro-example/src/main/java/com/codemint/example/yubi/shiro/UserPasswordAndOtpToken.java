@@ -3,6 +3,7 @@ package com.codemint.example.yubi.shiro;
 import java.io.Serializable;
 
 import org.apache.shiro.authc.AuthenticationToken;
+import org.apache.shiro.authc.HostAuthenticationToken;
 
 import com.codemint.example.yubi.util.PasswordEncoder;
 
@@ -15,20 +16,30 @@ import com.codemint.example.yubi.util.PasswordEncoder;
  * 
  * @author Erik Wramner, CodeMint
  */
-public class UserPasswordAndOtpToken implements AuthenticationToken {
+public class UserPasswordAndOtpToken implements HostAuthenticationToken {
   private static final long serialVersionUID = 1L;
   private final String _userId;
   private final PasswordAndOtp _credentials;
+  private final String _host;
 
   public UserPasswordAndOtpToken(String userId, String password, String otp) {
+    this(userId, password, otp, null);
+  }
+
+  public UserPasswordAndOtpToken(String userId, String password, String otp, String host) {
     _userId = userId;
     _credentials = new PasswordAndOtp(password, otp);
+    _host = host;
   }
 
   public String getUserId() {
     return _userId;
   }
 
+  public String getPassword() {
+    return _credentials.getPassword();
+  }
+
   public String getHashedPassword(int salt) {
     return PasswordEncoder.encodePasswordForUser(_userId, salt, _credentials.getPassword());
   }
@@ -37,6 +48,11 @@ public class UserPasswordAndOtpToken implements AuthenticationToken {
     return _credentials.getOtp();
   }
 
+  @Override
+  public String getHost() {
+    return _host;
+  }
+
   @Override
   public Object getCredentials() {
     return _credentials;
@@ -1,41 +1,79 @@
 package com.codemint.example.yubi.shiro;
 
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
-import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.shiro.authc.AuthenticationException;
 import org.apache.shiro.authc.AuthenticationInfo;
 import org.apache.shiro.authc.AuthenticationToken;
+import org.apache.shiro.authc.ExcessiveAttemptsException;
 import org.apache.shiro.authc.SimpleAccount;
+import org.apache.shiro.authz.AuthorizationException;
 import org.apache.shiro.authz.AuthorizationInfo;
 import org.apache.shiro.authz.Permission;
 import org.apache.shiro.authz.SimpleAuthorizationInfo;
+import org.apache.shiro.authz.UnauthorizedException;
 import org.apache.shiro.realm.AuthorizingRealm;
 import org.apache.shiro.subject.PrincipalCollection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codemint.example.yubi.auth.LoginResult;
+import com.codemint.example.yubi.auth.LoginResult.Outcome;
+import com.codemint.example.yubi.auth.TwoFactorVerifier;
+import com.codemint.example.yubi.data.AccountDelta;
+import com.codemint.example.yubi.data.AccountLoader;
+import com.codemint.example.yubi.data.AccountStore;
+import com.codemint.example.yubi.data.RoleIndex;
+import com.codemint.example.yubi.data.RolePermissions;
 import com.codemint.example.yubi.data.UserAccount;
-import com.yubico.client.v2.VerificationResponse;
-import com.yubico.client.v2.YubicoClient;
-import com.yubico.client.v2.exceptions.YubicoValidationFailure;
-import com.yubico.client.v2.exceptions.YubicoVerificationException;
+import com.codemint.example.yubi.shiro.PermissionIndex.CompiledPermissions;
+import com.codemint.example.yubi.trace.LoginTracer;
+import com.codemint.example.yubi.trace.LoginTracers;
+import com.codemint.example.yubi.trace.TracePhase;
 
 /**
  * Example {@link AuthorizingRealm} that uses passwords and Yubikey one time
  * passwords.
+ * <p>
+ * Permissions are granted to roles in etc/role_permissions.txt. They are
+ * compiled into a {@link PermissionIndex} when the realm is created, so string
+ * permission checks are answered with a trie walk rather than by parsing
+ * wildcard permissions for every check.
+ * <p>
+ * The role masks only cover the roles in that file, as other roles grant no
+ * permissions, so the index never depends on the accounts.
+ * <p>
+ * The accounts are loaded in the background, so the per-user permissions are
+ * looked up on first use after they are ready. Until then no permissions are
+ * granted and logins fail. When the accounts are synchronized with a changed
+ * file an {@link AccountLoader.Listener} updates the permissions of the
+ * accounts that changed or were removed, so the work follows the number of
+ * changes rather than the number of users. Each entry also holds the account
+ * it was made for and is rebuilt if the account differs, so a lookup that
+ * races with a sync never returns stale permissions.
  * 
  * @author Erik Wramner, CodeMint
  */
 public class YubikeyAndPasswordAuthorizingRealm extends AuthorizingRealm {
   private final Logger _logger = LoggerFactory.getLogger(getClass());
-  private final Map<String, UserAccount> _accountMap = createAccountMap();
-  private final YubicoClient _yubicoClient = createYubicoClient();
+  private final TwoFactorVerifier _verifier = TwoFactorVerifier.createDefault("etc/user_accounts.txt");
+  private final LoginTracer _tracer = LoginTracers.getTracer();
+  private final RolePermissions _rolePermissions = RolePermissions.load("etc/role_permissions.txt");
+  private final RoleIndex _roleIndex = new RoleIndex(_rolePermissions.getRoles());
+  private final PermissionIndex _permissionIndex = new PermissionIndex(_roleIndex, _rolePermissions);
+  private final ConcurrentMap<String, UserPermissions> _permissionsByUser = new ConcurrentHashMap<>();
+
+  public YubikeyAndPasswordAuthorizingRealm() {
+    _verifier.getAccountLoader().addListener(new AccountLoader.Listener() {
+      @Override
+      public void accountsChanged(AccountDelta delta) {
+        applyDelta(delta);
+      }
+    });
+  }
 
   /**
    * Authenticate a user with password and one-time password.
@@ -44,7 +82,7 @@ public class YubikeyAndPasswordAuthorizingRealm extends AuthorizingRealm {
    *          The token, which must be a {@link UserPasswordAndOtpToken}.
    * @return authentication info or null.
    * @throws AuthenticationException
-   *           on errors.
+   *           on errors, {@link ExcessiveAttemptsException} if rate limited.
    */
   @Override
   protected AuthenticationInfo doGetAuthenticationInfo(AuthenticationToken token) throws AuthenticationException {
@@ -53,36 +91,22 @@ public class YubikeyAndPasswordAuthorizingRealm extends AuthorizingRealm {
     }
 
     UserPasswordAndOtpToken t = (UserPasswordAndOtpToken) token;
-    UserAccount account = _accountMap.get(t.getUserId());
-
-    if (account != null && account.getHashedPassword().equals(t.getHashedPassword(account.getSalt()))) {
-      if (YubicoClient.isValidOTPFormat(t.getOtp())) {
-        try {
-          _logger.info("Verifying Yubikey for {}...", account.getEmail());
-
-          VerificationResponse response = _yubicoClient.verify(t.getOtp());
-
-          if (response.isOk()) {
-            if (response.getPublicId().equals(account.getPublicYubiId())) {
-              _logger.info("User {} with public id {} authenticated", account.getEmail(), response.getPublicId());
-              return new SimpleAccount(t.getPrincipal(), t.getCredentials(), getName(), account.getRoles(),
-                  new HashSet<Permission>());
-            } else {
-              _logger.warn("Login attempt for {} with wrong Yubikey {}!", account.getEmail(), response.getPublicId());
-            }
-          } else {
-            _logger.info("Failed to verify Yubikey for {}, response not OK", account.getEmail());
-          }
-
-        } catch (YubicoValidationFailure e) {
-          _logger.error("Validation failure for Yubikey", e);
-        } catch (YubicoVerificationException e) {
-          _logger.error("Failed to verify Yubikey - servers unreachable?", e);
-        }
+    LoginResult result = _verifier.verify(t.getUserId(), t.getPassword(), t.getOtp(), t.getHost());
+    if (result.isSuccess()) {
+      LoginTracer.Span span = _tracer.start(TracePhase.SESSION_SETUP, t.getUserId(), null);
+      try {
+        return new SimpleAccount(t.getPrincipal(), t.getCredentials(), getName(), result.getAccount().getRoles(),
+            new HashSet<Permission>());
+      } finally {
+        span.end();
       }
+    } else if (result.getOutcome() == Outcome.RATE_LIMITED) {
+      throw new ExcessiveAttemptsException("Too many login attempts");
+    } else if (result.getOutcome() == Outcome.NOT_READY) {
+      throw new AuthenticationException("Accounts not loaded yet");
     }
 
-    _logger.info("Returning null (login failed)");
+    _logger.debug("Returning null (login failed)");
     return null;
   }
 
@@ -92,70 +116,144 @@ public class YubikeyAndPasswordAuthorizingRealm extends AuthorizingRealm {
    * 
    * @param principalCollection
    *          The principal collection.
-   * @return authorization info with granted roles.
+   * @return authorization info with granted roles and permissions.
    */
   @Override
   protected AuthorizationInfo doGetAuthorizationInfo(PrincipalCollection principalCollection) {
-    UserAccount account = _accountMap.get(principalCollection.getPrimaryPrincipal());
-    return new SimpleAuthorizationInfo(account != null ? account.getRoles() : new java.util.TreeSet<String>());
+    AccountStore accountStore = _verifier.getAccountStore();
+    UserAccount account = accountStore != null ? accountStore.getAccount((String) principalCollection
+        .getPrimaryPrincipal()) : null;
+    if (account == null) {
+      return new SimpleAuthorizationInfo(new TreeSet<String>());
+    }
+    SimpleAuthorizationInfo info = new SimpleAuthorizationInfo(account.getRoles());
+    info.setStringPermissions(_permissionIndex.getPermissionStrings(_roleIndex.getMask(account.getRoles())));
+    return info;
   }
 
   /**
-   * Override to support only {@link UserPasswordAndOtpToken} tokens.
+   * Check a permission using the compiled permission index.
    * 
-   * @param token
-   *          The token.
+   * @param principals
+   *          The principal collection.
+   * @param permission
+   *          The permission in wildcard syntax.
+   * @return true if permitted.
    */
   @Override
-  public boolean supports(AuthenticationToken token) {
-    return token instanceof UserPasswordAndOtpToken;
+  public boolean isPermitted(PrincipalCollection principals, String permission) {
+    CompiledPermissions permissions = getPermissions(principals);
+    return permissions != null && permissions.implies(permission);
+  }
+
+  @Override
+  public boolean[] isPermitted(PrincipalCollection principals, String... permissions) {
+    CompiledPermissions compiledPermissions = getPermissions(principals);
+    boolean[] result = new boolean[permissions.length];
+    if (compiledPermissions != null) {
+      for (int i = 0; i < permissions.length; i++) {
+        result[i] = compiledPermissions.implies(permissions[i]);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public boolean isPermittedAll(PrincipalCollection principals, String... permissions) {
+    CompiledPermissions compiledPermissions = getPermissions(principals);
+    if (compiledPermissions == null) {
+      return permissions.length == 0;
+    }
+    for (String permission : permissions) {
+      if (!compiledPermissions.implies(permission)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void checkPermission(PrincipalCollection principals, String permission) throws AuthorizationException {
+    if (!isPermitted(principals, permission)) {
+      throw new UnauthorizedException("Subject does not have permission [" + permission + "]");
+    }
+  }
+
+  @Override
+  public void checkPermissions(PrincipalCollection principals, String... permissions) throws AuthorizationException {
+    for (String permission : permissions) {
+      checkPermission(principals, permission);
+    }
   }
 
   /**
-   * Create a map from user identities to user accounts based on a text file.
+   * Get the compiled permissions for the current account of a user, reusing
+   * the entry from an earlier call or sync if it was made for the same account.
    * 
-   * @return map with all accounts.
+   * @param principals
+   *          The principal collection.
+   * @return permissions or null if the accounts are not ready or the user is
+   *         unknown.
    */
-  private static Map<String, UserAccount> createAccountMap() {
-    Map<String, UserAccount> map = new HashMap<>();
-    try {
-      for (UserAccount account : UserAccount.readAccounts(new File("etc/user_accounts.txt"))) {
-        map.put(account.getEmail(), account);
-      }
-      return map;
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+  private CompiledPermissions getPermissions(PrincipalCollection principals) {
+    AccountStore accountStore = _verifier.getAccountStore();
+    if (principals == null || accountStore == null) {
+      return null;
+    }
+    String userId = (String) principals.getPrimaryPrincipal();
+    UserAccount account = accountStore.getAccount(userId);
+    if (account == null) {
+      return null;
+    }
+    UserPermissions permissions = _permissionsByUser.get(userId);
+    if (permissions == null || permissions._account != account) {
+      permissions = new UserPermissions(account, _permissionIndex.getPermissions(_roleIndex.getMask(account
+          .getRoles())));
+      _permissionsByUser.put(userId, permissions);
     }
+    return permissions._permissions;
   }
 
   /**
-   * Create a Yubico client with key and client id from a property file.
-   * <p>
-   * Visit <a href="https://upgrade.yubico.com/getapikey">Yubico</a> to get your
-   * own key.
+   * Update the permissions of the users in a delta. Added users are compiled
+   * on first use, like all users after the first load.
    * 
-   * @return client.
+   * @param delta
+   *          The delta.
    */
-  private static YubicoClient createYubicoClient() {
-    InputStream is = null;
-    try {
-      is = YubikeyAndPasswordAuthorizingRealm.class.getResourceAsStream("/yubico.properties");
-      if (is != null) {
-        Properties props = new Properties();
-        props.load(is);
-        return YubicoClient.getClient(Integer.valueOf(props.getProperty("client_id")), props.getProperty("secret_key"));
-      } else {
-        throw new IllegalStateException("Failed to read yubico.properties!");
-      }
-    } catch (IOException e) {
-      throw new RuntimeException("Failed to read yubico.properties!", e);
-    } finally {
-      if (is != null) {
-        try {
-          is.close();
-        } catch (IOException e) {
-        }
+  private void applyDelta(AccountDelta delta) {
+    for (UserAccount account : delta.getRemoved()) {
+      _permissionsByUser.remove(account.getEmail());
+    }
+    for (UserAccount account : delta.getChanged()) {
+      if (_permissionsByUser.containsKey(account.getEmail())) {
+        _permissionsByUser.put(account.getEmail(), new UserPermissions(account, _permissionIndex.getPermissions(
+            _roleIndex.getMask(account.getRoles()))));
       }
     }
   }
+
+  /**
+   * Override to support only {@link UserPasswordAndOtpToken} tokens.
+   * 
+   * @param token
+   *          The token.
+   */
+  @Override
+  public boolean supports(AuthenticationToken token) {
+    return token instanceof UserPasswordAndOtpToken;
+  }
+
+  /**
+   * Compiled permissions and the account they were compiled for.
+   */
+  private static final class UserPermissions {
+    private final UserAccount _account;
+    private final CompiledPermissions _permissions;
+
+    UserPermissions(UserAccount account, CompiledPermissions permissions) {
+      _account = account;
+      _permissions = permissions;
+    }
+  }
 }
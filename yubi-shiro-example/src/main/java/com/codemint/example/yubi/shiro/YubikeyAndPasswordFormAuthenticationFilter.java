@@ -21,7 +21,7 @@ public class YubikeyAndPasswordFormAuthenticationFilter extends FormAuthenticati
     String userId = getUsername(request);
     String password = getPassword(request);
     String otp = request.getParameter("otp");
-    return new UserPasswordAndOtpToken(userId, password, otp);
+    return new UserPasswordAndOtpToken(userId, password, otp, getHost(request));
   }
 
 }